@@ -0,0 +1,61 @@
+package kiss.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import kiss.lang.Analyser;
+import kiss.lang.Expression;
+import kiss.lang.impl.KissUtils;
+import kiss.lang.pass.PassManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for analysis and optimisation of representative programs
+ *
+ * @author Mike
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class AnalyserBenchmark {
+	@Param({"loop","recursion","closures","literals"})
+	public String program;
+
+	private Object form;
+	private Expression expression;
+
+	@Setup
+	public void setup() {
+		form=KissUtils.read(Programs.get(program));
+		expression=Analyser.analyse(form);
+	}
+
+	@Benchmark
+	public Expression analyse() {
+		return Analyser.analyse(form);
+	}
+
+	@Benchmark
+	public Expression optimise() {
+		return expression.optimise();
+	}
+
+	@Benchmark
+	public Expression passes() {
+		return PassManager.getDefault().run(expression);
+	}
+}
@@ -0,0 +1,89 @@
+package kiss.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import kiss.lang.Environment;
+import kiss.lang.expression.Constant;
+import kiss.lang.expression.Lookup;
+import clojure.lang.Symbol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for Environment updates at several sizes. Half of the definitions depend on 
+ * another definition, so that dependency tracking is exercised.
+ *
+ * @author Mike
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class EnvironmentBenchmark {
+	@Param({"10","100","1000"})
+	public int size;
+
+	private Environment env;
+	private Environment other;
+	private Symbol fresh;
+	private Symbol existing;
+	private Symbol dependency;
+
+	@Setup
+	public void setup() {
+		env=build("a",size);
+		other=build("b",size);
+		fresh=Symbol.intern("fresh");
+		existing=Symbol.intern("a"+(size/2));
+		dependency=Symbol.intern("a0");
+	}
+
+	private static Environment build(String prefix, int n) {
+		Environment e=Environment.EMPTY;
+		for (int i=0; i<n; i++) {
+			Symbol s=Symbol.intern(prefix+i);
+			if ((i&1)==0) {
+				e=e.define(s, Constant.create(i));
+			} else {
+				e=e.define(s, Lookup.create(Symbol.intern(prefix+(i-1))));
+			}
+		}
+		return e;
+	}
+
+	@Benchmark
+	public Environment defineNew() {
+		return env.define(fresh, Constant.create(1));
+	}
+
+	@Benchmark
+	public Environment redefine() {
+		return env.define(existing, Constant.create(2));
+	}
+
+	/**
+	 * Redefines a symbol with a dependent, forcing the dependent to be updated
+	 */
+	@Benchmark
+	public Environment redefineWithDependents() {
+		return env.define(dependency, Constant.create(3));
+	}
+
+	@Benchmark
+	public Environment merge() {
+		return env.merge(other);
+	}
+}
@@ -0,0 +1,65 @@
+package kiss.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import kiss.lang.Analyser;
+import kiss.lang.Compiler;
+import kiss.lang.Expression;
+import kiss.lang.KFn;
+import kiss.lang.impl.KissUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for execution of representative programs, interpreted directly, interpreted after
+ * optimisation, and compiled
+ *
+ * @author Mike
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class ExecutionBenchmark {
+	@Param({"loop","recursion","closures","literals"})
+	public String program;
+
+	private Expression interpreted;
+	private Expression optimised;
+	private KFn compiled;
+
+	@Setup
+	public void setup() {
+		interpreted=Analyser.analyse(KissUtils.read(Programs.get(program)));
+		optimised=interpreted.optimise();
+		compiled=Compiler.compile(interpreted);
+	}
+
+	@Benchmark
+	public Object interpret() {
+		return interpreted.eval();
+	}
+
+	@Benchmark
+	public Object interpretOptimised() {
+		return optimised.eval();
+	}
+
+	@Benchmark
+	public Object compiled() {
+		return compiled.invoke();
+	}
+}
@@ -0,0 +1,39 @@
+package kiss.bench;
+
+/**
+ * Representative Kiss programs shared by the benchmarks
+ *
+ * @author Mike
+ *
+ */
+final class Programs {
+	static final String LOOP=
+			"(loop [i 0 acc 0] (if (clojure.core/< i 1000) (recur (clojure.core/inc i) (clojure.core/+ acc i)) acc))";
+
+	static final String RECURSION=
+			"(let [fib (fn [fib n] (if (clojure.core/< n 2) n "
+			+ "(clojure.core/+ (fib fib (clojure.core/dec n)) (fib fib (clojure.core/- n 2)))))] (fib fib 15))";
+
+	static final String CLOSURES=
+			"(let [add (fn [a] (fn [b] (clojure.core/+ a b)))] "
+			+ "(loop [i 0 acc 0] (if (clojure.core/< i 100) (recur (clojure.core/inc i) ((add i) acc)) acc)))";
+
+	static final String LITERALS=
+			"(loop [i 0 acc []] (if (clojure.core/< i 100) "
+			+ "(recur (clojure.core/inc i) (let [m {:a i :b acc}] [(:a m) (clojure.core/count (:b m))])) acc))";
+
+	private Programs() {
+		// static constants only
+	}
+
+	/**
+	 * Gets the source of a program by benchmark parameter name
+	 */
+	static String get(String name) {
+		if ("loop".equals(name)) return LOOP;
+		if ("recursion".equals(name)) return RECURSION;
+		if ("closures".equals(name)) return CLOSURES;
+		if ("literals".equals(name)) return LITERALS;
+		throw new IllegalArgumentException("Unknown program: "+name);
+	}
+}
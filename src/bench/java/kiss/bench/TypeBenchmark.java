@@ -0,0 +1,67 @@
+package kiss.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import kiss.lang.Type;
+import kiss.lang.type.JavaType;
+import kiss.lang.type.Null;
+import kiss.lang.type.Union;
+import kiss.lang.type.Value;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for type algebra
+ *
+ * @author Mike
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class TypeBenchmark {
+	private Type[] members;
+	private Type union;
+	private Type number;
+	private Type value;
+
+	@Setup
+	public void setup() {
+		members=new Type[] {JavaType.STRING, JavaType.KEYWORD, JavaType.create(Long.class), Null.INSTANCE, JavaType.SYMBOL};
+		union=Union.create(members);
+		number=JavaType.NUMBER;
+		value=Value.create(1L);
+	}
+
+	@Benchmark
+	public Type unionCreate() {
+		return Union.create(members);
+	}
+
+	@Benchmark
+	public boolean unionContainsValue() {
+		return union.contains(value);
+	}
+
+	@Benchmark
+	public boolean unionContainsType() {
+		return union.contains(number);
+	}
+
+	@Benchmark
+	public boolean javaTypeContains() {
+		return number.contains(value);
+	}
+}
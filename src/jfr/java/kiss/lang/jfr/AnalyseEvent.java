@@ -0,0 +1,26 @@
+package kiss.lang.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Top level analysis of a form
+ *
+ * @author Mike
+ *
+ */
+@Name("kiss.Analyse")
+@Label("Analyse")
+@Category({"Kiss","Compiler"})
+@Description("Top level analysis of a form")
+class AnalyseEvent extends Event {
+	@Label("Size")
+	@Description("Size of the resulting expression, in nodes")
+	int size;
+
+	@Label("Macro Expansions")
+	int macroExpansions;
+}
@@ -0,0 +1,25 @@
+package kiss.lang.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A hit or miss in an interpreter cache
+ *
+ * @author Mike
+ *
+ */
+@Name("kiss.Cache")
+@Label("Cache Access")
+@Category({"Kiss","Interpreter"})
+@Description("A hit or miss in an interpreter cache")
+class CacheEvent extends Event {
+	@Label("Cache")
+	String cache;
+
+	@Label("Hit")
+	boolean hit;
+}
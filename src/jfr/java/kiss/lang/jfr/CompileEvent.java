@@ -0,0 +1,23 @@
+package kiss.lang.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Compilation of an expression
+ *
+ * @author Mike
+ *
+ */
+@Name("kiss.Compile")
+@Label("Compile")
+@Category({"Kiss","Compiler"})
+@Description("Compilation of an expression")
+class CompileEvent extends Event {
+	@Label("Size")
+	@Description("Size of the expression compiled, in nodes")
+	int size;
+}
@@ -0,0 +1,25 @@
+package kiss.lang.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Definition of a symbol in an Environment, including recomputation of dependents
+ *
+ * @author Mike
+ *
+ */
+@Name("kiss.Define")
+@Label("Define")
+@Category({"Kiss","Environment"})
+@Description("Definition of a symbol in an Environment, including recomputation of dependents")
+class DefineEvent extends Event {
+	@Label("Symbol")
+	String symbol;
+
+	@Label("Dependents Recomputed")
+	int dependents;
+}
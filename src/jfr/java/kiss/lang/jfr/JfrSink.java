@@ -0,0 +1,105 @@
+package kiss.lang.jfr;
+
+import kiss.lang.impl.Events;
+import clojure.lang.Symbol;
+
+/**
+ * Events Sink that records Java Flight Recorder events. Loaded reflectively by Events when
+ * JFR is available.
+ *
+ * Events are only created while the corresponding JFR event type is enabled in a recording.
+ *
+ * @author Mike
+ *
+ */
+public class JfrSink implements Events.Sink {
+	private static <T extends jdk.jfr.Event> T begin(T ev) {
+		if (!ev.isEnabled()) return null;
+		ev.begin();
+		return ev;
+	}
+
+	@Override
+	public Object beginAnalyse() {
+		return begin(new AnalyseEvent());
+	}
+
+	@Override
+	public void endAnalyse(Object event, int size, int macroExpansions) {
+		AnalyseEvent ev=(AnalyseEvent) event;
+		ev.end();
+		if (!ev.shouldCommit()) return;
+		ev.size=size;
+		ev.macroExpansions=macroExpansions;
+		ev.commit();
+	}
+
+	@Override
+	public Object beginCompile() {
+		return begin(new CompileEvent());
+	}
+
+	@Override
+	public void endCompile(Object event, int size) {
+		CompileEvent ev=(CompileEvent) event;
+		ev.end();
+		if (!ev.shouldCommit()) return;
+		ev.size=size;
+		ev.commit();
+	}
+
+	@Override
+	public Object beginPass() {
+		return begin(new PassEvent());
+	}
+
+	@Override
+	public void endPass(Object event, String pass, int sizeIn, int sizeOut, boolean changed) {
+		PassEvent ev=(PassEvent) event;
+		ev.end();
+		if (!ev.shouldCommit()) return;
+		ev.pass=pass;
+		ev.sizeIn=sizeIn;
+		ev.sizeOut=sizeOut;
+		ev.changed=changed;
+		ev.commit();
+	}
+
+	@Override
+	public Object beginDefine() {
+		return begin(new DefineEvent());
+	}
+
+	@Override
+	public void endDefine(Object event, Symbol sym, int dependents) {
+		DefineEvent ev=(DefineEvent) event;
+		ev.end();
+		if (!ev.shouldCommit()) return;
+		ev.symbol=sym.toString();
+		ev.dependents=dependents;
+		ev.commit();
+	}
+
+	@Override
+	public Object beginMerge() {
+		return begin(new MergeEvent());
+	}
+
+	@Override
+	public void endMerge(Object event, int symbols) {
+		MergeEvent ev=(MergeEvent) event;
+		ev.end();
+		if (!ev.shouldCommit()) return;
+		ev.symbols=symbols;
+		ev.commit();
+	}
+
+	@Override
+	public void cache(String cache, boolean hit) {
+		CacheEvent ev=new CacheEvent();
+		if (!ev.isEnabled()) return;
+		ev.cache=cache;
+		ev.hit=hit;
+		ev.commit();
+	}
+}
@@ -0,0 +1,23 @@
+package kiss.lang.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Merge of one Environment into another
+ *
+ * @author Mike
+ *
+ */
+@Name("kiss.Merge")
+@Label("Merge")
+@Category({"Kiss","Environment"})
+@Description("Merge of one Environment into another")
+class MergeEvent extends Event {
+	@Label("Symbols")
+	@Description("Number of symbols merged")
+	int symbols;
+}
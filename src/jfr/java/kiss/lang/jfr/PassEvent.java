@@ -0,0 +1,31 @@
+package kiss.lang.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A single run of an optimisation pass
+ *
+ * @author Mike
+ *
+ */
+@Name("kiss.Pass")
+@Label("Optimisation Pass")
+@Category({"Kiss","Compiler"})
+@Description("A single run of an optimisation pass")
+class PassEvent extends Event {
+	@Label("Pass")
+	String pass;
+
+	@Label("Size In")
+	int sizeIn;
+
+	@Label("Size Out")
+	int sizeOut;
+
+	@Label("Changed")
+	boolean changed;
+}
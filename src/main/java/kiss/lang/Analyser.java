@@ -11,17 +11,22 @@ import kiss.lang.expression.ClojureLookup;
 import kiss.lang.expression.Constant;
 import kiss.lang.expression.Def;
 import kiss.lang.expression.Do;
+import kiss.lang.expression.FieldLookup;
 import kiss.lang.expression.If;
 import kiss.lang.expression.InstanceOf;
 import kiss.lang.expression.Lambda;
 import kiss.lang.expression.Let;
 import kiss.lang.expression.Lookup;
 import kiss.lang.expression.Loop;
+import kiss.lang.expression.MethodCall;
 import kiss.lang.expression.Recur;
 import kiss.lang.expression.Return;
 import kiss.lang.expression.Vector;
+import kiss.lang.impl.Events;
+import kiss.lang.impl.Interop;
 import kiss.lang.impl.KissException;
 import kiss.lang.impl.KissUtils;
+import kiss.lang.impl.Profiler;
 import kiss.lang.type.Intersection;
 import kiss.lang.type.JavaType;
 import kiss.lang.type.Union;
@@ -50,6 +55,24 @@ public class Analyser {
 	 * @return
 	 */
 	public static Expression analyse(Environment env, Object form) {
+		Object ev=Events.beginAnalyse();
+		if (ev==null) return analyseInstrumented(env,form);
+		Expression x=null;
+		try {
+			x=analyseInstrumented(env,form);
+			return x;
+		} finally {
+			Events.endAnalyse(ev, x);
+		}
+	}
+	
+	private static Expression analyseInstrumented(Environment env, Object form) {
+		Expression x=analyseForm(env,form);
+		if (Profiler.isInstrumenting()) x=Profiler.instrument(x, form);
+		return x;
+	}
+	
+	private static Expression analyseForm(Environment env, Object form) {
 		if (form instanceof Symbol) return analyseSymbol(env,(Symbol)form);
 		if (form instanceof ISeq) return analyseSeq(env,(ISeq)form);
 		if (form instanceof IPersistentVector) return analyseVector(env,(IPersistentVector)form);
@@ -117,9 +140,57 @@ public class Analyser {
 		if (sym.equals(Symbols.NIL)) return Constant.NULL;
 		if (sym.equals(Symbols.TRUE)) return Constant.TRUE;
 		if (sym.equals(Symbols.FALSE)) return Constant.FALSE;
-		if (sym.getNamespace()!=null) return ClojureLookup.create(sym);
+		if (sym.getNamespace()!=null) {
+			Class<?> c=Interop.maybeClass(sym.getNamespace());
+			if (c!=null) return FieldLookup.createStatic(c, sym.getName());
+			return ClojureLookup.create(sym);
+		}
 		return Lookup.create(sym);
 	}
+	
+	/**
+	 * Analyses a Java interop form with the given target form, member name and argument forms
+	 * 
+	 * Member names starting with '-' are field lookups. If allowStatic is true, a target symbol
+	 * that names a class is treated as a static member access.
+	 */
+	private static Expression analyseDot(Environment env, Object targetForm, String member, ISeq argForms, boolean allowStatic) {
+		Expression[] params=analyseForms(env,argForms);
+		boolean isField=member.startsWith("-");
+		if (isField) {
+			member=member.substring(1);
+			if (params.length>0) throw new KissException("Field lookup cannot take arguments: "+member);
+		}
+		
+		Class<?> c=null;
+		if ((targetForm instanceof Symbol)&&(((Symbol)targetForm).getNamespace()==null)) {
+			c=Interop.maybeClass(((Symbol)targetForm).getName());
+		}
+		
+		Expression target;
+		if (c!=null) {
+			if (allowStatic) {
+				if (isField||((params.length==0)&&Interop.hasField(c, member, true))) return FieldLookup.createStatic(c, member);
+				return MethodCall.createStatic(c, member, params);
+			}
+			target=Constant.create(c);
+		} else {
+			target=analyse(env,targetForm);
+		}
+		
+		if (isField) return FieldLookup.create(target, member);
+		return MethodCall.create(target, member, params);
+	}
+	
+	private static Expression[] analyseForms(Environment env, ISeq forms) {
+		int n=RT.count(forms);
+		Expression[] exps=new Expression[n];
+		int i=0;
+		for (ISeq s=RT.seq(forms); s!=null; s=s.next()) {
+			exps[i++]=analyse(env,s.first());
+		}
+		return exps;
+	}
 
 	private static Expression analyseVector(Environment env, IPersistentVector form) {
 		ArrayList<Expression> al=new ArrayList<Expression>();
@@ -174,8 +245,8 @@ public class Analyser {
 				Expression[] initials=new Expression[vc/2];
 				
 				for (int i=0; i<vc; i+=2) {
-					syms[i]=KissUtils.expectSymbol(v.nth(i));
-					initials[i+i]=analyse(env,v.nth(i+1));
+					syms[i/2]=KissUtils.expectSymbol(v.nth(i));
+					initials[i/2]=analyse(env,v.nth(i+1));
 				}
 				Expression body = analyse(env,RT.nth(form, 2));
 				return Loop.create(syms, initials, body);
@@ -245,23 +316,40 @@ public class Analyser {
 				
 				return Lambda.create(body,syms,types);
 			}
+			
+			if (s.equals(Symbols.DOT)) {
+				if (n<3) throw new KissException("Wrong number of forms in . expression: "+n);
+				Object member=RT.nth(form, 2);
+				ISeq args=RT.next(RT.next(RT.next(form)));
+				if (member instanceof ISeq) {
+					args=((ISeq)member).next();
+					member=((ISeq)member).first();
+				}
+				return analyseDot(env,RT.second(form),KissUtils.expectSymbol(member).getName(),args,true);
+			}
+			
+			String name=s.getName();
+			if ((s.getNamespace()==null)&&(name.length()>1)&&(name.charAt(0)=='.')&&(!s.equals(Symbols.DOTDOT))) {
+				if (n<2) throw new KissException("No target for method call: "+s);
+				return analyseDot(env,RT.second(form),name.substring(1),RT.next(RT.next(form)),false);
+			}
+			
+			if (s.getNamespace()!=null) {
+				Class<?> c=Interop.maybeClass(s.getNamespace());
+				if (c!=null) return MethodCall.createStatic(c, name, analyseForms(env,RT.next(form)));
+			}
 		} 
 		
 		Expression fn=analyse(env,first);
 		if (KissUtils.isMacro(fn)) {
 			// TODO: macro expend with expansion passing?
 			IFn macroFn=(IFn) fn.eval(Environment.EMPTY);
+			Events.macroExpanded();
 			Object expandedForm=macroFn.applyTo(RT.cons(form,RT.cons(PersistentHashMap.EMPTY, form.next())));
 			return analyse(env,expandedForm);
 		}
 		
-		ISeq paramSeq=RT.next(form);
-		int paramCount=RT.count(paramSeq);
-		Expression[] params=new Expression[paramCount];
-		int i=0;
-		for (ISeq s=RT.seq(paramSeq); s!=null; s=s.next()) {
-			params[i++]=analyse(env,s.first());
-		}
+		Expression[] params=analyseForms(env,RT.next(form));
 		
 		return Application.create(fn,params);
 		
@@ -1,22 +1,91 @@
 package kiss.lang;
 
+import kiss.lang.expression.GlobalLookup;
+import kiss.lang.expression.Lambda;
+import kiss.lang.impl.Events;
+import kiss.lang.impl.Inliner;
 import kiss.lang.impl.LambdaFn;
+import kiss.lang.impl.Linker;
+import kiss.lang.impl.Mapping;
+import kiss.lang.impl.Specialiser;
+import kiss.lang.pass.PassManager;
+import kiss.lang.type.Anything;
+import clojure.lang.IPersistentMap;
+import clojure.lang.IPersistentSet;
+import clojure.lang.ISeq;
+import clojure.lang.PersistentHashMap;
+import clojure.lang.RT;
+import clojure.lang.Symbol;
 
 /**
  * Kiss compiler
- * 
+ *
  * @author Mike
  *
  */
 public class Compiler {
 
 	public static KFn compile(Environment e, Expression ex) {
-		// TODO: handle macro expansion here? does this need an environment?
-		Expression opt = ex.optimise();
-		return LambdaFn.create(e, opt, Symbols.EMPTY_SYMBOL_ARRAY);
+		Object ev=Events.beginCompile();
+		KFn fn=compileExpression(e,ex);
+		Events.endCompile(ev, ex);
+		return fn;
 	}
 	
+	private static KFn compileExpression(Environment e, Expression ex) {
+		// TODO: handle macro expansion here? does this need an environment?
+		IPersistentSet free=ex.getFreeSymbols();
+		Linker linker=e.getLinker();
+		if ((linker==null)||(!linker.isHead(e))) {
+			// not linkable, so refine free symbols with their static types from the environment
+			// and substitute global functions so that they can be inlined or specialised
+			IPersistentMap fns=Specialiser.specialisableGlobals(e, free, Inliner.inlinableGlobals(e, free));
+			Expression opt = ex.refine(e.getTypes(free)).substitute(fns);
+			opt=markCompiled(PassManager.getDefault().run(opt));
+			return LambdaFn.createCompiled(e, opt, Symbols.EMPTY_SYMBOL_ARRAY);
+		}
+
+		// globals are linked live and may be redefined to values of any type, so their current
+		// types are not assumed
+		Expression opt = PassManager.getDefault().run(ex);
+		opt=markCompiled(opt.replace(links(e,linker,opt.getFreeSymbols())));
+		return LambdaFn.createCompiled(e, opt, Symbols.EMPTY_SYMBOL_ARRAY);
+	}
+
 	public static KFn compile(Expression ex) {
 		return compile(Environment.EMPTY,ex);
 	}
+
+	/**
+	 * Marks all Lambdas in compiled code, so that functions they create are counted as compiled
+	 */
+	private static Expression markCompiled(Expression x) {
+		Expression[] cs=x.getChildren();
+		boolean changed=false;
+		for (int i=0; i<cs.length; i++) {
+			Expression c=cs[i];
+			Expression nc=markCompiled(c);
+			if (nc!=c) {
+				cs[i]=nc;
+				changed=true;
+			}
+		}
+		if (changed) x=x.withChildren(cs);
+		if (x instanceof Lambda) x=((Lambda)x).withFromCompiler(true);
+		return x;
+	}
+
+	/**
+	 * Creates a Symbol -> GlobalLookup map for the bound symbols in the given set
+	 */
+	private static IPersistentMap links(Environment e, Linker linker, IPersistentSet syms) {
+		IPersistentMap links=PersistentHashMap.EMPTY;
+		for (ISeq s=RT.seq(syms); s!=null; s=s.next()) {
+			Symbol sym=(Symbol) s.first();
+			Mapping m=e.getMapping(sym);
+			if ((m==null)||(!m.isBound())) continue;
+			links=links.assoc(sym, GlobalLookup.create(linker, sym, Anything.INSTANCE));
+		}
+		return links;
+	}
 }
@@ -14,8 +14,11 @@ import clojure.lang.RT;
 import clojure.lang.Symbol;
 import kiss.lang.expression.Constant;
 import kiss.lang.impl.EvalResult;
+import kiss.lang.impl.Events;
 import kiss.lang.impl.KissException;
+import kiss.lang.impl.Linker;
 import kiss.lang.impl.Mapping;
+import kiss.lang.impl.Metrics;
 
 /**
  * This is the immutable environment used by the Kiss compiler
@@ -38,21 +41,80 @@ public final class Environment extends APersistentMap {
 	public final IPersistentMap map; // Symbol -> Mapping 
 	public final IPersistentMap dependencies; // Symbol -> set of Symbols
 	public final IPersistentMap dependents; // Symbol -> set of Symbols
+	private final Linker linker; // linker for compiled code, null for the empty environment
+	private final boolean lazy; // true if definitions are evaluated on first access
 
 	private Environment() {
-		this(PersistentHashMap.EMPTY,PersistentHashMap.EMPTY,PersistentHashMap.EMPTY);
+		this(PersistentHashMap.EMPTY,PersistentHashMap.EMPTY,PersistentHashMap.EMPTY,null,false);
 	}
 	
-	private Environment(IPersistentMap map, IPersistentMap deps, IPersistentMap backDeps) {
+	private Environment(IPersistentMap map, IPersistentMap deps, IPersistentMap backDeps, Linker linker, boolean lazy) {
 		this.map=map;
 		this.dependencies=deps;
 		this.dependents=backDeps;
+		this.linker=linker;
+		this.lazy=lazy;
+	}
+	
+	/**
+	 * Gets an Environment with the same definitions as this one, where later definitions are 
+	 * evaluated lazily, on first access to the value, or eagerly. Errors in lazy definitions are 
+	 * thrown on access rather than on definition. Environments derived from the result by define
+	 * or merge keep the setting.
+	 */
+	public Environment withLazy(boolean on) {
+		if (on==lazy) return this;
+		return new Environment(map,dependencies,dependents,linker,on);
+	}
+	
+	public boolean isLazy() {
+		return lazy;
+	}
+	
+	/**
+	 * Gets the Linker used to link compiled code to symbols in this Environment, or null if there is none
+	 */
+	public Linker getLinker() {
+		return linker;
+	}
+	
+	/**
+	 * Commits a new Environment derived from this one, where the given symbols have changed.
+	 * 
+	 * If this Environment is the latest in its Linker lineage, the new Environment continues the
+	 * lineage and only the changed symbols are relinked. Otherwise a new lineage is started. 
+	 */
+	private Environment commit(Environment next, IPersistentSet changed) {
+		if (linker==Linker.DETACHED) return next;
+		if ((linker!=null)&&linker.advance(this, next, changed)) return next;
+		
+		Linker l=new Linker();
+		Environment e=new Environment(next.map,next.dependencies,next.dependents,l,next.lazy);
+		l.init(e);
+		return e;
 	}
 	
 	public EvalResult withResult(Object value) {
 		return new EvalResult(this,value);
 	}
 	
+	/**
+	 * Creates an Environment with additional bindings of symbols to constant values, e.g. to capture
+	 * the local bindings of a closure. The result is detached from this Environment's Linker lineage.
+	 * 
+	 * @param bindings A map of symbols to values
+	 * @return
+	 */
+	public Environment bind(IPersistentMap bindings) {
+		if (bindings.count()==0) return this;
+		Environment e=(linker==Linker.DETACHED)?this:new Environment(map,dependencies,dependents,Linker.DETACHED,lazy);
+		for (ISeq s=bindings.seq(); s!=null; s=s.next()) {
+			Map.Entry<?,?> me=(Map.Entry<?,?>)s.first();
+			e=e.define((Symbol)me.getKey(),Constant.create(me.getValue()));
+		}
+		return e;
+	}
+	
 	/**
 	 * Redefine a symbol in this environment to a new Expression.
 	 * 
@@ -71,6 +133,31 @@ public final class Environment extends APersistentMap {
 			if (newBody!=body) newBody=newBody.optimise(); // re-optimise if needed
 			body=newBody;
 		}
+		return define(key,body,bindings,null);
+	}
+	
+	/**
+	 * Defines a symbol, using a precomputed Mapping for the body if one is given. 
+	 * 
+	 * A precomputed Mapping must come from an Environment in which every free symbol of the body 
+	 * had the same Mapping as in this Environment.
+	 */
+	Environment define(Symbol key, Expression body, IPersistentMap bindings, Mapping m) {
+		return define(key,body,bindings,m,true);
+	}
+	
+	/**
+	 * Defines a symbol like define, but without committing the result to this Environment's Linker
+	 * lineage. The result keeps this Environment's Linker, and its owner is responsible for
+	 * publishing it, see Linker.publish.
+	 */
+	Environment defineUncommitted(Symbol key, Expression body, Mapping m) {
+		return define(key,body,PersistentHashMap.EMPTY,m,false);
+	}
+	
+	private Environment define(Symbol key, Expression body, IPersistentMap bindings, Mapping m, boolean commit) {
+		Object ev=Events.beginDefine();
+		long start=Metrics.isEnabled()?System.nanoTime():0L;
 		
 		// manage dependency updates
 		IPersistentMap tempDependencies=this.dependencies;
@@ -85,6 +172,33 @@ public final class Environment extends APersistentMap {
 		tempDependencies=tempDependencies.assoc(key, free);
 		tempDependents=updateBackDeps(key,tempDependents,oldDeps,free);
 		
+		if (m==null) m=computeMapping(body,free,bindings);
+		Environment newEnv=new Environment(map.assoc(key, m),tempDependencies,tempDependents,linker,lazy);
+		
+		// get the set of symbols that depend directly or indirectly on the given key
+		IPersistentSet ss=newEnv.accumulateDependents(PersistentHashSet.EMPTY,key);
+		newEnv=updateDependents(newEnv,ss);
+		Environment result=commit?commit(newEnv,(IPersistentSet) ss.cons(key)):newEnv;
+		Events.endDefine(ev, key, ss.count());
+		if (Metrics.isEnabled()) Metrics.recordDefine(result, System.nanoTime()-start);
+		return result;
+	}
+	
+	/**
+	 * Gets an Environment with the same definitions as this one, linked by the given Linker
+	 */
+	Environment withLinker(Linker l) {
+		if (l==linker) return this;
+		return new Environment(map,dependencies,dependents,l,lazy);
+	}
+	
+	/**
+	 * Computes the Mapping for an Expression with the given free symbols in this environment.
+	 * 
+	 * The expression is evaluated if all free symbols can be bound, with the types of bound symbols 
+	 * used to refine the expression.
+	 */
+	private Mapping computeMapping(Expression body, IPersistentSet free, IPersistentMap bindings) {
 		// Compute which symbols cannot yet be bound from the current environment 
 		IPersistentSet unbound=free;
 		for (ISeq s=RT.seq(unbound);s!=null; s=s.next()) {
@@ -95,50 +209,89 @@ public final class Environment extends APersistentMap {
 		}
 		
 		if (unbound.count()==0) {
-			Result res=body.interpret(this, bindings);
+			Expression rbody=body.refine(getTypes(free));
+			if (lazy) return Mapping.createLazy(body, rbody.getType(), rbody, this, bindings);
+			Result res=rbody.interpret(this, bindings);
 			Object value=res.getResult();
-			Environment newEnv= new Environment(map.assoc(key, Mapping.createExpression(body, value, null)),tempDependencies,tempDependents);
-			
-			newEnv=updateDependents(newEnv,key);
-			
-			return newEnv;
+			return Mapping.createExpression(body, rbody.getType(), value, null);
 		} else {
-			return new Environment(map.assoc(key, Mapping.createExpression(body, null, unbound)),tempDependencies,tempDependents);	
+			return Mapping.createExpression(body, body.getType(), null, unbound);	
 		}
 	}
 	
-	@SuppressWarnings("unchecked")
-	private static Environment updateDependents(Environment e, Symbol key) {
-		// get the set of symbols that depend directly or indirectly on the given key
-		IPersistentSet ss = e.accumulateDependents(PersistentHashSet.EMPTY,key);
-		
+	/**
+	 * Gets a Symbol -> Type map of the static types of bound symbols in this Environment
+	 * 
+	 * @param syms A set of symbols, typically the free symbols of an expression
+	 * @return
+	 */
+	public IPersistentMap getTypes(IPersistentSet syms) {
+		IPersistentMap types=PersistentHashMap.EMPTY;
+		for (ISeq s=RT.seq(syms);s!=null; s=s.next()) {
+			Symbol sym=(Symbol) s.first();
+			Mapping m=getMapping(sym);
+			if ((m==null)||(!m.isBound())) continue;
+			types=types.assoc(sym, m.getType());
+		}
+		return types;
+	}
+	
+	/**
+	 * Recomputes the given set of dependent symbols, in dependency order.
+	 */
+	private static Environment updateDependents(Environment e, IPersistentSet ss) {
 		// check if there are any dependents
-		if (ss==PersistentHashSet.EMPTY) return e;
+		if (ss.count()==0) return e;
 		
-		for (Symbol s:((java.util.Collection<Symbol>)ss)) {
-			Mapping m=(Mapping) e.map.valAt(s);
-			IPersistentSet sunbound=m.getUnbound();
-			if (sunbound.count()==0) {
-				// TODO: update needed!
+		IPersistentMap map=e.map;
+		boolean progress=true;
+		while (progress) {
+			progress=false;
+			for (ISeq s=RT.seq(ss); s!=null; s=s.next()) {
+				Symbol sym=(Symbol) s.first();
+				IPersistentSet deps=(IPersistentSet) e.dependencies.valAt(sym);
+				if (containsAny(ss,deps)) continue; // wait for dependencies to be recomputed first
+				
+				Mapping m=e.getMapping(sym);
+				IPersistentSet free=(deps==null)?PersistentHashSet.EMPTY:deps;
+				map=map.assoc(sym, e.computeMapping(m.getExpression(),free,PersistentHashMap.EMPTY));
+				e=new Environment(map,e.dependencies,e.dependents,e.linker,e.lazy);
+				ss=ss.disjoin(sym);
+				progress=true;
 			}
 		}
+		// any remaining symbols are part of a dependency cycle, and cannot be bound
 		return e;
-		
+	}
+	
+	private static boolean containsAny(IPersistentSet set, IPersistentSet syms) {
+		for (ISeq s=RT.seq(syms); s!=null; s=s.next()) {
+			if (set.contains(s.first())) return true;
+		}
+		return false;
 	}
 	
 	@SuppressWarnings("unchecked")
 	private IPersistentSet accumulateDependents(IPersistentSet set, Symbol key) {
 		IPersistentSet ss=(IPersistentSet)(dependents.valAt(key));
-		if ((ss==null)||(ss==PersistentHashSet.EMPTY)) return set;
+		if ((ss==null)||(ss.count()==0)) return set;
 		for (Symbol s: ((java.util.Collection<Symbol>)ss)) {
 			if (!set.contains(s)) {
 				set=(IPersistentSet) set.cons(s);
-				accumulateDependents(set,s);
+				set=accumulateDependents(set,s);
 			}
 		}
 		return set;
 	}
 	
+	/**
+	 * Gets the set of symbols whose Mappings were changed by defining the given key to produce this 
+	 * Environment, i.e. the key and everything that depends on it
+	 */
+	IPersistentSet changedBy(Symbol key) {
+		return (IPersistentSet) accumulateDependents(PersistentHashSet.EMPTY,key).cons(key);
+	}
+	
 	private boolean isBound(Symbol sym) {
 		Object m= map.valAt(sym);
 		if (m==null) return false;
@@ -178,7 +331,7 @@ public final class Environment extends APersistentMap {
 	public IPersistentMap without(Object key) {
 		Mapping m=getMapping(key);
 		if (m==null) return this;
-		return new Environment(map.without(key),dependencies,dependents);
+		return commit(new Environment(map.without(key),dependencies,dependents,linker,lazy),(IPersistentSet) PersistentHashSet.EMPTY.cons(key));
 	}
 	
 	@Override
@@ -230,20 +383,88 @@ public final class Environment extends APersistentMap {
 	}
 	
 	/**
-	 * Merges a second environment into this one
+	 * Merges a second environment into this one. Equivalent to defining each symbol of the second 
+	 * environment in turn, but structural:
+	 *  - Mappings are reused where all their dependencies have the same Mappings in the result
+	 *  - Dependency graphs are merged with one update per symbol of the second environment
+	 *  - Only symbols whose inputs differ, and their dependents, are recomputed
 	 * @param e
 	 * @return
 	 */
-	@SuppressWarnings("unchecked")
 	public Environment merge(Environment e) {
-		Environment result=this;
-		for (Object o : e.map) {
-			Map.Entry<Symbol, Mapping> ent=(Entry<Symbol, Mapping>) o;
-			result=result.define(ent.getKey(), ent.getValue().getExpression());
+		if ((e.map.count()==0)||(e==this)) return this;
+		Object ev=Events.beginMerge();
+		IPersistentMap newMap=map;
+		IPersistentMap newDeps=dependencies;
+		IPersistentMap newBackDeps=dependents;
+		IPersistentSet changed=PersistentHashSet.EMPTY;
+		
+		// take Mappings and dependencies from e
+		for (ISeq s=e.map.seq(); s!=null; s=s.next()) {
+			Map.Entry<?,?> me=(Map.Entry<?,?>)s.first();
+			Symbol key=(Symbol)me.getKey();
+			Mapping m=(Mapping)me.getValue();
+			if (m==map.valAt(key)) continue;
+			newMap=newMap.assoc(key, m);
+			changed=(IPersistentSet) changed.cons(key);
+			
+			IPersistentSet oldDeps=(IPersistentSet) dependencies.valAt(key);
+			if (oldDeps==null) oldDeps=PersistentHashSet.EMPTY;
+			IPersistentSet deps=(IPersistentSet) e.dependencies.valAt(key);
+			if (deps==null) deps=PersistentHashSet.EMPTY;
+			newDeps=newDeps.assoc(key, deps);
+			if (!deps.equiv(oldDeps)) newBackDeps=updateBackDeps(key,newBackDeps,oldDeps,deps);
+		}
+		if (changed.count()==0) {
+			Events.endMerge(ev, e.map.count());
+			return this;
+		}
+		Environment newEnv=new Environment(newMap,newDeps,newBackDeps,linker,lazy);
+		
+		// find Mappings computed from inputs which differ in the result
+		IPersistentSet stale=PersistentHashSet.EMPTY;
+		for (ISeq s=RT.seq(changed); s!=null; s=s.next()) {
+			Symbol key=(Symbol)s.first();
+			IPersistentSet deps=(IPersistentSet) newDeps.valAt(key);
+			for (ISeq d=RT.seq(deps); d!=null; d=d.next()) {
+				Object sym=d.first();
+				if (newMap.valAt(sym)!=e.map.valAt(sym)) {
+					stale=(IPersistentSet) stale.cons(key);
+					break;
+				}
+			}
+			
+			// symbols from this environment that depend on a changed symbol
+			IPersistentSet ds=(IPersistentSet) newBackDeps.valAt(key);
+			for (ISeq d=RT.seq(ds); d!=null; d=d.next()) {
+				Object sym=d.first();
+				if (!e.map.containsKey(sym)) stale=(IPersistentSet) stale.cons(sym);
+			}
+		}
+		
+		IPersistentSet ss=stale;
+		for (ISeq s=RT.seq(stale); s!=null; s=s.next()) {
+			ss=newEnv.accumulateDependents(ss,(Symbol)s.first());
+		}
+		newEnv=updateDependents(newEnv,ss);
+		for (ISeq s=RT.seq(ss); s!=null; s=s.next()) {
+			changed=(IPersistentSet) changed.cons(s.first());
 		}
+		Environment result=commit(newEnv,changed);
+		Events.endMerge(ev, e.map.count());
 		return result;
 	}
 
+	/**
+	 * Gets the changes from this Environment to another, typically a later version. The cost is
+	 * proportional to the number of changes where both share structure.
+	 * @param e
+	 * @return
+	 */
+	public EnvironmentDiff diff(Environment e) {
+		return EnvironmentDiff.create(this, e);
+	}
+
 	@Override
 	public boolean containsKey(Object key) {
 		return map.containsKey(key);
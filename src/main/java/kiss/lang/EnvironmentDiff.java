@@ -0,0 +1,120 @@
+package kiss.lang;
+
+import kiss.lang.impl.MapDiff;
+import kiss.lang.impl.Mapping;
+import clojure.lang.IPersistentSet;
+import clojure.lang.ISeq;
+import clojure.lang.PersistentHashSet;
+import clojure.lang.RT;
+import clojure.lang.Symbol;
+
+/**
+ * The changes between two versions of an Environment.
+ *
+ * Design intent:
+ * - Computed from the structure shared by both versions, so the cost is proportional to the
+ *   number of changed symbols rather than to the size of the Environment
+ * - Redefined symbols have a different expression. Recomputed symbols have the same expression
+ *   with a new Mapping, e.g. because a dependency was redefined, so their values may differ.
+ *
+ * @author Mike
+ *
+ */
+public final class EnvironmentDiff {
+	private IPersistentSet added=PersistentHashSet.EMPTY;
+	private IPersistentSet removed=PersistentHashSet.EMPTY;
+	private IPersistentSet redefined=PersistentHashSet.EMPTY;
+	private IPersistentSet recomputed=PersistentHashSet.EMPTY;
+
+	private EnvironmentDiff() {
+		// built by create
+	}
+
+	/**
+	 * Gets the changes from one Environment to another
+	 */
+	public static EnvironmentDiff create(Environment from, Environment to) {
+		final EnvironmentDiff d=new EnvironmentDiff();
+		MapDiff.diff(from.map, to.map, new MapDiff.Visitor() {
+			@Override
+			public void added(Object key, Object val) {
+				d.added=(IPersistentSet) d.added.cons(key);
+			}
+
+			@Override
+			public void removed(Object key, Object val) {
+				d.removed=(IPersistentSet) d.removed.cons(key);
+			}
+
+			@Override
+			public void changed(Object key, Object oldVal, Object newVal) {
+				Expression oldEx=((Mapping)oldVal).getExpression();
+				Expression newEx=((Mapping)newVal).getExpression();
+				if ((oldEx==newEx)||oldEx.equals(newEx)) {
+					d.recomputed=(IPersistentSet) d.recomputed.cons(key);
+				} else {
+					d.redefined=(IPersistentSet) d.redefined.cons(key);
+				}
+			}
+		});
+		return d;
+	}
+
+	/**
+	 * Gets the set of symbols defined only in the newer Environment
+	 */
+	public IPersistentSet getAdded() {
+		return added;
+	}
+
+	/**
+	 * Gets the set of symbols defined only in the older Environment
+	 */
+	public IPersistentSet getRemoved() {
+		return removed;
+	}
+
+	/**
+	 * Gets the set of symbols defined with a different expression in the newer Environment
+	 */
+	public IPersistentSet getRedefined() {
+		return redefined;
+	}
+
+	/**
+	 * Gets the set of symbols with the same expression but a new Mapping in the newer Environment
+	 */
+	public IPersistentSet getRecomputed() {
+		return recomputed;
+	}
+
+	/**
+	 * Gets the set of all added, removed, redefined and recomputed symbols
+	 */
+	public IPersistentSet getChanged() {
+		IPersistentSet s=added;
+		IPersistentSet[] others={removed,redefined,recomputed};
+		for (IPersistentSet o: others) {
+			for (ISeq q=RT.seq(o); q!=null; q=q.next()) {
+				s=(IPersistentSet) s.cons(q.first());
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Returns true if the symbol was added, removed, redefined or recomputed
+	 */
+	public boolean isChanged(Symbol sym) {
+		return added.contains(sym)||removed.contains(sym)||redefined.contains(sym)||recomputed.contains(sym);
+	}
+
+	public boolean isEmpty() {
+		return (added.count()+removed.count()+redefined.count()+recomputed.count())==0;
+	}
+
+	@Override
+	public String toString() {
+		return "{:added "+added+" :removed "+removed+" :redefined "+redefined+" :recomputed "+recomputed+"}";
+	}
+}
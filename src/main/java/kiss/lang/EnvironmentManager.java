@@ -0,0 +1,263 @@
+package kiss.lang;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import kiss.lang.expression.Def;
+import kiss.lang.impl.EvalResult;
+import kiss.lang.impl.Linker;
+import kiss.lang.impl.Mapping;
+import clojure.lang.IPersistentMap;
+import clojure.lang.IPersistentSet;
+import clojure.lang.ISeq;
+import clojure.lang.RT;
+import clojure.lang.Symbol;
+
+/**
+ * Manages a shared Environment that many threads can define into concurrently.
+ *
+ * Design intent:
+ * - Writers compute a definition against a snapshot, then publish it with a CAS
+ * - Each commit records the set of symbols it changed, so a writer that loses a race can tell
+ *   which symbols changed since its snapshot
+ * - On conflict, the computed Mapping for a definition is reused if none of its free symbols
+ *   changed. Only the dependency update and the recomputation of dependents are redone.
+ * - Forms are analysed once, since analysis does not depend on the Environment
+ * - After MAX_OPTIMISTIC_RETRIES conflicts a writer takes a lock, so that writers with
+ *   expensive definitions cannot starve each other indefinitely
+ * - Managed Environments share a managed Linker. Definitions are computed without committing to
+ *   the Linker, and only published to it after a successful CAS, so compiled code never links to
+ *   an Environment that lost a race.
+ *
+ * @author Mike
+ *
+ */
+public final class EnvironmentManager {
+	/**
+	 * Number of commits for which changed symbol sets are kept
+	 */
+	private static final int MAX_HISTORY=64;
+
+	private static final int MAX_OPTIMISTIC_RETRIES=8;
+
+	private final AtomicReference<Commit> head;
+	private final Linker linker;
+	private final Object lock=new Object();
+
+	private final AtomicLong commits=new AtomicLong();
+	private final AtomicLong conflicts=new AtomicLong();
+	private final AtomicLong reused=new AtomicLong();
+
+	/**
+	 * A committed Environment, with the symbols changed relative to the previous commit
+	 */
+	private static final class Commit {
+		private final Environment env;
+		private final IPersistentSet changed; // null if unknown
+		private volatile Commit prev;
+
+		private Commit(Environment env, IPersistentSet changed, Commit prev) {
+			this.env=env;
+			this.changed=changed;
+			this.prev=prev;
+		}
+	}
+
+	private EnvironmentManager(Environment e) {
+		linker=Linker.createManaged();
+		e=e.withLinker(linker);
+		linker.init(e);
+		head=new AtomicReference<Commit>(new Commit(e,null,null));
+	}
+
+	public static EnvironmentManager create(Environment e) {
+		return new EnvironmentManager(e);
+	}
+
+	public static EnvironmentManager create() {
+		return create(Environment.EMPTY);
+	}
+
+	/**
+	 * Gets the current Environment
+	 */
+	public Environment getEnvironment() {
+		return head.get().env;
+	}
+
+	/**
+	 * Defines a symbol in the shared Environment
+	 *
+	 * @return The Environment produced by this definition
+	 */
+	public Environment define(Symbol sym, Expression body) {
+		Commit snap=head.get();
+		Environment next=snap.env.defineUncommitted(sym, body, null);
+		IPersistentSet free=body.getFreeSymbols();
+		for (int attempt=0; ; attempt++) {
+			Commit c=new Commit(next,next.changedBy(sym),snap);
+			if (head.compareAndSet(snap, c)) {
+				committed(snap,c);
+				return next;
+			}
+			conflicts.incrementAndGet();
+			if (attempt>=MAX_OPTIMISTIC_RETRIES) return defineLocked(sym,body);
+
+			Commit current=head.get();
+			IPersistentSet changed=changedSince(current,snap);
+			Mapping m=null;
+			if ((changed!=null)&&(!intersects(changed,free))) {
+				m=next.getMapping(sym); // still valid, since no free symbol has changed
+				reused.incrementAndGet();
+			}
+			snap=current;
+			next=snap.env.defineUncommitted(sym, body, m);
+		}
+	}
+
+	/**
+	 * Analyses a form and defines a symbol to the result in the shared Environment
+	 */
+	public Environment define(Symbol sym, Object form) {
+		return define(sym, Analyser.analyse(getEnvironment(), form));
+	}
+
+	/**
+	 * Analyses and evaluates a form against the shared Environment, committing any changes it makes.
+	 *
+	 * Top level def forms use the conflict-aware define. Other forms are re-evaluated in full
+	 * on conflict, so they should not have side effects outside the Environment.
+	 */
+	public Result evaluate(Object form) {
+		Expression x=Analyser.analyse(getEnvironment(), form);
+		if (x instanceof Def) {
+			Def d=(Def)x;
+			Environment e=define(d.getSymbol(), d.getBody());
+			return new EvalResult(e);
+		}
+		for (int attempt=0; ; attempt++) {
+			Commit snap=head.get();
+			Result r=x.interpret(snap.env);
+			Commit c=evaluated(snap,r);
+			if (c==null) return r;
+			if (head.compareAndSet(snap, c)) {
+				committed(snap,c);
+				return c.env.withResult(r.getResult());
+			}
+			conflicts.incrementAndGet();
+			if (attempt>=MAX_OPTIMISTIC_RETRIES) {
+				synchronized (lock) {
+					return evaluateLocked(x);
+				}
+			}
+		}
+	}
+
+	private Result evaluateLocked(Expression x) {
+		while (true) {
+			Commit snap=head.get();
+			Result r=x.interpret(snap.env);
+			Commit c=evaluated(snap,r);
+			if (c==null) return r;
+			if (head.compareAndSet(snap, c)) {
+				committed(snap,c);
+				return c.env.withResult(r.getResult());
+			}
+			conflicts.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Creates a Commit for the result of evaluating an expression against a snapshot, or returns
+	 * null if the Environment is unchanged.
+	 * 
+	 * Definitions made during evaluation commit to a new Linker lineage, so the result is moved
+	 * back into the managed lineage, with the changed symbols found by a diff.
+	 */
+	private Commit evaluated(Commit snap, Result r) {
+		Environment next=r.getEnvironment();
+		if ((next==snap.env)||(next==null)) return null;
+		next=next.withLinker(linker);
+		return new Commit(next,snap.env.diff(next).getChanged(),snap);
+	}
+
+	private Environment defineLocked(Symbol sym, Expression body) {
+		synchronized (lock) {
+			while (true) {
+				Commit snap=head.get();
+				Environment next=snap.env.defineUncommitted(sym, body, null);
+				Commit c=new Commit(next,next.changedBy(sym),snap);
+				if (head.compareAndSet(snap, c)) {
+					committed(snap,c);
+					return next;
+				}
+				conflicts.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Publishes a successful commit to the Linker, and trims the history
+	 */
+	private void committed(Commit snap, Commit c) {
+		linker.publish(snap.env, c.env, c.changed);
+		commits.incrementAndGet();
+		for (int i=0; i<MAX_HISTORY; i++) {
+			c=c.prev;
+			if (c==null) return;
+		}
+		c.prev=null;
+	}
+
+	/**
+	 * Gets the union of symbols changed by commits after snap up to current, or null if unknown
+	 */
+	private static IPersistentSet changedSince(Commit current, Commit snap) {
+		IPersistentSet changed=null;
+		for (Commit c=current; c!=snap; c=c.prev) {
+			if ((c==null)||(c.changed==null)) return null;
+			if (changed==null) {
+				changed=c.changed;
+			} else {
+				for (ISeq s=RT.seq(c.changed); s!=null; s=s.next()) {
+					changed=(IPersistentSet) changed.cons(s.first());
+				}
+			}
+		}
+		return changed;
+	}
+
+	private static boolean intersects(IPersistentSet a, IPersistentSet b) {
+		for (ISeq s=RT.seq(b); s!=null; s=s.next()) {
+			if (a.contains(s.first())) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the number of successful commits
+	 */
+	public long getCommits() {
+		return commits.get();
+	}
+
+	/**
+	 * Gets the number of failed commit attempts
+	 */
+	public long getConflicts() {
+		return conflicts.get();
+	}
+
+	/**
+	 * Gets the number of conflicts where the computed Mapping could be reused
+	 */
+	public long getReusedMappings() {
+		return reused.get();
+	}
+
+	@Override
+	public String toString() {
+		IPersistentMap m=getEnvironment();
+		return "EnvironmentManager["+m.count()+" symbols]";
+	}
+}
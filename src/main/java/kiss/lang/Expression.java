@@ -20,6 +20,7 @@ import kiss.lang.impl.KissUtils;
  *
  */
 public abstract class Expression {
+	protected static final Expression[] NO_CHILDREN=new Expression[0];
 
 	/**
 	 * Gets the result type of the expression. Evaluation of an expression is guaranteed to return
@@ -43,6 +44,33 @@ public abstract class Expression {
 	 */
 	public abstract Expression substitute(IPersistentMap bindings);
 	
+	/**
+	 * Specialises an expression using the given Symbol -> Type map of known local types.
+	 * 
+	 * Used for flow-sensitive type inference, e.g. narrowing the type of a local within
+	 * the branches of a conditional. Must return the same expression if no refinement 
+	 * can be performed.
+	 * 
+	 * @param types A map of symbols to Types
+	 * @return
+	 */
+	public Expression refine(IPersistentMap types) {
+		return this;
+	}
+	
+	/**
+	 * Replaces free symbols in an expression using the given Symbol -> Expression map.
+	 * 
+	 * Symbols bound locally within the expression are not replaced. Must return the same 
+	 * expression if no replacement is performed.
+	 * 
+	 * @param replacements A map of symbols to Expressions
+	 * @return
+	 */
+	public Expression replace(IPersistentMap replacements) {
+		return this;
+	}
+	
 	/**
 	 * Optimises this expression. Performs constant folding, etc.
 	 * @return An optimised Expression
@@ -127,6 +155,45 @@ public abstract class Expression {
 		return false;
 	}
 
+	/**
+	 * Gets the direct sub-expressions of this expression, in evaluation order where defined.
+	 * 
+	 * Used for generic traversal by optimisation passes. Returns a new array, which may be modified.
+	 * @return
+	 */
+	public Expression[] getChildren() {
+		return NO_CHILDREN;
+	}
+	
+	/**
+	 * Creates an equivalent expression with the given sub-expressions, in the same order as getChildren().
+	 * 
+	 * Must return the same expression if all children are identical.
+	 * @param children
+	 * @return
+	 */
+	public Expression withChildren(Expression[] children) {
+		return this;
+	}
+	
+	/**
+	 * Gets the size of this expression as a count of nodes, including all sub-expressions
+	 * @return
+	 */
+	public int getSize() {
+		return 1;
+	}
+	
+	/**
+	 * Returns true if evaluation of this expression may exit its enclosing function via return or recur.
+	 * 
+	 * Exits from within nested lambdas are not included.
+	 * @return
+	 */
+	public boolean canExit() {
+		return false;
+	}
+
 	/**
 	 * Gets the free symbols in an Expression, conj'ing them onto a given persistent set
 	 * @param s
@@ -0,0 +1,249 @@
+package kiss.lang;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import kiss.lang.impl.KissException;
+import kiss.lang.impl.KissUtils;
+import clojure.lang.ISeq;
+import clojure.lang.RT;
+import clojure.lang.Symbol;
+import clojure.lang.Util;
+
+/**
+ * Reloads Kiss source files into an EnvironmentManager when they change.
+ *
+ * Design intent:
+ * - Files are watched with a WatchService, on a single daemon thread
+ * - On reload, top level def forms are matched to the forms previously loaded for the same
+ *   symbol by hash, and only changed definitions are redefined. Dependents are then recomputed
+ *   incrementally by the Environment.
+ * - Other top level forms are evaluated when first seen, and again only if their content changes
+ * - Symbols whose def forms are deleted from a file remain defined
+ * - A form that fails to evaluate is retried on the next reload of its file
+ *
+ * @author Mike
+ *
+ */
+public final class HotReloader implements Closeable {
+	private final EnvironmentManager manager;
+	private final ConcurrentHashMap<Path,FileState> files=new ConcurrentHashMap<Path,FileState>();
+	private final ConcurrentHashMap<Path,WatchKey> dirs=new ConcurrentHashMap<Path,WatchKey>();
+	private WatchService watcher;
+	private Thread thread;
+
+	private final AtomicLong reloads=new AtomicLong();
+	private final AtomicLong evaluated=new AtomicLong();
+	private volatile Throwable lastError;
+
+	/**
+	 * Forms loaded from a single file
+	 */
+	private static final class FileState {
+		private HashMap<Symbol,Object> defs=new HashMap<Symbol,Object>();
+		private HashSet<Object> others=new HashSet<Object>();
+	}
+
+	private HotReloader(EnvironmentManager manager) {
+		this.manager=manager;
+	}
+
+	public static HotReloader create(EnvironmentManager manager) {
+		return new HotReloader(manager);
+	}
+
+	public EnvironmentManager getManager() {
+		return manager;
+	}
+
+	/**
+	 * Loads a file, and reloads it whenever it changes while this HotReloader is running
+	 */
+	public synchronized void watch(Path file) throws IOException {
+		file=file.toAbsolutePath().normalize();
+		if (files.putIfAbsent(file, new FileState())!=null) return;
+		Path dir=file.getParent();
+		if (!dirs.containsKey(dir)) {
+			WatchKey key=dir.register(watcher(),
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+			dirs.put(dir, key);
+		}
+		reload(file);
+	}
+
+	private synchronized WatchService watcher() throws IOException {
+		if (watcher==null) watcher=FileSystems.getDefault().newWatchService();
+		return watcher;
+	}
+
+	/**
+	 * Reloads a watched file, evaluating only forms that have changed since the last load
+	 *
+	 * @return The number of forms evaluated
+	 */
+	public int reload(Path file) throws IOException {
+		file=file.toAbsolutePath().normalize();
+		FileState state=files.get(file);
+		if (state==null) throw new KissException("File is not being watched: "+file);
+
+		List<Object> forms;
+		Reader r=Files.newBufferedReader(file, StandardCharsets.UTF_8);
+		try {
+			forms=KissUtils.readAll(r);
+		} finally {
+			r.close();
+		}
+
+		synchronized (state) {
+			reloads.incrementAndGet();
+			int n=0;
+			HashSet<Object> others=new HashSet<Object>();
+			boolean done=false;
+			try {
+				for (Object form: forms) {
+					Symbol sym=defSymbol(form);
+					if (sym!=null) {
+						Object old=state.defs.get(sym);
+						if ((old!=null)&&(Util.hasheq(old)==Util.hasheq(form))&&Util.equiv(old, form)) continue;
+						manager.evaluate(form);
+						state.defs.put(sym, form);
+					} else {
+						if (state.others.contains(form)) {
+							others.add(form);
+							continue;
+						}
+						manager.evaluate(form);
+						others.add(form);
+					}
+					n++;
+				}
+				done=true;
+			} finally {
+				// after an error, keep forms not yet reached so they are not evaluated again
+				if (!done) others.addAll(state.others);
+				state.others=others;
+				evaluated.addAndGet(n);
+			}
+			return n;
+		}
+	}
+
+	/**
+	 * Gets the symbol defined by a top level (def sym body) form, or null if the form is not a def
+	 */
+	private static Symbol defSymbol(Object form) {
+		if (!(form instanceof ISeq)) return null;
+		ISeq s=(ISeq)form;
+		if (!Symbols.DEF.equals(s.first())) return null;
+		if (RT.count(s)!=3) return null;
+		Object sym=RT.second(s);
+		return (sym instanceof Symbol)?(Symbol)sym:null;
+	}
+
+	/**
+	 * Starts watching for changes on a daemon thread
+	 */
+	public synchronized void start() throws IOException {
+		if (thread!=null) return;
+		final WatchService ws=watcher();
+		thread=new Thread(new Runnable() {
+			@Override
+			public void run() {
+				process(ws);
+			}
+		}, "kiss-hot-reload");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void process(WatchService ws) {
+		try {
+			while (true) {
+				WatchKey key=ws.take();
+				Path dir=(Path)key.watchable();
+
+				// collect changed files first, since editors often report several events per save
+				Set<Path> changed=new LinkedHashSet<Path>();
+				for (WatchEvent<?> ev: key.pollEvents()) {
+					if (ev.kind()==StandardWatchEventKinds.OVERFLOW) {
+						for (Path f: files.keySet()) {
+							if (f.getParent().equals(dir)) changed.add(f);
+						}
+					} else {
+						Path f=dir.resolve((Path)ev.context());
+						if (files.containsKey(f)) changed.add(f);
+					}
+				}
+				key.reset();
+
+				for (Path f: changed) {
+					try {
+						reload(f);
+					} catch (Throwable t) {
+						lastError=t; // keep watching after errors in a file
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		} catch (ClosedWatchServiceException e) {
+			// closed
+		}
+	}
+
+	/**
+	 * Stops watching files
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (thread!=null) {
+			thread.interrupt();
+			thread=null;
+		}
+		if (watcher!=null) {
+			watcher.close();
+			watcher=null;
+		}
+		dirs.clear();
+		files.clear();
+	}
+
+	/**
+	 * Gets the number of times files have been reloaded
+	 */
+	public long getReloads() {
+		return reloads.get();
+	}
+
+	/**
+	 * Gets the total number of forms evaluated over all reloads
+	 */
+	public long getEvaluated() {
+		return evaluated.get();
+	}
+
+	/**
+	 * Gets the last error thrown while reloading on the watch thread, or null if there was none
+	 */
+	public Throwable getLastError() {
+		return lastError;
+	}
+}
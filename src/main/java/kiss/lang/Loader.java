@@ -0,0 +1,260 @@
+package kiss.lang;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import kiss.lang.impl.KissException;
+import clojure.lang.IMeta;
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.LineNumberingPushbackReader;
+import clojure.lang.LispReader;
+
+/**
+ * Loads a stream of Kiss source forms into an Environment.
+ *
+ * Design intent:
+ * - Forms are read incrementally on a reader thread, and analysed on worker threads ahead of
+ *   evaluation. Analysis does not depend on the Environment, so it can run before earlier forms
+ *   are evaluated.
+ * - Analysed forms are evaluated in source order on the calling thread, so each form sees the
+ *   definitions of all previous forms
+ * - A bounded queue of pending forms applies backpressure to the reader, so memory use does not
+ *   grow with the size of the source
+ * - Errors are reported with the line of the form that caused them, and stop the load. The reader
+ *   thread reads no further forms, and load waits for it to finish before returning
+ *
+ * @author Mike
+ *
+ */
+public final class Loader {
+	private static final int DEFAULT_QUEUE_SIZE=64;
+
+	// maximum time to wait for a reader thread blocked in a read that cannot be interrupted
+	private static final long READER_STOP_MILLIS=1000;
+
+	private static final Keyword LINE=Keyword.intern(null,"line");
+
+	private final int threads;
+	private final int queueSize;
+
+	/**
+	 * An analysed form, or the end of the source
+	 */
+	private static final class Pending {
+		private final Future<Expression> expression; // null at end of source
+		private final int line;
+
+		private Pending(Future<Expression> expression, int line) {
+			this.expression=expression;
+			this.line=line;
+		}
+	}
+
+	private Loader(int threads, int queueSize) {
+		if (threads<1) throw new KissException("Loader needs at least one analysis thread");
+		if (queueSize<1) throw new KissException("Loader queue size must be positive");
+		this.threads=threads;
+		this.queueSize=queueSize;
+	}
+
+	/**
+	 * Creates a Loader with the given number of analysis threads, and at most queueSize forms
+	 * read ahead of evaluation
+	 */
+	public static Loader create(int threads, int queueSize) {
+		return new Loader(threads,queueSize);
+	}
+
+	public static Loader create() {
+		int cpus=Runtime.getRuntime().availableProcessors();
+		return create(Math.max(1, cpus-1),DEFAULT_QUEUE_SIZE);
+	}
+
+	/**
+	 * Loads all forms from a file
+	 */
+	public Environment load(Environment env, Path file) throws IOException {
+		Reader r=Files.newBufferedReader(file, StandardCharsets.UTF_8);
+		try {
+			return load(env,r);
+		} finally {
+			r.close();
+		}
+	}
+
+	/**
+	 * Loads all forms from a channel of UTF-8 source. The channel is not closed, unless the load
+	 * fails while the channel is being read.
+	 */
+	public Environment load(Environment env, ReadableByteChannel channel) {
+		return load(env,Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder(), -1));
+	}
+
+	/**
+	 * Loads all forms from a Reader. The Reader is not closed.
+	 *
+	 * If the load fails, no further forms are read and load waits for any read in progress to
+	 * complete. A read that blocks and cannot be interrupted is abandoned after a timeout, in
+	 * which case the caller must close the Reader to release the reader thread.
+	 *
+	 * @return The Environment after evaluating every form
+	 */
+	public Environment load(Environment env, Reader reader) {
+		final AtomicBoolean stopped=new AtomicBoolean(false);
+		final LineNumberingPushbackReader r=new LineNumberingPushbackReader(new StoppableReader(reader,stopped));
+		if (reader instanceof LineNumberingPushbackReader) r.setLineNumber(((LineNumberingPushbackReader)reader).getLineNumber());
+		final BlockingQueue<Pending> queue=new ArrayBlockingQueue<Pending>(queueSize);
+		final ExecutorService workers=Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread t=new Thread(task, "kiss-loader");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		final Environment analysisEnv=env;
+		Thread readerThread=new Thread(new Runnable() {
+			@Override
+			public void run() {
+				read(r,queue,workers,analysisEnv,stopped);
+			}
+		}, "kiss-loader-reader");
+		readerThread.setDaemon(true);
+		readerThread.start();
+
+		try {
+			while (true) {
+				Pending p=queue.take();
+				if (p.expression==null) return env;
+				try {
+					env=p.expression.get().interpret(env).getEnvironment();
+				} catch (ExecutionException e) {
+					throw new KissException("Error loading form at line "+p.line, e.getCause());
+				} catch (RuntimeException e) {
+					throw new KissException("Error loading form at line "+p.line, e);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new KissException("Interrupted while loading",e);
+		} finally {
+			stopped.set(true);
+			readerThread.interrupt();
+			workers.shutdownNow();
+			stop(readerThread);
+		}
+	}
+
+	/**
+	 * Waits for the reader thread to finish, preserving the interrupt status of the caller
+	 */
+	private static void stop(Thread readerThread) {
+		boolean interrupted=false;
+		long deadline=System.currentTimeMillis()+READER_STOP_MILLIS;
+		long remaining=READER_STOP_MILLIS;
+		while (readerThread.isAlive()&&(remaining>0)) {
+			try {
+				readerThread.join(remaining);
+			} catch (InterruptedException e) {
+				interrupted=true;
+			}
+			remaining=deadline-System.currentTimeMillis();
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Reader that reaches end of source once the load is stopped, so the reader thread stops
+	 * reading part way through a form
+	 */
+	private static final class StoppableReader extends Reader {
+		private final Reader source;
+		private final AtomicBoolean stopped;
+
+		private StoppableReader(Reader source, AtomicBoolean stopped) {
+			this.source=source;
+			this.stopped=stopped;
+		}
+
+		@Override
+		public int read(char[] buf, int off, int len) throws IOException {
+			if (stopped.get()) return -1;
+			return source.read(buf, off, len);
+		}
+
+		@Override
+		public void close() {
+			// the source belongs to the caller
+		}
+	}
+
+	/**
+	 * Gets the line number of a form from its metadata, if available
+	 */
+	private static int lineOf(Object form, int line) {
+		if (!(form instanceof IMeta)) return line;
+		IPersistentMap meta=((IMeta)form).meta();
+		Object l=(meta==null)?null:meta.valAt(LINE);
+		return (l instanceof Number)?((Number)l).intValue():line;
+	}
+
+	/**
+	 * Reads forms and submits them for analysis, until the end of the source or until the load
+	 * is stopped
+	 */
+	private static void read(LineNumberingPushbackReader r, BlockingQueue<Pending> queue, ExecutorService workers, final Environment env, AtomicBoolean stopped) {
+		Object eof=new Object();
+		try {
+			while (true) {
+				int line=r.getLineNumber();
+				Future<Expression> x;
+				try {
+					final Object form=LispReader.read(r, false, eof, false);
+					if (stopped.get()) return;
+					if (form==eof) break;
+					x=workers.submit(new Callable<Expression>() {
+						@Override
+						public Expression call() {
+							return Analyser.analyse(env, form);
+						}
+					});
+				} catch (final Throwable e) {
+					if (stopped.get()) return;
+					// report read errors in order, after all preceding forms. Errors such as
+					// StackOverflowError on deeply nested forms must be reported too, or load 
+					// would wait forever.
+					FutureTask<Expression> failed=new FutureTask<Expression>(new Callable<Expression>() {
+						@Override
+						public Expression call() throws Exception {
+							if (e instanceof Error) throw (Error)e;
+							throw (Exception)e;
+						}
+					});
+					failed.run();
+					queue.put(new Pending(failed,line));
+					return;
+				}
+				queue.put(new Pending(x,line));
+			}
+			queue.put(new Pending(null,r.getLineNumber()));
+		} catch (InterruptedException e) {
+			// load finished or failed
+		}
+	}
+}
@@ -1,12 +1,19 @@
 package kiss.lang.expression;
 
+import java.util.Arrays;
+
 import kiss.lang.Environment;
 import kiss.lang.Expression;
 import kiss.lang.Result;
 import kiss.lang.Type;
 import kiss.lang.impl.EvalResult;
+import kiss.lang.impl.Inliner;
 import kiss.lang.impl.KissException;
 import kiss.lang.impl.KissUtils;
+import kiss.lang.impl.LambdaFn;
+import kiss.lang.impl.Parallel;
+import kiss.lang.impl.Specialiser;
+import kiss.lang.impl.TailCallResult;
 import kiss.lang.type.AFunctionType;
 import kiss.lang.type.FunctionType;
 import kiss.lang.type.Reference;
@@ -14,6 +21,7 @@ import clojure.lang.ArraySeq;
 import clojure.lang.IFn;
 import clojure.lang.IPersistentMap;
 import clojure.lang.IPersistentSet;
+import clojure.lang.Keyword;
 import clojure.lang.RT;
 
 /**
@@ -27,25 +35,41 @@ public class Application extends Expression {
 	private final Expression func;
 	private final Expression[] params;
 	private final int arity;
+	private final boolean tail; // true if in tail position of a function body
+	private Parallel.Plan plan; // computed lazily, see Parallel
 	
-	private Application(Expression func, Expression[] params) {
+	private Application(Expression func, Expression[] params, boolean tail) {
 		this.func=func;
 		this.params=params;
 		this.arity=params.length;
+		this.tail=tail;
 	}
 	
 	public static Expression create(Expression func, Expression... params) {
-		return new Application(func,params.clone());
+		return new Application(func,params.clone(),false);
 	}
 	
 	private Expression update(Expression nFunc, Expression[] nParams) {
-		if (nFunc!=func) return Application.create(nFunc, nParams);
+		if (nFunc!=func) return new Application(nFunc, nParams.clone(),tail);
 		for (int i=0; i<arity; i++) {
-			if (params[i]!=nParams[i]) return Application.create(nFunc, nParams);
+			if (params[i]!=nParams[i]) return new Application(nFunc, nParams.clone(),tail);
 		}
 		return this;
 	}
 	
+	/**
+	 * Gets a version of this application marked as a tail call. Calls to Kiss functions in a
+	 * marked application return a TailCallResult rather than consuming stack.
+	 */
+	public Expression asTailCall() {
+		if (tail) return this;
+		return new Application(func,params,true);
+	}
+	
+	public boolean isTailCall() {
+		return tail;
+	}
+	
 	@Override
 	public Expression optimise() {
 		Expression nFunc=func.optimise();
@@ -67,6 +91,17 @@ public class Application extends Expression {
 				maybeApply=false;
 			}
 		}
+		if (nFunc.isConstant()&&(((Constant<?>)nFunc).getValue() instanceof Keyword)) {
+			// keyword invocation becomes a direct lookup
+			Keyword k=(Keyword)((Constant<?>)nFunc).getValue();
+			if (arity==1) {
+				Expression slot=SlotLookup.tryCreate(k, nParams[0]);
+				if (slot!=null) return slot;
+				return KeywordLookup.create(k, nParams[0]);
+			}
+			if (arity==2) return KeywordLookup.create(k, nParams[0], nParams[1]);
+		}
+		
 		if (maybeApply&&nFunc.isConstant()) {
 			IFn fn=(IFn) ((Constant<?>)nFunc).getValue();
 			if (KissUtils.isPureFn(fn)) {
@@ -78,6 +113,15 @@ public class Application extends Expression {
 				return Constant.create(fn.applyTo(RT.seq(ps)));
 			}
 		}
+		
+		Expression inlined=Inliner.inline(nFunc, nParams);
+		if (inlined!=null) return inlined;
+		
+		if (!Inliner.isInliningSuppressed()) {
+			Expression specialised=Specialiser.specialise(nFunc, nParams);
+			if (specialised!=null) return specialised;
+		}
+		
 		return update(nFunc,nParams);
 	}
 
@@ -99,16 +143,33 @@ public class Application extends Expression {
 		IFn fn=(IFn)o;
 		
 		int n=params.length;
-		Object[] args=new Object[n];
-		for (int i=0; i<n; i++) {
-			r=params[i].interpret(d, bindings);
-			if (r.isExiting()) return r;
-			args[i]=r.getResult();
+		Object[] args;
+		if (Parallel.isEnabled()&&Parallel.shouldFork(getPlan())) {
+			args=Parallel.evaluate(getPlan(), d, bindings);
+		} else {
+			args=new Object[n];
+			for (int i=0; i<n; i++) {
+				r=params[i].interpret(d, bindings);
+				if (r.isExiting()) return r;
+				args[i]=r.getResult();
+			}
 		}
 		
+		if (tail&&(fn instanceof LambdaFn)) {
+			return new TailCallResult(r.getEnvironment(),(LambdaFn)fn,args);
+		}
 		return r.withResult(fn.applyTo(ArraySeq.create(args)));
 	}
 	
+	private Parallel.Plan getPlan() {
+		Parallel.Plan p=plan;
+		if ((p==null)||p.isStale()) {
+			p=Parallel.plan(params);
+			plan=p;
+		}
+		return p;
+	}
+	
 	@Override
 	public boolean isPure() {
 		if (!func.isPure()) return false;
@@ -124,6 +185,39 @@ public class Application extends Expression {
 		return Cast.create(type, this);
 	}
 	
+	@Override
+	public Expression[] getChildren() {
+		Expression[] cs=new Expression[arity+1];
+		cs[0]=func;
+		System.arraycopy(params, 0, cs, 1, arity);
+		return cs;
+	}
+	
+	@Override
+	public Expression withChildren(Expression[] children) {
+		Expression[] nParams=new Expression[arity];
+		System.arraycopy(children, 1, nParams, 0, arity);
+		return update(children[0],nParams);
+	}
+	
+	@Override
+	public int getSize() {
+		int size=1+func.getSize();
+		for (Expression e:params) {
+			size+=e.getSize();
+		}
+		return size;
+	}
+	
+	@Override
+	public boolean canExit() {
+		if (func.canExit()) return true;
+		for (Expression e:params) {
+			if (e.canExit()) return true;
+		}
+		return false;
+	}
+	
 	@Override
 	public IPersistentSet accumulateFreeSymbols(IPersistentSet s) {
 		s=func.accumulateFreeSymbols(s);
@@ -143,9 +237,41 @@ public class Application extends Expression {
 		return update(nfunc,nParams);
 	}
 
+	@Override
+	public Expression refine(IPersistentMap types) {
+		Expression nfunc=func.refine(types);
+		Expression[] nParams=params.clone();
+		for (int i=0; i<arity; i++) {
+			nParams[i]=params[i].refine(types);
+		}
+		return update(nfunc,nParams);
+	}
+	
+	@Override
+	public Expression replace(IPersistentMap replacements) {
+		Expression nfunc=func.replace(replacements);
+		Expression[] nParams=params.clone();
+		for (int i=0; i<arity; i++) {
+			nParams[i]=params[i].replace(replacements);
+		}
+		return update(nfunc,nParams);
+	}
+
 	@Override
 	public void validate() {
 		if (params.length!=arity) throw new KissException("Mismatched arity!");
 	}
 
+	@Override
+	public boolean equals(Object o) {
+		if (o==this) return true;
+		if (!(o instanceof Application)) return false;
+		Application a=(Application)o;
+		return (arity==a.arity)&&(tail==a.tail)&&func.equals(a.func)&&Arrays.equals(params, a.params);
+	}
+
+	@Override
+	public int hashCode() {
+		return func.hashCode()*31+Arrays.hashCode(params);
+	}
 }
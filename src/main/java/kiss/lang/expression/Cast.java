@@ -34,7 +34,8 @@ public class Cast extends Expression {
 		if (bt.intersection(type)==Nothing.INSTANCE) {
 			throw new KissException("Can't cast type "+bt+" to "+type);
 		}
-		return new Cast(type,body.specialise(type));
+		// note: body.specialise(...) may itself produce a Cast, so we wrap the body directly
+		return new Cast(type,body);
 	}
 	
 	public static Cast create(Class<?> klass, Expression body) {
@@ -51,7 +52,7 @@ public class Cast extends Expression {
 		Result ev= body.interpret(d, bindings);
 		if (ev.isExiting()) return ev;
 		Object result=ev.getResult();
-		if (type.checkInstance(result)) {
+		if (!type.checkInstance(result)) {
 			throw new KissException("Can't cast value of class "+KissUtils.typeName(result)+" to "+type);
 			
 		}
@@ -61,17 +62,19 @@ public class Cast extends Expression {
 	@Override
 	public Expression optimise() {
 		Expression b=body.optimise();
-		Type bt=body.getType();
+		Type bt=b.getType();
+		
+		// cast is provably redundant if the body type is already contained in the cast type
+		if (type.contains(bt)) return b;
+		
 		if (b.isConstant()) {
 			Object val=b.eval();
-			if (type.checkInstance(val)) throw new KissException("Impossible to cast value "+val+" to type: "+type);
+			if (!type.checkInstance(val)) throw new KissException("Impossible to cast value "+val+" to type: "+type);
 			// TODO: is this logic sound? what about interface casts?
 			return b;
 		} 
-		Type t=type;
-		if (t.contains(bt)) t=bt;
-		if ((b==body)&&(t==type)) return this;
-		return create(t,b);
+		if (b==body) return this;
+		return create(type,b);
 	}
 	
 	@Override
@@ -86,9 +89,30 @@ public class Cast extends Expression {
 		Type it = type.intersection(this.type);
 		if (it==Nothing.INSTANCE) return null;
 		
-		return create(it,body.specialise(it));
+		return create(it,body);
 	}
 
+	@Override
+	public Expression[] getChildren() {
+		return new Expression[] {body};
+	}
+	
+	@Override
+	public Expression withChildren(Expression[] children) {
+		if (children[0]==body) return this;
+		return create(type,children[0]);
+	}
+	
+	@Override
+	public int getSize() {
+		return 1+body.getSize();
+	}
+	
+	@Override
+	public boolean canExit() {
+		return body.canExit();
+	}
+	
 	@Override
 	public IPersistentSet accumulateFreeSymbols(IPersistentSet s) {
 		s=body.accumulateFreeSymbols(s);
@@ -103,9 +127,35 @@ public class Cast extends Expression {
 		return create(type,nBody);
 	}
 	
+	@Override
+	public Expression refine(IPersistentMap types) {
+		Expression nBody=body.refine(types);
+		if (nBody==body) return this;
+		return new Cast(type,nBody); // no check, refined body may be unreachable
+	}
+	
+	@Override
+	public Expression replace(IPersistentMap replacements) {
+		Expression nBody=body.replace(replacements);
+		if (nBody==body) return this;
+		return create(type,nBody);
+	}
+	
 	@Override
 	public void validate() {
 		// OK?
 	}
 
+	@Override
+	public boolean equals(Object o) {
+		if (o==this) return true;
+		if (!(o instanceof Cast)) return false;
+		Cast c=(Cast)o;
+		return body.equals(c.body)&&type.equals(c.type);
+	}
+
+	@Override
+	public int hashCode() {
+		return body.hashCode()*31+3;
+	}
 }
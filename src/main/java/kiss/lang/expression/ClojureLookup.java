@@ -33,6 +33,10 @@ public class ClojureLookup extends Expression {
 	public static Expression create(String symName) {
 		return create(Symbol.intern(symName));
 	}
+	
+	public Symbol getSymbol() {
+		return sym;
+	}
 
 	@Override
 	public Type getType() {
@@ -79,5 +83,15 @@ public class ClojureLookup extends Expression {
 		// OK?
 	}
 
+	@Override
+	public boolean equals(Object o) {
+		if (o==this) return true;
+		if (!(o instanceof ClojureLookup)) return false;
+		return sym.equals(((ClojureLookup)o).sym);
+	}
 
+	@Override
+	public int hashCode() {
+		return sym.hashCode()+1;
+	}
 }
@@ -101,4 +101,18 @@ public class Constant<T> extends Expression {
 		if (!type.checkInstance(value)) throw new KissException("Mismatched type!");
 	}
 
+	@Override
+	public boolean equals(Object o) {
+		if (o==this) return true;
+		if (!(o instanceof Constant)) return false;
+		Constant<?> c=(Constant<?>)o;
+		if (value==null) return (c.value==null)&&type.equals(c.type);
+		if ((c.value==null)||(value.getClass()!=c.value.getClass())) return false;
+		return value.equals(c.value)&&type.equals(c.type);
+	}
+
+	@Override
+	public int hashCode() {
+		return (value==null)?0:value.hashCode();
+	}
 }
@@ -36,7 +36,15 @@ public class Def extends Expression {
 		if ((sym==this.sym)&&(body==this.body)) return this;
 		return new Def(sym,body);
 	}
-	
+
+	public Symbol getSymbol() {
+		return sym;
+	}
+
+	public Expression getBody() {
+		return body;
+	}
+
 	@Override
 	public Type getType() {
 		return body.getType();
@@ -54,6 +62,26 @@ public class Def extends Expression {
 		return new EvalResult(d.define(sym,body,bindings));
 	}
 	
+	@Override
+	public Expression[] getChildren() {
+		return new Expression[] {body};
+	}
+	
+	@Override
+	public Expression withChildren(Expression[] children) {
+		return update(sym,children[0]);
+	}
+	
+	@Override
+	public int getSize() {
+		return 1+body.getSize();
+	}
+	
+	@Override
+	public boolean canExit() {
+		return body.canExit();
+	}
+	
 	@Override
 	public IPersistentSet accumulateFreeSymbols(IPersistentSet s) {
 		s=body.accumulateFreeSymbols(s);
@@ -67,6 +95,16 @@ public class Def extends Expression {
 		return update(sym,nBody);
 	}
 
+	@Override
+	public Expression refine(IPersistentMap types) {
+		return update(sym,body.refine(types));
+	}
+	
+	@Override
+	public Expression replace(IPersistentMap replacements) {
+		return update(sym,body.replace(replacements));
+	}
+
 	@Override
 	public void validate() {
 		// OK?
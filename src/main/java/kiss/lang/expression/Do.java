@@ -8,6 +8,7 @@ import kiss.lang.Result;
 import kiss.lang.Type;
 import kiss.lang.impl.EvalResult;
 import kiss.lang.impl.KissException;
+import kiss.lang.impl.KissUtils;
 import kiss.lang.type.Nothing;
 import clojure.lang.IPersistentMap;
 import clojure.lang.IPersistentSet;
@@ -102,6 +103,34 @@ public class Do extends kiss.lang.Expression {
 		return create(nexps);
 	}
 
+	@Override
+	public Expression refine(IPersistentMap types) {
+		Expression[] nexps=null;
+		for (int i=0; i<length; i++) {
+			Expression x=exps[i];
+			Expression nx=x.refine(types);
+			if (nx==x) continue;
+			if (nexps==null) nexps=exps.clone();
+			nexps[i]=nx;
+		}
+		if (nexps==null) return this;
+		return create(nexps);
+	}
+	
+	@Override
+	public Expression replace(IPersistentMap replacements) {
+		Expression[] nexps=null;
+		for (int i=0; i<length; i++) {
+			Expression x=exps[i];
+			Expression nx=x.replace(replacements);
+			if (nx==x) continue;
+			if (nexps==null) nexps=exps.clone();
+			nexps[i]=nx;
+		}
+		if (nexps==null) return this;
+		return create(nexps);
+	}
+
 	@Override
 	public Result interpret(Environment e, IPersistentMap bindings) {
 		if (length==0) return new EvalResult(e);
@@ -114,6 +143,34 @@ public class Do extends kiss.lang.Expression {
 		return r;
 	}
 
+	@Override
+	public Expression[] getChildren() {
+		return exps.clone();
+	}
+	
+	@Override
+	public Expression withChildren(Expression[] children) {
+		if (KissUtils.identicalElements(exps, children)) return this;
+		return create(children.clone());
+	}
+	
+	@Override
+	public int getSize() {
+		int size=1;
+		for (Expression e:exps) {
+			size+=e.getSize();
+		}
+		return size;
+	}
+	
+	@Override
+	public boolean canExit() {
+		for (Expression e:exps) {
+			if (e.canExit()) return true;
+		}
+		return false;
+	}
+	
 	@Override
 	public IPersistentSet accumulateFreeSymbols(IPersistentSet s) {
 		for (int i=0; i<length; i++) {
@@ -127,5 +184,15 @@ public class Do extends kiss.lang.Expression {
 		if (length!=exps.length) throw new KissException("Mismatched length!");
 	}
 
+	@Override
+	public boolean equals(Object o) {
+		if (o==this) return true;
+		if (!(o instanceof Do)) return false;
+		return Arrays.equals(exps, ((Do)o).exps);
+	}
 
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(exps)+5;
+	}
 }
@@ -1,13 +1,183 @@
 package kiss.lang.expression;
 
+import java.lang.invoke.MethodHandle;
+
+import kiss.lang.Environment;
 import kiss.lang.Expression;
+import kiss.lang.Result;
+import kiss.lang.Type;
+import kiss.lang.impl.Interop;
+import kiss.lang.impl.KissException;
+import kiss.lang.type.Anything;
+import clojure.lang.IPersistentMap;
+import clojure.lang.IPersistentSet;
 
 /**
- * Expression representing a lookup of a Java field
- * 
+ * Expression representing a lookup of a Java field, either on an object instance or a static field of a class.
+ *
+ * Static fields and fields of statically known classes are linked to a getter MethodHandle at
+ * construction time. Otherwise a per-site inline cache keyed on receiver class is used.
+ *
  * @author Mike
  *
  */
-public abstract class FieldLookup extends Expression {
-	// TODO: field lookup of Java objects
+public class FieldLookup extends Expression {
+	private static final Object[] NO_ARGS=new Object[0];
+
+	private final Expression target; // null for static fields
+	private final String name;
+	private final MethodHandle handle; // statically linked getter, may be null
+	private final Type type;
+	private final boolean isFinal; // true for static final fields
+
+	private volatile CacheEntry cache=null;
+
+	/**
+	 * Immutable monomorphic inline cache entry
+	 */
+	private static final class CacheEntry {
+		final Class<?> klass;
+		final MethodHandle handle;
+
+		CacheEntry(Class<?> klass, MethodHandle handle) {
+			this.klass=klass;
+			this.handle=handle;
+		}
+	}
+
+	private FieldLookup(Expression target, String name, MethodHandle handle, Type type, boolean isFinal) {
+		this.target=target;
+		this.name=name;
+		this.handle=handle;
+		this.type=type;
+		this.isFinal=isFinal;
+	}
+
+	/**
+	 * Creates a lookup of a field on the result of the target expression
+	 */
+	public static Expression create(Expression target, String name) {
+		Class<?> c=target.getType().getJavaClass();
+		if ((c==null)||(c==Object.class)||c.isPrimitive()||!Interop.hasField(c, name, false)) {
+			return new FieldLookup(target,name,null,Anything.INSTANCE,false);
+		}
+		MethodHandle mh=Interop.findField(c, name, false);
+		return new FieldLookup(target,name,mh,Interop.getReturnType(Interop.getFieldClass(c, name)),false);
+	}
+
+	/**
+	 * Creates a lookup of a static field on the given class
+	 */
+	public static Expression createStatic(Class<?> klass, String name) {
+		MethodHandle mh=Interop.findField(klass, name, true);
+		return new FieldLookup(null,name,mh,Interop.getReturnType(Interop.getFieldClass(klass, name)),Interop.isFinalField(klass, name));
+	}
+
+	@Override
+	public Type getType() {
+		return type;
+	}
+
+	@Override
+	public boolean isPure() {
+		return (target==null)||target.isPure();
+	}
+
+	@Override
+	public Expression optimise() {
+		if (target==null) {
+			// static final fields can be folded to constants
+			if (isFinal) return Constant.create(Interop.invoke(handle, NO_ARGS));
+			return this;
+		}
+		Expression nTarget=target.optimise();
+		if (nTarget==target) return this;
+		return create(nTarget,name);
+	}
+
+	@Override
+	public Expression specialise(Type type) {
+		if (type.contains(this.getType())) return this;
+		return Cast.create(type, this);
+	}
+
+	@Override
+	public Expression substitute(IPersistentMap bindings) {
+		if (target==null) return this;
+		Expression nTarget=target.substitute(bindings);
+		if (nTarget==target) return this;
+		return create(nTarget,name);
+	}
+
+	@Override
+	public Expression refine(IPersistentMap types) {
+		if (target==null) return this;
+		Expression nTarget=target.refine(types);
+		if (nTarget==target) return this;
+		return create(nTarget,name);
+	}
+	
+	@Override
+	public Expression replace(IPersistentMap replacements) {
+		if (target==null) return this;
+		Expression nTarget=target.replace(replacements);
+		if (nTarget==target) return this;
+		return create(nTarget,name);
+	}
+
+	@Override
+	public Result interpret(Environment d, IPersistentMap bindings) {
+		if (target==null) return d.withResult(Interop.invoke(handle, NO_ARGS));
+
+		Result r=target.interpret(d, bindings);
+		if (r.isExiting()) return r;
+		Object t=r.getResult();
+		if (t==null) throw new KissException("Null target for field lookup: "+name);
+
+		MethodHandle mh=handle;
+		if (mh==null) {
+			Class<?> c=t.getClass();
+			CacheEntry ce=cache;
+			if ((ce!=null)&&(ce.klass==c)) {
+				mh=ce.handle;
+			} else {
+				mh=Interop.findField(c, name, false);
+				cache=new CacheEntry(c,mh);
+			}
+		}
+		return r.withResult(Interop.invoke(mh, new Object[] {t}));
+	}
+
+	@Override
+	public Expression[] getChildren() {
+		if (target==null) return NO_CHILDREN;
+		return new Expression[] {target};
+	}
+	
+	@Override
+	public Expression withChildren(Expression[] children) {
+		if ((target==null)||(children[0]==target)) return this;
+		return create(children[0],name);
+	}
+	
+	@Override
+	public int getSize() {
+		return (target==null)?1:1+target.getSize();
+	}
+	
+	@Override
+	public boolean canExit() {
+		return (target!=null)&&target.canExit();
+	}
+	
+	@Override
+	public IPersistentSet accumulateFreeSymbols(IPersistentSet s) {
+		if (target==null) return s;
+		return target.accumulateFreeSymbols(s);
+	}
+
+	@Override
+	public void validate() {
+		if ((target==null)&&(handle==null)) throw new KissException("Unlinked static field lookup: "+name);
+	}
 }
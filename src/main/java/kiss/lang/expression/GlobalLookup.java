@@ -0,0 +1,109 @@
+package kiss.lang.expression;
+
+import kiss.lang.Environment;
+import kiss.lang.Expression;
+import kiss.lang.Type;
+import kiss.lang.impl.EvalResult;
+import kiss.lang.impl.GlobalSite;
+import kiss.lang.impl.Linker;
+import clojure.lang.IPersistentCollection;
+import clojure.lang.IPersistentMap;
+import clojure.lang.IPersistentSet;
+import clojure.lang.Symbol;
+
+/**
+ * An expression representing a lookup of a global symbol in compiled code, linked through
+ * a call site that is invalidated when the symbol is redefined.
+ *
+ * @author Mike
+ *
+ */
+public class GlobalLookup extends Expression {
+	private final Linker linker;
+	private final GlobalSite site;
+	private final Type type;
+
+	private GlobalLookup(Linker linker, Symbol sym, Type type) {
+		this.linker=linker;
+		this.site=linker.createSite(sym);
+		this.type=type;
+	}
+
+	public static GlobalLookup create(Linker linker, Symbol sym, Type type) {
+		return new GlobalLookup(linker,sym,type);
+	}
+
+	public Symbol getSymbol() {
+		return site.getSymbol();
+	}
+
+	@Override
+	public Type getType() {
+		return type;
+	}
+
+	@Override
+	public EvalResult interpret(Environment e, IPersistentMap bindings) {
+		return e.withResult(site.getValue());
+	}
+
+	@Override
+	public Expression specialise(Type type) {
+		if (type.contains(this.getType())) return this;
+		return Cast.create(type, this);
+	}
+
+	@Override
+	public Expression substitute(IPersistentMap bindings) {
+		Symbol sym=getSymbol();
+		if(bindings.containsKey(sym)) {
+			return Constant.create(bindings.valAt(sym));
+		}
+		return this;
+	}
+
+	@Override
+	public Expression refine(IPersistentMap types) {
+		Type t=(Type) types.valAt(getSymbol());
+		if (t==null) return this;
+		Type nt=type.intersection(t);
+		if (nt.equals(type)) return this;
+		return new GlobalLookup(linker,getSymbol(),nt);
+	}
+
+	@Override
+	public Expression replace(IPersistentMap replacements) {
+		Expression x=(Expression) replacements.valAt(getSymbol());
+		if (x==null) return this;
+		return x;
+	}
+
+	@Override
+	public boolean isPure() {
+		return true;
+	}
+
+	@Override
+	public IPersistentSet accumulateFreeSymbols(IPersistentSet s) {
+		s=(IPersistentSet) ((IPersistentCollection)s).cons(getSymbol());
+		return s;
+	}
+
+	@Override
+	public void validate() {
+		// OK?
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o==this) return true;
+		if (!(o instanceof GlobalLookup)) return false;
+		GlobalLookup g=(GlobalLookup)o;
+		return (linker==g.linker)&&getSymbol().equals(g.getSymbol());
+	}
+
+	@Override
+	public int hashCode() {
+		return getSymbol().hashCode()+2;
+	}
+}
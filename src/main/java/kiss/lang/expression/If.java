@@ -2,11 +2,17 @@ package kiss.lang.expression;
 
 import clojure.lang.IPersistentMap;
 import clojure.lang.IPersistentSet;
+import clojure.lang.PersistentHashMap;
 import kiss.lang.Environment;
 import kiss.lang.Expression;
 import kiss.lang.Result;
 import kiss.lang.Type;
 import kiss.lang.impl.KissUtils;
+import kiss.lang.type.Not;
+import kiss.lang.type.Null;
+import kiss.lang.type.Something;
+import kiss.lang.type.Union;
+import kiss.lang.type.Value;
 
 /**
  * Expression for a standard "if" conditional
@@ -14,6 +20,8 @@ import kiss.lang.impl.KissUtils;
  * @author Mike
  */
 public class If extends Expression {
+	private static final Type FALSEY=Union.create(Null.INSTANCE,Value.create(Boolean.FALSE));
+	
 	private final Type type;
 	private final Expression cond;
 	private final Expression doThen;
@@ -49,11 +57,47 @@ public class If extends Expression {
 	@Override
 	public Expression optimise() {
 		Expression cond=this.cond.optimise();
-		Expression doThen=this.doThen.optimise();
-		Expression doElse=this.doElse.optimise();
+		Expression doThen=this.doThen.refine(truthyTypes(cond)).optimise();
+		Expression doElse=this.doElse.refine(falseyTypes(cond)).optimise();
 		return update(cond,doThen,doElse);
 	}
 	
+	/**
+	 * Gets the Symbol -> Type map of local types that are known to hold if the condition is truthy
+	 */
+	private static IPersistentMap truthyTypes(Expression cond) {
+		cond=Profiled.strip(cond);
+		if (cond instanceof Lookup) {
+			return PersistentHashMap.EMPTY.assoc(((Lookup)cond).getSymbol(), Something.INSTANCE);
+		}
+		if (cond instanceof InstanceOf) {
+			InstanceOf io=(InstanceOf)cond;
+			Expression body=Profiled.strip(io.getBody());
+			if (body instanceof Lookup) {
+				return PersistentHashMap.EMPTY.assoc(((Lookup)body).getSymbol(), io.getTestType());
+			}
+		}
+		return PersistentHashMap.EMPTY;
+	}
+	
+	/**
+	 * Gets the Symbol -> Type map of local types that are known to hold if the condition is falsey
+	 */
+	private static IPersistentMap falseyTypes(Expression cond) {
+		cond=Profiled.strip(cond);
+		if (cond instanceof Lookup) {
+			return PersistentHashMap.EMPTY.assoc(((Lookup)cond).getSymbol(), FALSEY);
+		}
+		if (cond instanceof InstanceOf) {
+			InstanceOf io=(InstanceOf)cond;
+			Expression body=Profiled.strip(io.getBody());
+			if (body instanceof Lookup) {
+				return PersistentHashMap.EMPTY.assoc(((Lookup)body).getSymbol(), Not.create(io.getTestType()));
+			}
+		}
+		return PersistentHashMap.EMPTY;
+	}
+	
 	@Override
 	public boolean isPure() {
 		return cond.isPure()&&doThen.isPure()&&doElse.isPure();
@@ -83,6 +127,22 @@ public class If extends Expression {
 		
 		return update(ncond,nthen,nelse);
 	}
+	
+	@Override
+	public Expression refine(IPersistentMap types) {
+		Expression ncond=cond.refine(types);
+		Expression nthen=doThen.refine(types);
+		Expression nelse=doElse.refine(types);
+		return update(ncond,nthen,nelse);
+	}
+	
+	@Override
+	public Expression replace(IPersistentMap replacements) {
+		Expression ncond=cond.replace(replacements);
+		Expression nthen=doThen.replace(replacements);
+		Expression nelse=doElse.replace(replacements);
+		return update(ncond,nthen,nelse);
+	}
 
 	@Override
 	public Result interpret(Environment d, IPersistentMap bindings) {
@@ -95,6 +155,26 @@ public class If extends Expression {
 		}
 	}
 	
+	@Override
+	public Expression[] getChildren() {
+		return new Expression[] {cond,doThen,doElse};
+	}
+	
+	@Override
+	public Expression withChildren(Expression[] children) {
+		return update(children[0],children[1],children[2]);
+	}
+	
+	@Override
+	public int getSize() {
+		return 1+cond.getSize()+doThen.getSize()+doElse.getSize();
+	}
+	
+	@Override
+	public boolean canExit() {
+		return cond.canExit()||doThen.canExit()||doElse.canExit();
+	}
+	
 	@Override
 	public IPersistentSet accumulateFreeSymbols(IPersistentSet s) {
 		s=cond.accumulateFreeSymbols(s);
@@ -108,4 +188,16 @@ public class If extends Expression {
 		// OK?
 	}
 
+	@Override
+	public boolean equals(Object o) {
+		if (o==this) return true;
+		if (!(o instanceof If)) return false;
+		If x=(If)o;
+		return cond.equals(x.cond)&&doThen.equals(x.doThen)&&doElse.equals(x.doElse);
+	}
+
+	@Override
+	public int hashCode() {
+		return (cond.hashCode()*31+doThen.hashCode())*31+doElse.hashCode();
+	}
 }
@@ -36,6 +36,14 @@ public class InstanceOf extends Expression {
 		return new InstanceOf(type,body);
 	}
 	
+	public JavaType<?> getTestType() {
+		return type;
+	}
+	
+	public Expression getBody() {
+		return body;
+	}
+	
 	@Override
 	public Type getType() {
 		// TODO: primitive boolean? Or Kiss Bool type?
@@ -61,6 +69,16 @@ public class InstanceOf extends Expression {
 		return update(type,body.substitute(bindings));
 	}
 
+	@Override
+	public Expression refine(IPersistentMap types) {
+		return update(type,body.refine(types));
+	}
+	
+	@Override
+	public Expression replace(IPersistentMap replacements) {
+		return update(type,body.replace(replacements));
+	}
+
 	@Override
 	public Result interpret(Environment d, IPersistentMap bindings) {
 		Result r=body.interpret(d, bindings);
@@ -68,6 +86,26 @@ public class InstanceOf extends Expression {
 		return r.withResult(type.checkInstance(r.getResult()));
 	}
 
+	@Override
+	public Expression[] getChildren() {
+		return new Expression[] {body};
+	}
+	
+	@Override
+	public Expression withChildren(Expression[] children) {
+		return update(type,children[0]);
+	}
+	
+	@Override
+	public int getSize() {
+		return 1+body.getSize();
+	}
+	
+	@Override
+	public boolean canExit() {
+		return body.canExit();
+	}
+	
 	@Override
 	public IPersistentSet accumulateFreeSymbols(IPersistentSet s) {
 		return body.accumulateFreeSymbols(s);
@@ -79,4 +117,16 @@ public class InstanceOf extends Expression {
 		
 	}
 
+	@Override
+	public boolean equals(Object o) {
+		if (o==this) return true;
+		if (!(o instanceof InstanceOf)) return false;
+		InstanceOf io=(InstanceOf)o;
+		return body.equals(io.body)&&type.equals(io.type);
+	}
+
+	@Override
+	public int hashCode() {
+		return body.hashCode()*31+4;
+	}
 }
@@ -0,0 +1,209 @@
+package kiss.lang.expression;
+
+import kiss.lang.Environment;
+import kiss.lang.Expression;
+import kiss.lang.Result;
+import kiss.lang.Type;
+import kiss.lang.impl.Events;
+import kiss.lang.impl.Metrics;
+import kiss.lang.impl.Shape;
+import kiss.lang.impl.ShapedMap;
+import kiss.lang.type.Anything;
+import clojure.lang.ILookup;
+import clojure.lang.IPersistentMap;
+import clojure.lang.IPersistentSet;
+import clojure.lang.Keyword;
+import clojure.lang.RT;
+
+/**
+ * Expression representing a keyword invocation (:key m) or (:key m not-found).
+ * 
+ * Calls ILookup.valAt directly rather than dispatching through IFn. For ShapedMaps, an 
+ * inline cache remembers the slot index of the key for each observed Shape.
+ * 
+ * @author Mike
+ *
+ */
+public class KeywordLookup extends Expression {
+	private static final int MAX_CACHE_SIZE=4;
+	
+	private final Keyword key;
+	private final Expression target;
+	private final Expression notFound; // may be null
+	
+	private volatile CacheEntry cache=null;
+	
+	/**
+	 * Immutable inline cache entry, with index -1 for shapes that do not contain the key
+	 */
+	private static final class CacheEntry {
+		final Shape shape;
+		final int index;
+		final CacheEntry next;
+		final int size;
+		
+		CacheEntry(Shape shape, int index, CacheEntry next) {
+			this.shape=shape;
+			this.index=index;
+			this.next=next;
+			this.size=(next==null)?1:next.size+1;
+		}
+	}
+	
+	private KeywordLookup(Keyword key, Expression target, Expression notFound) {
+		this.key=key;
+		this.target=target;
+		this.notFound=notFound;
+	}
+	
+	public static KeywordLookup create(Keyword key, Expression target) {
+		return new KeywordLookup(key,target,null);
+	}
+	
+	public static KeywordLookup create(Keyword key, Expression target, Expression notFound) {
+		return new KeywordLookup(key,target,notFound);
+	}
+	
+	private KeywordLookup update(Expression target, Expression notFound) {
+		if ((target==this.target)&&(notFound==this.notFound)) return this;
+		return new KeywordLookup(key,target,notFound);
+	}
+	
+	@Override
+	public Type getType() {
+		return Anything.INSTANCE;
+	}
+	
+	@Override
+	public boolean isPure() {
+		return target.isPure()&&((notFound==null)||notFound.isPure());
+	}
+	
+	@Override
+	public Expression optimise() {
+		Expression nt=target.optimise();
+		if (notFound==null) {
+			Expression slot=SlotLookup.tryCreate(key, nt);
+			if (slot!=null) return slot;
+		}
+		return update(nt,(notFound==null)?null:notFound.optimise());
+	}
+
+	@Override
+	public Result interpret(Environment d, IPersistentMap bindings) {
+		Result r=target.interpret(d, bindings);
+		if (r.isExiting()) return r;
+		Object o=r.getResult();
+		Object nf=null;
+		if (notFound!=null) {
+			r=notFound.interpret(r.getEnvironment(), bindings);
+			if (r.isExiting()) return r;
+			nf=r.getResult();
+		}
+		
+		if (o instanceof ShapedMap) {
+			ShapedMap sm=(ShapedMap)o;
+			int i=slotIndex(sm.getShape());
+			return r.withResult((i<0)?nf:sm.get(i));
+		}
+		if (o instanceof ILookup) {
+			return r.withResult(((ILookup)o).valAt(key, nf));
+		}
+		return r.withResult(RT.get(o, key, nf));
+	}
+	
+	/**
+	 * Gets the slot index of the key in a shape, using the inline cache
+	 */
+	private int slotIndex(Shape shape) {
+		CacheEntry head=cache;
+		for (CacheEntry ce=head; ce!=null; ce=ce.next) {
+			if (ce.shape==shape) {
+				if (Metrics.isEnabled()) Metrics.recordKeywordCache(true);
+				return ce.index;
+			}
+		}
+		int i=shape.indexOf(key);
+		if (Metrics.isEnabled()) Metrics.recordKeywordCache(false);
+		Events.cache("keyword-lookup", false); // hits are not reported, to keep the fast path fast
+		if ((head==null)||(head.size<MAX_CACHE_SIZE)) {
+			cache=new CacheEntry(shape,i,head);
+		}
+		return i;
+	}
+
+	@Override
+	public Expression specialise(Type type) {
+		return Cast.create(type, this);
+	}
+
+	@Override
+	public Expression substitute(IPersistentMap bindings) {
+		Expression nt=target.substitute(bindings);
+		if (nt==null) return null;
+		Expression nnf=null;
+		if (notFound!=null) {
+			nnf=notFound.substitute(bindings);
+			if (nnf==null) return null;
+		}
+		return update(nt,nnf);
+	}
+
+	@Override
+	public Expression refine(IPersistentMap types) {
+		return update(target.refine(types),(notFound==null)?null:notFound.refine(types));
+	}
+	
+	@Override
+	public Expression replace(IPersistentMap replacements) {
+		return update(target.replace(replacements),(notFound==null)?null:notFound.replace(replacements));
+	}
+	
+	@Override
+	public Expression[] getChildren() {
+		if (notFound==null) return new Expression[] {target};
+		return new Expression[] {target,notFound};
+	}
+	
+	@Override
+	public Expression withChildren(Expression[] children) {
+		return update(children[0],(notFound==null)?null:children[1]);
+	}
+	
+	@Override
+	public int getSize() {
+		return 1+target.getSize()+((notFound==null)?0:notFound.getSize());
+	}
+	
+	@Override
+	public boolean canExit() {
+		return target.canExit()||((notFound!=null)&&notFound.canExit());
+	}
+
+	@Override
+	public IPersistentSet accumulateFreeSymbols(IPersistentSet s) {
+		s=target.accumulateFreeSymbols(s);
+		if (notFound!=null) s=notFound.accumulateFreeSymbols(s);
+		return s;
+	}
+
+	@Override
+	public void validate() {
+		// OK
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o==this) return true;
+		if (!(o instanceof KeywordLookup)) return false;
+		KeywordLookup k=(KeywordLookup)o;
+		if (key!=k.key) return false;
+		if (!target.equals(k.target)) return false;
+		return (notFound==null)?(k.notFound==null):notFound.equals(k.notFound);
+	}
+
+	@Override
+	public int hashCode() {
+		return key.hashCode()*31+target.hashCode();
+	}
+}
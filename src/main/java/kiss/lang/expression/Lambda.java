@@ -1,7 +1,6 @@
 package kiss.lang.expression;
 
 import java.util.Arrays;
-import java.util.Map.Entry;
 
 import kiss.lang.Environment;
 import kiss.lang.Expression;
@@ -9,11 +8,11 @@ import kiss.lang.KFn;
 import kiss.lang.Type;
 import kiss.lang.impl.EvalResult;
 import kiss.lang.impl.LambdaFn;
+import kiss.lang.impl.TailCalls;
 import kiss.lang.type.Anything;
 import kiss.lang.type.FunctionType;
 import clojure.lang.IPersistentMap;
 import clojure.lang.IPersistentSet;
-import clojure.lang.ISeq;
 import clojure.lang.Symbol;
 
 /**
@@ -33,21 +32,44 @@ public class Lambda extends Expression {
 	private final Type[] types;
 	private final Symbol[] syms;
 	private KFn compiled=null;
+	private final boolean fromCompiler; // true if part of code produced by the Compiler
+	private volatile Expression tailBody=null; // body with tail calls marked, computed lazily
 	
-	private Lambda(Expression body, Symbol[] syms, Type[] types) {
+	private Lambda(Expression body, Symbol[] syms, Type[] types, boolean fromCompiler) {
 		this.body=body;
 		this.types=types;
 		this.type=FunctionType.create(body.getType(), types);
 		this.syms=syms;
+		this.fromCompiler=fromCompiler;
 	}
 	
 	public static Lambda create(Expression body, Symbol[] syms, Type[] types) {
-		return new Lambda(body,syms,types);
+		return new Lambda(body,syms,types,false);
 	}
 	
 	public Lambda update(Expression body, Symbol[] syms, Type[] types) {
 		if ((body==this.body)&&(Arrays.equals(syms, this.syms))&&(Arrays.equals(types, this.types))) return this;
-		return new Lambda(body,syms,types);
+		return new Lambda(body,syms,types,fromCompiler);
+	}
+	
+	/**
+	 * Gets a copy of this Lambda that creates functions counted as compiled code in Metrics
+	 */
+	public Lambda withFromCompiler(boolean on) {
+		if (on==fromCompiler) return this;
+		return new Lambda(body,syms,types,on);
+	}
+	
+	public boolean isFromCompiler() {
+		return fromCompiler;
+	}
+	
+	public Expression getBody() {
+		return body;
+	}
+	
+	public Symbol[] getParams() {
+		return syms.clone();
 	}
 	
 	@Override
@@ -60,13 +82,14 @@ public class Lambda extends Expression {
 		if (compiled!=null) return d.withResult(compiled);
 		
 		// TODO is this sensible? capture the dynamic environment at exact point of lambda creation?
-		Environment e=d;
-		for (ISeq s= bindings.seq(); s!=null; s=s.next()) {
-			Entry<?, ?> me=(Entry<?, ?>)s.first();
-			e=e.assoc(me.getKey(),me.getValue());
-		}
+		Environment e=d.bind(bindings);
 		
-		KFn fn=LambdaFn.create(e,body,syms);
+		Expression tb=tailBody;
+		if (tb==null) {
+			tb=TailCalls.mark(body);
+			tailBody=tb;
+		}
+		KFn fn=fromCompiler?LambdaFn.createCompiled(e,body,tb,syms):LambdaFn.create(e,body,tb,syms);
 		return d.withResult(fn);
 	}
 	
@@ -93,11 +116,44 @@ public class Lambda extends Expression {
 		return update(nbody,syms,types);
 	}
 	
+	@Override
+	public Expression refine(IPersistentMap types) {
+		for (Symbol s:syms) {
+			types=types.without(s);
+		}
+		return update(body.refine(types),syms,this.types);
+	}
+	
+	@Override
+	public Expression replace(IPersistentMap replacements) {
+		for (Symbol s:syms) {
+			replacements=replacements.without(s);
+		}
+		return update(body.replace(replacements),syms,this.types);
+	}
+	
 	@Override
 	public Lambda optimise() {
+		// declared parameter types are not checked when the function is called, so the body is
+		// not refined with them: that would let Cast.optimise remove the only runtime check
 		return update(body.optimise(),syms,types);
 	}
 	
+	@Override
+	public Expression[] getChildren() {
+		return new Expression[] {body};
+	}
+	
+	@Override
+	public Expression withChildren(Expression[] children) {
+		return update(children[0],syms,types);
+	}
+	
+	@Override
+	public int getSize() {
+		return 1+body.getSize();
+	}
+	
 	@Override
 	public IPersistentSet accumulateFreeSymbols(IPersistentSet s) {
 		s=body.accumulateFreeSymbols(s);
@@ -31,6 +31,10 @@ public class Let extends Expression {
 		return new Let(sym,value,body);
 	}
 	
+	public Symbol getSymbol() {
+		return sym;
+	}
+	
 	public Let update(Symbol sym, Expression value, Expression body) {
 		if ((this.sym==sym)&&(this.body==body)&&(this.value==value)) return this;
 		return create(sym, value,body);
@@ -38,15 +42,16 @@ public class Let extends Expression {
 	
 	@Override
 	public Expression optimise() {
-		Expression b=body.optimise();
 		Expression v=value.optimise();
-		if (value.isPure()) {
+		// the bound symbol is known to have the type of the value within the body
+		Expression b=body.refine(PersistentHashMap.EMPTY.assoc(sym, v.getType())).optimise();
+		if (v.isPure()) {
 			IPersistentSet bfree= b.accumulateFreeSymbols(PersistentHashSet.EMPTY);
 			if (!(bfree.contains(sym))) {
 				return b;
 			}
-			if (value.isConstant()) {
-				return b.substitute(PersistentHashMap.EMPTY.assoc(sym,value.eval())).optimise();
+			if (v.isConstant()) {
+				return b.substitute(PersistentHashMap.EMPTY.assoc(sym,v.eval())).optimise();
 			}
 		}
 		return update(sym,v,b);
@@ -91,6 +96,40 @@ public class Let extends Expression {
 		return update(sym,nv,nbody);
 	}
 	
+	@Override
+	public Expression refine(IPersistentMap types) {
+		Expression nv=value.refine(types);
+		Expression nbody=body.refine(types.without(sym));
+		return update(sym,nv,nbody);
+	}
+	
+	@Override
+	public Expression replace(IPersistentMap replacements) {
+		Expression nv=value.replace(replacements);
+		Expression nbody=body.replace(replacements.without(sym));
+		return update(sym,nv,nbody);
+	}
+	
+	@Override
+	public Expression[] getChildren() {
+		return new Expression[] {value,body};
+	}
+	
+	@Override
+	public Expression withChildren(Expression[] children) {
+		return update(sym,children[0],children[1]);
+	}
+	
+	@Override
+	public int getSize() {
+		return 1+value.getSize()+body.getSize();
+	}
+	
+	@Override
+	public boolean canExit() {
+		return value.canExit()||body.canExit();
+	}
+	
 	@Override
 	public IPersistentSet accumulateFreeSymbols(IPersistentSet s) {
 		s=body.accumulateFreeSymbols(s);
@@ -20,22 +20,32 @@ import clojure.lang.Symbol;
  */
 public class Lookup extends Expression {
 	private final Symbol sym;
+	private final Type type;
 	
-	private Lookup(Symbol sym) {
+	private Lookup(Symbol sym, Type type) {
 		this.sym=sym;
+		this.type=type;
 	}
 
 	public static Expression create(Symbol symbol) {
-		return new Lookup(symbol);
+		return new Lookup(symbol,Anything.INSTANCE);
+	}
+	
+	public static Expression create(Symbol symbol, Type type) {
+		return new Lookup(symbol,type);
 	}
 	
 	public static Expression create(String symName) {
 		return create(Symbol.intern(symName));
 	}
+	
+	public Symbol getSymbol() {
+		return sym;
+	}
 
 	@Override
 	public Type getType() {
-		return Anything.INSTANCE;
+		return type;
 	}
 
 	@SuppressWarnings("unchecked")
@@ -64,6 +74,22 @@ public class Lookup extends Expression {
 		return this;
 	}
 	
+	@Override
+	public Expression refine(IPersistentMap types) {
+		Type t=(Type) types.valAt(sym);
+		if (t==null) return this;
+		Type nt=type.intersection(t);
+		if (nt.equals(type)) return this;
+		return new Lookup(sym,nt);
+	}
+	
+	@Override
+	public Expression replace(IPersistentMap replacements) {
+		Expression x=(Expression) replacements.valAt(sym);
+		if (x==null) return this;
+		return x;
+	}
+	
 	@Override
 	public boolean isPure() {
 		return true;
@@ -79,4 +105,16 @@ public class Lookup extends Expression {
 	public void validate() {
 		// OK?
 	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o==this) return true;
+		if (!(o instanceof Lookup)) return false;
+		return sym.equals(((Lookup)o).sym);
+	}
+
+	@Override
+	public int hashCode() {
+		return sym.hashCode();
+	}
 }
@@ -30,6 +30,10 @@ public class Loop extends Expression {
 		return new Loop(syms,initials,body);
 	}
 	
+	public Symbol[] getSymbols() {
+		return syms.clone();
+	}
+	
 	public Loop update(Symbol[] syms, Expression[] initials, Expression body) {
 		Expression[] nis =this.initials;
 		for (int i=0; i<initials.length; i++) {
@@ -108,6 +112,65 @@ public class Loop extends Expression {
 		return update(syms,nis,nbody);
 	}
 	
+	@Override
+	public Expression refine(IPersistentMap types) {
+		Expression[] nis=initials.clone();
+		for (int i=0; i<initials.length; i++) {
+			nis[i]=initials[i].refine(types);
+			types=types.without(syms[i]);
+		}
+		// loop symbols may be rebound by recur, so no types are known for them in the body
+		Expression nbody=body.refine(types);
+		return update(syms,nis,nbody);
+	}
+	
+	@Override
+	public Expression replace(IPersistentMap replacements) {
+		Expression[] nis=initials.clone();
+		for (int i=0; i<initials.length; i++) {
+			nis[i]=initials[i].replace(replacements);
+			replacements=replacements.without(syms[i]);
+		}
+		Expression nbody=body.replace(replacements);
+		return update(syms,nis,nbody);
+	}
+	
+	@Override
+	public Expression[] getChildren() {
+		int n=initials.length;
+		Expression[] cs=new Expression[n+1];
+		System.arraycopy(initials, 0, cs, 0, n);
+		cs[n]=body;
+		return cs;
+	}
+	
+	@Override
+	public Expression withChildren(Expression[] children) {
+		int n=initials.length;
+		Expression[] nis=new Expression[n];
+		System.arraycopy(children, 0, nis, 0, n);
+		return update(syms,nis,children[n]);
+	}
+	
+	@Override
+	public int getSize() {
+		int size=1+body.getSize();
+		for (Expression e:initials) {
+			size+=e.getSize();
+		}
+		return size;
+	}
+	
+	@Override
+	public boolean canExit() {
+		// conservative, since a recur in the body may target this loop
+		if (body.canExit()) return true;
+		for (Expression e:initials) {
+			if (e.canExit()) return true;
+		}
+		return false;
+	}
+	
 	@Override
 	public IPersistentSet accumulateFreeSymbols(IPersistentSet s) {
 		s=body.accumulateFreeSymbols(s);
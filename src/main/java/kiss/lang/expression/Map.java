@@ -1,20 +1,26 @@
 package kiss.lang.expression;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map.Entry;
 
 import clojure.lang.APersistentMap;
 import clojure.lang.IPersistentMap;
 import clojure.lang.IPersistentSet;
-import clojure.lang.PersistentHashMap;
+import clojure.lang.ITransientMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentArrayMap;
 import kiss.lang.Environment;
 import kiss.lang.Expression;
 import kiss.lang.Result;
 import kiss.lang.Type;
 import kiss.lang.impl.KissException;
+import kiss.lang.impl.KissUtils;
+import kiss.lang.impl.Parallel;
+import kiss.lang.impl.Shape;
+import kiss.lang.impl.ShapedMap;
 import kiss.lang.type.JavaType;
+import kiss.lang.type.ShapeType;
 
 /**
  * A map producing expression
@@ -27,11 +33,30 @@ public class Map extends Expression {
 	private List<Expression> keys;
 	private List<Expression> vals;
 	private int length;
+	private final Shape shape; // shape for non-empty maps with constant keyword keys, may be null
+	private final Type type;
+	private Parallel.Plan plan; // computed lazily, see Parallel
 	
 	private Map(List<Expression> ks, List<Expression> vs) {
 		this.keys=ks;
 		this.vals=vs;
 		this.length=vs.size();
+		this.shape=shapeOf(ks);
+		this.type=(shape==null)?TYPE:ShapeType.create(shape);
+	}
+	
+	private static Shape shapeOf(List<Expression> ks) {
+		int n=ks.size();
+		if (n==0) return null; // {} stays a generic map, since it is usually grown
+		Keyword[] kws=new Keyword[n];
+		for (int i=0; i<n; i++) {
+			Expression k=ks.get(i);
+			if (!k.isConstant()) return null;
+			Object kv=((Constant<?>)k).getValue();
+			if (!(kv instanceof Keyword)) return null;
+			kws[i]=(Keyword)kv;
+		}
+		return Shape.create(kws);
 	}
 	
 	public static Map create (List<Expression> ks,List<Expression> vs) {
@@ -50,7 +75,7 @@ public class Map extends Expression {
 
 	@Override
 	public Type getType() {
-		return TYPE;
+		return type;
 	}
 
 	@Override
@@ -97,9 +122,100 @@ public class Map extends Expression {
 		return create(alk,alv);
 	}
 
+	@Override
+	public Expression refine(IPersistentMap types) {
+		ArrayList<Expression> alk=new ArrayList<Expression>(length);
+		ArrayList<Expression> alv=new ArrayList<Expression>(length);
+		boolean changed=false;
+		for (int i=0; i<length; i++) {
+			Expression k=keys.get(i);
+			Expression nk=k.refine(types);
+			Expression v=vals.get(i);
+			Expression nv=v.refine(types);
+			changed |= (nk!=k)||(nv!=v);
+			alk.add(nk);
+			alv.add(nv);
+		}
+		if (!changed) return this;
+		return create(alk,alv);
+	}
+	
+	@Override
+	public Expression replace(IPersistentMap replacements) {
+		ArrayList<Expression> alk=new ArrayList<Expression>(length);
+		ArrayList<Expression> alv=new ArrayList<Expression>(length);
+		boolean changed=false;
+		for (int i=0; i<length; i++) {
+			Expression k=keys.get(i);
+			Expression nk=k.replace(replacements);
+			Expression v=vals.get(i);
+			Expression nv=v.replace(replacements);
+			changed |= (nk!=k)||(nv!=v);
+			alk.add(nk);
+			alv.add(nv);
+		}
+		if (!changed) return this;
+		return create(alk,alv);
+	}
+
+	@Override
+	public Expression optimise() {
+		Expression[] cs=getChildren();
+		boolean constant=true;
+		for (int i=0; i<cs.length; i++) {
+			cs[i]=cs[i].optimise();
+			if (!cs[i].isConstant()) constant=false;
+		}
+		if (constant&&(shape!=null)) {
+			Object[] vs=new Object[length];
+			for (int i=0; i<length; i++) {
+				vs[i]=((Constant<?>)cs[i*2+1]).getValue();
+			}
+			return Constant.create(ShapedMap.create(shape, vs));
+		}
+		if (constant) {
+			// fold to a single constant map
+			ITransientMap tm=PersistentArrayMap.EMPTY.asTransient();
+			for (int i=0; i<length; i++) {
+				tm=tm.assoc(((Constant<?>)cs[i*2]).getValue(), ((Constant<?>)cs[i*2+1]).getValue());
+			}
+			return Constant.create(tm.persistent());
+		}
+		return withChildren(cs);
+	}
+
 	@Override
 	public Result interpret(Environment d, IPersistentMap bindings) {
-		HashMap<Object,Object> hm=new HashMap<Object,Object>();
+		if (Parallel.isEnabled()&&Parallel.shouldFork(getPlan())) {
+			// children are keys and values interleaved
+			Object[] kvs=Parallel.evaluate(getPlan(), d, bindings);
+			if (shape!=null) {
+				Object[] vs=new Object[length];
+				for (int i=0; i<length; i++) {
+					vs[i]=kvs[i*2+1];
+				}
+				return d.withResult(ShapedMap.create(shape, vs));
+			}
+			ITransientMap tm=PersistentArrayMap.EMPTY.asTransient();
+			for (int i=0; i<length; i++) {
+				tm=tm.assoc(kvs[i*2], kvs[i*2+1]);
+			}
+			return d.withResult(tm.persistent());
+		}
+		
+		if (shape!=null) {
+			// keys are constant, so only the values need to be evaluated
+			Object[] vs=new Object[length];
+			for (int i=0; i<length; i++) {
+				Result t=vals.get(i).interpret(d, bindings);
+				if (t.isExiting()) return t;
+				vs[i]=t.getResult();
+			}
+			return d.withResult(ShapedMap.create(shape, vs));
+		}
+		
+		// a transient array map builds small maps directly, and becomes a hash map when large
+		ITransientMap tm=PersistentArrayMap.EMPTY.asTransient();
 		for (int i=0; i<length; i++) {
 			Result t=keys.get(i).interpret(d, bindings);
 			if (t.isExiting()) return t;
@@ -109,9 +225,57 @@ public class Map extends Expression {
 			if (t.isExiting()) return t;
 			
 			Object v=t.getResult();
-			hm.put(k, v);
+			tm=tm.assoc(k, v);
 		}
-		return d.withResult(PersistentHashMap.create(hm));
+		return d.withResult(tm.persistent());
+	}
+	
+	private Parallel.Plan getPlan() {
+		Parallel.Plan p=plan;
+		if ((p==null)||p.isStale()) {
+			p=Parallel.plan(getChildren());
+			plan=p;
+		}
+		return p;
+	}
+	
+	@Override
+	public Expression[] getChildren() {
+		Expression[] cs=new Expression[length*2];
+		for (int i=0; i<length; i++) {
+			cs[i*2]=keys.get(i);
+			cs[i*2+1]=vals.get(i);
+		}
+		return cs;
+	}
+	
+	@Override
+	public Expression withChildren(Expression[] children) {
+		if (KissUtils.identicalElements(getChildren(), children)) return this;
+		ArrayList<Expression> alk=new ArrayList<Expression>(length);
+		ArrayList<Expression> alv=new ArrayList<Expression>(length);
+		for (int i=0; i<length; i++) {
+			alk.add(children[i*2]);
+			alv.add(children[i*2+1]);
+		}
+		return create(alk,alv);
+	}
+	
+	@Override
+	public int getSize() {
+		int size=1;
+		for (int i=0; i<length; i++) {
+			size+=keys.get(i).getSize()+vals.get(i).getSize();
+		}
+		return size;
+	}
+	
+	@Override
+	public boolean canExit() {
+		for (int i=0; i<length; i++) {
+			if (keys.get(i).canExit()||vals.get(i).canExit()) return true;
+		}
+		return false;
 	}
 	
 	@Override
@@ -131,5 +295,16 @@ public class Map extends Expression {
 		if (length!=vals.size()) throw new KissException("Mismatched vector length!");
 	}
 
+	@Override
+	public boolean equals(Object o) {
+		if (o==this) return true;
+		if (!(o instanceof Map)) return false;
+		Map x=(Map)o;
+		return keys.equals(x.keys)&&vals.equals(x.vals);
+	}
 
+	@Override
+	public int hashCode() {
+		return keys.hashCode()*31+vals.hashCode();
+	}
 }
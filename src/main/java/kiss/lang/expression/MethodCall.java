@@ -1,14 +1,269 @@
 package kiss.lang.expression;
 
+import java.lang.invoke.MethodHandle;
+
+import kiss.lang.Environment;
 import kiss.lang.Expression;
+import kiss.lang.Result;
+import kiss.lang.Type;
+import kiss.lang.impl.Interop;
+import kiss.lang.impl.KissException;
+import kiss.lang.type.Anything;
+import clojure.lang.IPersistentMap;
+import clojure.lang.IPersistentSet;
 
 /**
- * Expression representing a Java method call
- * 
+ * Expression representing a Java method call, either on an object instance or a static method of a class.
+ *
+ * Calls are linked to MethodHandles. If the receiver class is known statically and the method
+ * can be resolved by arity alone, the handle is linked at construction time. Otherwise a per-site
+ * inline cache keyed on receiver class is used.
+ *
  * @author Mike
  *
  */
-public abstract class MethodCall extends Expression {
+public class MethodCall extends Expression {
+	private static final int MAX_CACHE_SIZE=8;
+
+	private final Expression target; // null for static calls
+	private final Class<?> klass; // class for static calls
+	private final String name;
+	private final Expression[] params;
+	private final int arity;
+	private final MethodHandle handle; // statically linked handle, may be null
+	private final Type type;
+
+	private volatile CacheEntry cache=null;
+
+	/**
+	 * Immutable inline cache entry. Argument classes are only used for overloaded methods.
+	 */
+	private static final class CacheEntry {
+		final Class<?> klass;
+		final Class<?>[] argClasses;
+		final MethodHandle handle;
+		final CacheEntry next;
+		final int size;
+
+		CacheEntry(Class<?> klass, Class<?>[] argClasses, MethodHandle handle, CacheEntry next) {
+			this.klass=klass;
+			this.argClasses=argClasses;
+			this.handle=handle;
+			this.next=next;
+			this.size=(next==null)?1:next.size+1;
+		}
+	}
+
+	private MethodCall(Expression target, Class<?> klass, String name, Expression[] params, MethodHandle handle, Type type) {
+		this.target=target;
+		this.klass=klass;
+		this.name=name;
+		this.params=params;
+		this.arity=params.length;
+		this.handle=handle;
+		this.type=type;
+	}
+
+	/**
+	 * Creates an instance method call on the result of the target expression
+	 */
+	public static Expression create(Expression target, String name, Expression... params) {
+		params=params.clone();
+		Class<?> c=target.getType().getJavaClass();
+		if ((c==null)||(c==Object.class)||c.isPrimitive()) {
+			return new MethodCall(target,null,name,params,null,Anything.INSTANCE);
+		}
+		int arity=params.length;
+		if (!Interop.isUnique(c, name, arity, false)) {
+			return new MethodCall(target,null,name,params,null,Anything.INSTANCE);
+		}
+		MethodHandle mh=Interop.findMethod(c, name, arity, false, null);
+		Type type=Interop.getReturnType(Interop.getReturnClass(c, name, arity, false));
+		return new MethodCall(target,null,name,params,mh,type);
+	}
+
+	/**
+	 * Creates a static method call on the given class
+	 */
+	public static Expression createStatic(Class<?> klass, String name, Expression... params) {
+		params=params.clone();
+		int arity=params.length;
+		if (Interop.getMethods(klass, name, arity, true).length==0) {
+			throw new KissException("No static method "+name+" with arity "+arity+" found for "+klass);
+		}
+		if (!Interop.isUnique(klass, name, arity, true)) {
+			return new MethodCall(null,klass,name,params,null,Anything.INSTANCE);
+		}
+		MethodHandle mh=Interop.findMethod(klass, name, arity, true, null);
+		Type type=Interop.getReturnType(Interop.getReturnClass(klass, name, arity, true));
+		return new MethodCall(null,klass,name,params,mh,type);
+	}
+
+	private boolean isStatic() {
+		return target==null;
+	}
+
+	private Expression update(Expression nTarget, Expression[] nParams) {
+		boolean changed=(nTarget!=target);
+		for (int i=0; i<arity; i++) {
+			if (params[i]!=nParams[i]) changed=true;
+		}
+		if (!changed) return this;
+		if (isStatic()) return new MethodCall(null,klass,name,nParams,handle,type);
+		return create(nTarget,name,nParams);
+	}
+
+	@Override
+	public Type getType() {
+		return type;
+	}
+
+	@Override
+	public Expression optimise() {
+		Expression nTarget=(target==null)?null:target.optimise();
+		Expression[] nParams=new Expression[arity];
+		for (int i=0; i<arity; i++) {
+			nParams[i]=params[i].optimise();
+		}
+		return update(nTarget,nParams);
+	}
+
+	@Override
+	public Expression specialise(Type type) {
+		if (type.contains(this.getType())) return this;
+		return Cast.create(type, this);
+	}
+
+	@Override
+	public Expression substitute(IPersistentMap bindings) {
+		Expression nTarget=(target==null)?null:target.substitute(bindings);
+		Expression[] nParams=new Expression[arity];
+		for (int i=0; i<arity; i++) {
+			nParams[i]=params[i].substitute(bindings);
+		}
+		return update(nTarget,nParams);
+	}
+
+	@Override
+	public Expression refine(IPersistentMap types) {
+		Expression nTarget=(target==null)?null:target.refine(types);
+		Expression[] nParams=new Expression[arity];
+		for (int i=0; i<arity; i++) {
+			nParams[i]=params[i].refine(types);
+		}
+		return update(nTarget,nParams);
+	}
+	
+	@Override
+	public Expression replace(IPersistentMap replacements) {
+		Expression nTarget=(target==null)?null:target.replace(replacements);
+		Expression[] nParams=new Expression[arity];
+		for (int i=0; i<arity; i++) {
+			nParams[i]=params[i].replace(replacements);
+		}
+		return update(nTarget,nParams);
+	}
+
+	@Override
+	public Result interpret(Environment d, IPersistentMap bindings) {
+		int off=isStatic()?0:1;
+		Object[] args=new Object[arity+off];
+		Result r=null;
+		if (!isStatic()) {
+			r=target.interpret(d, bindings);
+			if (r.isExiting()) return r;
+			Object t=r.getResult();
+			if (t==null) throw new KissException("Null target for method call: "+name);
+			args[0]=t;
+		}
+		for (int i=0; i<arity; i++) {
+			r=params[i].interpret(d, bindings);
+			if (r.isExiting()) return r;
+			args[i+off]=r.getResult();
+		}
+
+		MethodHandle mh=handle;
+		if (mh==null) mh=lookupHandle(args,off);
+		Object result=Interop.invoke(mh, args);
+		return (r==null)?d.withResult(result):r.withResult(result);
+	}
+
+	/**
+	 * Finds a MethodHandle for the given arguments using the inline cache, linking on a cache miss
+	 */
+	private MethodHandle lookupHandle(Object[] args, int off) {
+		Class<?> c=isStatic()?klass:args[0].getClass();
+		CacheEntry head=cache;
+		for (CacheEntry ce=head; ce!=null; ce=ce.next) {
+			if ((ce.klass==c)&&((ce.argClasses==null)||matchArgs(ce.argClasses,args,off))) {
+				return ce.handle;
+			}
+		}
+
+		Class<?>[] argClasses=Interop.isUnique(c, name, arity, isStatic())?null:Interop.argClasses(args, off);
+		MethodHandle mh=Interop.findMethod(c, name, arity, isStatic(), argClasses);
+		if ((head==null)||(head.size<MAX_CACHE_SIZE)) {
+			cache=new CacheEntry(c,argClasses,mh,head);
+		}
+		return mh;
+	}
+
+	private static boolean matchArgs(Class<?>[] argClasses, Object[] args, int off) {
+		for (int i=0; i<argClasses.length; i++) {
+			Object a=args[i+off];
+			Class<?> ac=(a==null)?null:a.getClass();
+			if (ac!=argClasses[i]) return false;
+		}
+		return true;
+	}
+
+	@Override
+	public Expression[] getChildren() {
+		if (target==null) return params.clone();
+		Expression[] cs=new Expression[arity+1];
+		cs[0]=target;
+		System.arraycopy(params, 0, cs, 1, arity);
+		return cs;
+	}
+	
+	@Override
+	public Expression withChildren(Expression[] children) {
+		if (target==null) return update(null,children.clone());
+		Expression[] nParams=new Expression[arity];
+		System.arraycopy(children, 1, nParams, 0, arity);
+		return update(children[0],nParams);
+	}
+	
+	@Override
+	public int getSize() {
+		int size=(target==null)?1:1+target.getSize();
+		for (Expression e:params) {
+			size+=e.getSize();
+		}
+		return size;
+	}
+	
+	@Override
+	public boolean canExit() {
+		if ((target!=null)&&target.canExit()) return true;
+		for (Expression e:params) {
+			if (e.canExit()) return true;
+		}
+		return false;
+	}
+	
+	@Override
+	public IPersistentSet accumulateFreeSymbols(IPersistentSet s) {
+		if (target!=null) s=target.accumulateFreeSymbols(s);
+		for (int i=0; i<arity; i++) {
+			s=params[i].accumulateFreeSymbols(s);
+		}
+		return s;
+	}
 
-	// TODO: Java method calls on object instances
+	@Override
+	public void validate() {
+		if (params.length!=arity) throw new KissException("Mismatched arity!");
+		if ((target==null)&&(klass==null)) throw new KissException("No target or class for method call: "+name);
+	}
 }
@@ -0,0 +1,146 @@
+package kiss.lang.expression;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.IPersistentSet;
+import kiss.lang.Environment;
+import kiss.lang.Expression;
+import kiss.lang.Result;
+import kiss.lang.Type;
+import kiss.lang.impl.Profiler;
+
+/**
+ * An expression which records profiling data for the evaluation of its body, attributed to a
+ * source form. Created by the Analyser when analysing via Profiler.analyse.
+ *
+ * When profiling is disabled, evaluation costs a single flag check. Profiled nodes are transparent
+ * to optimisation: equality ignores the site, so that CSE can merge profiled subexpressions, and 
+ * passes that match on node types should look through them with strip.
+ *
+ * @author Mike
+ *
+ */
+public class Profiled extends Expression {
+	private final Expression body;
+	private final Profiler.Site site;
+
+	private Profiled(Expression body, Profiler.Site site) {
+		this.body=body;
+		this.site=site;
+	}
+
+	/**
+	 * Wraps an expression for profiling. Constants are not profiled, and are returned unchanged.
+	 */
+	public static Expression create(Expression body, Profiler.Site site) {
+		if ((body==null)||body.isConstant()||(body instanceof Profiled)) return body;
+		return new Profiled(body,site);
+	}
+
+	/**
+	 * Gets the expression wrapped by a Profiled node, or the expression itself if not profiled
+	 */
+	public static Expression strip(Expression x) {
+		return (x instanceof Profiled)?((Profiled)x).body:x;
+	}
+
+	private Expression update(Expression nBody) {
+		if (nBody==body) return this;
+		return create(nBody,site);
+	}
+
+	public Expression getBody() {
+		return body;
+	}
+
+	public Profiler.Site getSite() {
+		return site;
+	}
+
+	@Override
+	public Type getType() {
+		return body.getType();
+	}
+
+	@Override
+	public Result interpret(Environment d, IPersistentMap bindings) {
+		if (!Profiler.isEnabled()) return body.interpret(d, bindings);
+		Profiler.Frame f=Profiler.enter(site);
+		try {
+			return body.interpret(d, bindings);
+		} finally {
+			Profiler.exit(f);
+		}
+	}
+
+	@Override
+	public Expression optimise() {
+		return update(body.optimise());
+	}
+
+	@Override
+	public boolean isPure() {
+		return body.isPure();
+	}
+
+	@Override
+	public Expression specialise(Type type) {
+		return update(body.specialise(type));
+	}
+
+	@Override
+	public Expression[] getChildren() {
+		return new Expression[] {body};
+	}
+
+	@Override
+	public Expression withChildren(Expression[] children) {
+		return update(children[0]);
+	}
+
+	@Override
+	public int getSize() {
+		return body.getSize(); // profiling should not change optimisation budgets
+	}
+
+	@Override
+	public boolean canExit() {
+		return body.canExit();
+	}
+
+	@Override
+	public IPersistentSet accumulateFreeSymbols(IPersistentSet s) {
+		return body.accumulateFreeSymbols(s);
+	}
+
+	@Override
+	public Expression substitute(IPersistentMap bindings) {
+		return update(body.substitute(bindings));
+	}
+
+	@Override
+	public Expression refine(IPersistentMap types) {
+		return update(body.refine(types));
+	}
+
+	@Override
+	public Expression replace(IPersistentMap replacements) {
+		return update(body.replace(replacements));
+	}
+
+	@Override
+	public void validate() {
+		body.validate();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o==this) return true;
+		if (!(o instanceof Profiled)) return false;
+		return body.equals(((Profiled)o).body);
+	}
+
+	@Override
+	public int hashCode() {
+		return body.hashCode();
+	}
+}
@@ -7,6 +7,7 @@ import kiss.lang.Expression;
 import kiss.lang.Result;
 import kiss.lang.Type;
 import kiss.lang.impl.KissException;
+import kiss.lang.impl.KissUtils;
 import kiss.lang.impl.RecurResult;
 import kiss.lang.type.Nothing;
 
@@ -64,6 +65,31 @@ public class Recur<T> extends Expression {
 		return this;
 	}
 	
+	@Override
+	public Expression[] getChildren() {
+		return values.clone();
+	}
+	
+	@Override
+	public Expression withChildren(Expression[] children) {
+		if (KissUtils.identicalElements(values, children)) return this;
+		return create(children.clone());
+	}
+	
+	@Override
+	public int getSize() {
+		int size=1;
+		for (Expression e:values) {
+			size+=e.getSize();
+		}
+		return size;
+	}
+	
+	@Override
+	public boolean canExit() {
+		return true;
+	}
+	
 	@Override
 	public IPersistentSet accumulateFreeSymbols(IPersistentSet s) {
 		return s;
@@ -74,6 +100,34 @@ public class Recur<T> extends Expression {
 		return this;
 	}
 	
+	@Override
+	public Expression refine(IPersistentMap types) {
+		Expression[] nvs=null;
+		for (int i=0; i<values.length; i++) {
+			Expression v=values[i];
+			Expression nv=v.refine(types);
+			if (nv==v) continue;
+			if (nvs==null) nvs=values.clone();
+			nvs[i]=nv;
+		}
+		if (nvs==null) return this;
+		return create(nvs);
+	}
+	
+	@Override
+	public Expression replace(IPersistentMap replacements) {
+		Expression[] nvs=null;
+		for (int i=0; i<values.length; i++) {
+			Expression v=values[i];
+			Expression nv=v.replace(replacements);
+			if (nv==v) continue;
+			if (nvs==null) nvs=values.clone();
+			nvs[i]=nv;
+		}
+		if (nvs==null) return this;
+		return create(nvs);
+	}
+	
 	@Override
 	public void validate() {
 		// TODO: anything to validate?
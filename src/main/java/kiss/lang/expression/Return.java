@@ -60,6 +60,27 @@ public class Return<T> extends Expression {
 		return this;
 	}
 	
+	@Override
+	public Expression[] getChildren() {
+		return new Expression[] {value};
+	}
+	
+	@Override
+	public Expression withChildren(Expression[] children) {
+		if (children[0]==value) return this;
+		return create(children[0]);
+	}
+	
+	@Override
+	public int getSize() {
+		return 1+value.getSize();
+	}
+	
+	@Override
+	public boolean canExit() {
+		return true;
+	}
+	
 	@Override
 	public IPersistentSet accumulateFreeSymbols(IPersistentSet s) {
 		return s;
@@ -70,6 +91,20 @@ public class Return<T> extends Expression {
 		return this;
 	}
 	
+	@Override
+	public Expression refine(IPersistentMap types) {
+		Expression nv=value.refine(types);
+		if (nv==value) return this;
+		return create(nv);
+	}
+	
+	@Override
+	public Expression replace(IPersistentMap replacements) {
+		Expression nv=value.replace(replacements);
+		if (nv==value) return this;
+		return create(nv);
+	}
+	
 	@Override
 	public void validate() {
 		// TODO: anything to validate?
@@ -0,0 +1,147 @@
+package kiss.lang.expression;
+
+import kiss.lang.Environment;
+import kiss.lang.Expression;
+import kiss.lang.Result;
+import kiss.lang.Type;
+import kiss.lang.impl.KissException;
+import kiss.lang.impl.Shape;
+import kiss.lang.impl.ShapedMap;
+import kiss.lang.type.Anything;
+import kiss.lang.type.ShapeType;
+import clojure.lang.IPersistentMap;
+import clojure.lang.IPersistentSet;
+import clojure.lang.Keyword;
+import clojure.lang.RT;
+
+/**
+ * Expression representing a keyword lookup on a map with a statically known Shape.
+ * 
+ * Reads the value slot directly when the map has the expected shape, and falls back to a 
+ * generic lookup otherwise.
+ * 
+ * @author Mike
+ *
+ */
+public class SlotLookup extends Expression {
+	private final Expression target;
+	private final Keyword key;
+	private final Shape shape;
+	private final int index;
+	
+	private SlotLookup(Expression target, Keyword key, Shape shape, int index) {
+		this.target=target;
+		this.key=key;
+		this.shape=shape;
+		this.index=index;
+	}
+	
+	/**
+	 * Creates a slot lookup of a key in a target, or returns null if the target does not
+	 * have a known shape containing the key
+	 */
+	public static Expression tryCreate(Keyword key, Expression target) {
+		Type t=target.getType();
+		if (!(t instanceof ShapeType)) return null;
+		Shape shape=((ShapeType)t).getShape();
+		int i=shape.indexOf(key);
+		if (i<0) return null;
+		return new SlotLookup(target,key,shape,i);
+	}
+	
+	private Expression update(Expression target) {
+		if (target==this.target) return this;
+		return new SlotLookup(target,key,shape,index);
+	}
+	
+	@Override
+	public Type getType() {
+		return Anything.INSTANCE;
+	}
+	
+	@Override
+	public boolean isPure() {
+		return target.isPure();
+	}
+	
+	@Override
+	public Expression optimise() {
+		return update(target.optimise());
+	}
+
+	@Override
+	public Result interpret(Environment d, IPersistentMap bindings) {
+		Result r=target.interpret(d, bindings);
+		if (r.isExiting()) return r;
+		Object o=r.getResult();
+		if ((o instanceof ShapedMap)&&(((ShapedMap)o).getShape()==shape)) {
+			return r.withResult(((ShapedMap)o).get(index));
+		}
+		return r.withResult(RT.get(o, key));
+	}
+
+	@Override
+	public Expression specialise(Type type) {
+		return Cast.create(type, this);
+	}
+
+	@Override
+	public Expression substitute(IPersistentMap bindings) {
+		Expression nt=target.substitute(bindings);
+		if (nt==null) return null;
+		return update(nt);
+	}
+
+	@Override
+	public Expression refine(IPersistentMap types) {
+		return update(target.refine(types));
+	}
+	
+	@Override
+	public Expression replace(IPersistentMap replacements) {
+		return update(target.replace(replacements));
+	}
+	
+	@Override
+	public Expression[] getChildren() {
+		return new Expression[] {target};
+	}
+	
+	@Override
+	public Expression withChildren(Expression[] children) {
+		return update(children[0]);
+	}
+	
+	@Override
+	public int getSize() {
+		return 1+target.getSize();
+	}
+	
+	@Override
+	public boolean canExit() {
+		return target.canExit();
+	}
+
+	@Override
+	public IPersistentSet accumulateFreeSymbols(IPersistentSet s) {
+		return target.accumulateFreeSymbols(s);
+	}
+
+	@Override
+	public void validate() {
+		if (shape.getKey(index)!=key) throw new KissException("Slot does not match key: "+key);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o==this) return true;
+		if (!(o instanceof SlotLookup)) return false;
+		SlotLookup s=(SlotLookup)o;
+		return (shape==s.shape)&&(index==s.index)&&target.equals(s.target);
+	}
+
+	@Override
+	public int hashCode() {
+		return target.hashCode()*31+index;
+	}
+}
@@ -1,17 +1,21 @@
 package kiss.lang.expression;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import clojure.lang.APersistentVector;
 import clojure.lang.IPersistentMap;
 import clojure.lang.IPersistentSet;
+import clojure.lang.ITransientCollection;
 import clojure.lang.PersistentVector;
 import kiss.lang.Environment;
 import kiss.lang.Expression;
 import kiss.lang.Result;
 import kiss.lang.Type;
 import kiss.lang.impl.KissException;
+import kiss.lang.impl.KissUtils;
+import kiss.lang.impl.Parallel;
 import kiss.lang.type.JavaType;
 
 /**
@@ -24,6 +28,7 @@ public class Vector extends Expression {
 	
 	private List<Expression> vals;
 	private int length;
+	private Parallel.Plan plan; // computed lazily, see Parallel
 	
 	private Vector(List<Expression> vs) {
 		this.vals=vs;
@@ -69,16 +74,109 @@ public class Vector extends Expression {
 		return create(al);
 	}
 
+	@Override
+	public Expression refine(IPersistentMap types) {
+		ArrayList<Expression> al=null;
+		for (int i=0; i<length; i++) {
+			Expression x=vals.get(i);
+			Expression nx=x.refine(types);
+			if ((al==null)&&(nx!=x)) {
+				al=new ArrayList<Expression>(vals.subList(0, i));
+			}
+			if (al!=null) al.add(nx);
+		}
+		if (al==null) return this;
+		return create(al);
+	}
+	
+	@Override
+	public Expression replace(IPersistentMap replacements) {
+		ArrayList<Expression> al=null;
+		for (int i=0; i<length; i++) {
+			Expression x=vals.get(i);
+			Expression nx=x.replace(replacements);
+			if ((al==null)&&(nx!=x)) {
+				al=new ArrayList<Expression>(vals.subList(0, i));
+			}
+			if (al!=null) al.add(nx);
+		}
+		if (al==null) return this;
+		return create(al);
+	}
+
+	@Override
+	public Expression optimise() {
+		Expression[] cs=getChildren();
+		boolean constant=true;
+		for (int i=0; i<length; i++) {
+			cs[i]=cs[i].optimise();
+			if (!cs[i].isConstant()) constant=false;
+		}
+		if (constant) {
+			// fold to a single constant vector
+			ITransientCollection tv=PersistentVector.EMPTY.asTransient();
+			for (int i=0; i<length; i++) {
+				tv=tv.conj(((Constant<?>)cs[i]).getValue());
+			}
+			return Constant.create(tv.persistent());
+		}
+		return withChildren(cs);
+	}
+
 	@Override
 	public Result interpret(Environment d, IPersistentMap bindings) {
-		ArrayList<Object> al=new ArrayList<Object>(length);
+		// build directly into a transient, avoiding an intermediate copy
+		ITransientCollection tv=PersistentVector.EMPTY.asTransient();
+		if (Parallel.isEnabled()&&Parallel.shouldFork(getPlan())) {
+			for (Object v: Parallel.evaluate(getPlan(), d, bindings)) {
+				tv=tv.conj(v);
+			}
+			return d.withResult(tv.persistent());
+		}
 		for (int i=0; i<length; i++) {
 			Result t=vals.get(i).interpret(d, bindings);
 			if (t.isExiting()) return t;
 			d=t.getEnvironment();
-			al.add(t.getResult());
+			tv=tv.conj(t.getResult());
+		}
+		return d.withResult(tv.persistent());
+	}
+	
+	private Parallel.Plan getPlan() {
+		Parallel.Plan p=plan;
+		if ((p==null)||p.isStale()) {
+			p=Parallel.plan(getChildren());
+			plan=p;
+		}
+		return p;
+	}
+	
+	@Override
+	public Expression[] getChildren() {
+		return vals.toArray(new Expression[length]);
+	}
+	
+	@Override
+	public Expression withChildren(Expression[] children) {
+		if (KissUtils.identicalElements(getChildren(), children)) return this;
+		return create(Arrays.asList(children.clone()));
+	}
+	
+	@Override
+	public int getSize() {
+		int size=1;
+		for (Expression e:vals) {
+			size+=e.getSize();
 		}
-		return d.withResult(PersistentVector.create(al));
+		return size;
+	}
+	
+	@Override
+	public boolean canExit() {
+		for (Expression e:vals) {
+			if (e.canExit()) return true;
+		}
+		return false;
 	}
 	
 	@Override
@@ -95,5 +193,15 @@ public class Vector extends Expression {
 		if (length!=vals.size()) throw new KissException("Mismatched vector length!");
 	}
 
+	@Override
+	public boolean equals(Object o) {
+		if (o==this) return true;
+		if (!(o instanceof Vector)) return false;
+		return vals.equals(((Vector)o).vals);
+	}
 
+	@Override
+	public int hashCode() {
+		return vals.hashCode()+6;
+	}
 }
@@ -0,0 +1,168 @@
+package kiss.lang.impl;
+
+import kiss.lang.Expression;
+import clojure.lang.Symbol;
+
+/**
+ * Lifecycle events for the analyser, compiler, optimisation passes, environments and caches.
+ *
+ * Design intent:
+ * - Events are delivered to a single Sink, or discarded if there is none
+ * - With no Sink, each event costs a single field read
+ * - begin methods return an event token, or null if the event is not being recorded. end methods
+ *   must be passed the token, and ignore null tokens.
+ * - The default Sink records Java Flight Recorder events, if available on both the classpath and
+ *   the running JVM. JFR support is built by the jfr profile, so the core still runs on Java 7.
+ *
+ * @author Mike
+ *
+ */
+public final class Events {
+	/**
+	 * A receiver of events. begin methods may return null to decline recording an event.
+	 */
+	public interface Sink {
+		Object beginAnalyse();
+		void endAnalyse(Object event, int size, int macroExpansions);
+
+		Object beginCompile();
+		void endCompile(Object event, int size);
+
+		Object beginPass();
+		void endPass(Object event, String pass, int sizeIn, int sizeOut, boolean changed);
+
+		Object beginDefine();
+		void endDefine(Object event, Symbol sym, int dependents);
+
+		Object beginMerge();
+		void endMerge(Object event, int symbols);
+
+		void cache(String cache, boolean hit);
+	}
+
+	private static final String JFR_SINK="kiss.lang.jfr.JfrSink";
+
+	/**
+	 * Token for an event that is nested within another event of the same kind, or declined by the Sink
+	 */
+	private static final Object IGNORED=new Object();
+
+	private static volatile Sink sink=defaultSink();
+
+	// analysis depth and macro expansion count for the current top level analysis
+	private static final ThreadLocal<int[]> analysis=new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[2];
+		}
+	};
+
+	private Events() {
+		// static utility
+	}
+
+	private static Sink defaultSink() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return (Sink) Class.forName(JFR_SINK).newInstance();
+		} catch (Throwable t) {
+			return null; // JFR not available
+		}
+	}
+
+	public static Sink getSink() {
+		return sink;
+	}
+
+	/**
+	 * Sets the Sink for all events, or null to discard events
+	 */
+	public static void setSink(Sink s) {
+		sink=s;
+	}
+
+	/**
+	 * Begins analysis of a form. Only top level analysis is recorded.
+	 */
+	public static Object beginAnalyse() {
+		Sink s=sink;
+		if (s==null) return null;
+		int[] a=analysis.get();
+		if (a[0]++>0) return IGNORED;
+		a[1]=0;
+		Object ev=s.beginAnalyse();
+		return (ev==null)?IGNORED:ev;
+	}
+
+	/**
+	 * Ends analysis of a form. The result may be null if analysis failed.
+	 */
+	public static void endAnalyse(Object ev, Expression result) {
+		if (ev==null) return;
+		int[] a=analysis.get();
+		a[0]--;
+		Sink s=sink;
+		if ((ev==IGNORED)||(s==null)) return;
+		s.endAnalyse(ev, (result==null)?0:result.getSize(), a[1]);
+	}
+
+	/**
+	 * Records a macro expansion within the current analysis
+	 */
+	public static void macroExpanded() {
+		if (sink==null) return;
+		analysis.get()[1]++;
+	}
+
+	public static Object beginCompile() {
+		Sink s=sink;
+		return (s==null)?null:s.beginCompile();
+	}
+
+	public static void endCompile(Object ev, Expression ex) {
+		Sink s=sink;
+		if ((ev==null)||(s==null)) return;
+		s.endCompile(ev, ex.getSize());
+	}
+
+	public static Object beginPass() {
+		Sink s=sink;
+		return (s==null)?null:s.beginPass();
+	}
+
+	public static void endPass(Object ev, String pass, int sizeIn, int sizeOut, boolean changed) {
+		Sink s=sink;
+		if ((ev==null)||(s==null)) return;
+		s.endPass(ev, pass, sizeIn, sizeOut, changed);
+	}
+
+	public static Object beginDefine() {
+		Sink s=sink;
+		return (s==null)?null:s.beginDefine();
+	}
+
+	public static void endDefine(Object ev, Symbol sym, int dependents) {
+		Sink s=sink;
+		if ((ev==null)||(s==null)) return;
+		s.endDefine(ev, sym, dependents);
+	}
+
+	public static Object beginMerge() {
+		Sink s=sink;
+		return (s==null)?null:s.beginMerge();
+	}
+
+	public static void endMerge(Object ev, int symbols) {
+		Sink s=sink;
+		if ((ev==null)||(s==null)) return;
+		s.endMerge(ev, symbols);
+	}
+
+	/**
+	 * Records a hit or miss in a named cache
+	 */
+	public static void cache(String cache, boolean hit) {
+		Sink s=sink;
+		if (s!=null) s.cache(cache, hit);
+	}
+}
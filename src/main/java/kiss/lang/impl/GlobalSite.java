@@ -0,0 +1,78 @@
+package kiss.lang.impl;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.invoke.SwitchPoint;
+
+import kiss.lang.Environment;
+import clojure.lang.Symbol;
+
+/**
+ * Call site linking a global symbol to its current value in a Linker's lineage.
+ *
+ * The target is a constant guarded by the symbol's SwitchPoint. When the SwitchPoint is
+ * invalidated, the next invocation relinks to the value in the latest Environment. A symbol may be
+ * redefined to a value of any type, so compiled code must not assume the type of a linked symbol.
+ *
+ * @author Mike
+ *
+ */
+public final class GlobalSite extends MutableCallSite {
+	private static final MethodType TYPE=MethodType.methodType(Object.class);
+	private static final MethodHandle RELINK;
+
+	static {
+		try {
+			RELINK=MethodHandles.lookup().findVirtual(GlobalSite.class, "relink", TYPE);
+		} catch (ReflectiveOperationException e) {
+			throw new KissException("Failed to initialise GlobalSite",e);
+		}
+	}
+
+	private final Linker linker;
+	private final Symbol sym;
+	private final MethodHandle fallback;
+	private final MethodHandle invoker;
+
+	GlobalSite(Linker linker, Symbol sym) {
+		super(TYPE);
+		this.linker=linker;
+		this.sym=sym;
+		this.fallback=RELINK.bindTo(this);
+		setTarget(fallback);
+		this.invoker=dynamicInvoker();
+	}
+
+	public Symbol getSymbol() {
+		return sym;
+	}
+
+	/**
+	 * Gets the current value of the linked symbol
+	 */
+	public Object getValue() {
+		try {
+			return (Object) invoker.invokeExact();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Error e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new KissException("Failed to get value of linked symbol: "+sym,t);
+		}
+	}
+
+	@SuppressWarnings("unused")
+	private Object relink() {
+		// get the SwitchPoint before the head, so that a concurrent redefinition is never missed
+		SwitchPoint sp=linker.getSwitchPoint(sym);
+		Environment e=linker.getHead();
+		Mapping m=e.getMapping(sym);
+		if (m==null) throw new KissException("Cannot lookup symbol "+sym+" in environment");
+		Object value=m.getValue();
+		setTarget(sp.guardWithTest(MethodHandles.constant(Object.class, value), fallback));
+		return value;
+	}
+}
@@ -0,0 +1,186 @@
+package kiss.lang.impl;
+
+import kiss.lang.Environment;
+import kiss.lang.Expression;
+import kiss.lang.expression.Constant;
+import kiss.lang.expression.Lambda;
+import kiss.lang.expression.Let;
+import kiss.lang.expression.Profiled;
+import clojure.lang.IPersistentMap;
+import clojure.lang.IPersistentSet;
+import clojure.lang.ISeq;
+import clojure.lang.PersistentHashMap;
+import clojure.lang.PersistentHashSet;
+import clojure.lang.RT;
+import clojure.lang.Symbol;
+
+/**
+ * Function inliner, used by Application.optimise to inline calls to small lambdas.
+ *
+ * Constant arguments are substituted directly into the function body, other arguments are
+ * bound with Let in evaluation order. Inlining is limited by a body size budget, and by a
+ * depth budget for inlining within already inlined code.
+ *
+ * @author Mike
+ *
+ */
+public class Inliner {
+	private static volatile int maxSize=24;
+	private static volatile int maxDepth=4;
+
+	private static final ThreadLocal<int[]> depth=new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+
+	/**
+	 * Sets the maximum size of function body (in expression nodes) that will be inlined
+	 */
+	public static void setMaxSize(int size) {
+		maxSize=size;
+	}
+
+	public static int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Sets the maximum depth of nested inlining. Zero disables inlining.
+	 */
+	public static void setMaxDepth(int d) {
+		maxDepth=d;
+	}
+
+	public static int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * Optimises an expression with inlining disabled
+	 */
+	public static Expression optimiseWithoutInlining(Expression x) {
+		int[] d=depth.get();
+		int old=d[0];
+		d[0]=Integer.MAX_VALUE;
+		try {
+			return x.optimise();
+		} finally {
+			d[0]=old;
+		}
+	}
+
+	/**
+	 * Returns true if the current thread is optimising with inlining disabled
+	 */
+	public static boolean isInliningSuppressed() {
+		return depth.get()[0]==Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Attempts to inline a function application.
+	 *
+	 * @param func An optimised function expression
+	 * @param args Optimised argument expressions
+	 * @return The optimised inlined expression, or null if the application cannot be inlined
+	 */
+	public static Expression inline(Expression func, Expression[] args) {
+		func=Profiled.strip(func);
+		if (func instanceof Lambda) {
+			Lambda fn=(Lambda)func;
+			return inline(fn.getBody(),fn.getParams(),args);
+		}
+		if (func.isConstant()) {
+			Object f=((Constant<?>)func).getValue();
+			if (f instanceof LambdaFn) {
+				LambdaFn fn=(LambdaFn)f;
+				Symbol[] params=fn.getParams();
+				if (params.length!=args.length) return null;
+				Expression body=closeOver(fn.getBody(),params,fn.getEnvironment());
+				if (body==null) return null;
+				return inline(body,params,args);
+			}
+		}
+		return null;
+	}
+
+	private static Expression inline(Expression body, Symbol[] params, Expression[] args) {
+		int n=params.length;
+		if (n!=args.length) return null;
+		int[] d=depth.get();
+		if (d[0]>=maxDepth) return null;
+		if (body.getSize()>maxSize) return null;
+		if (body.canExit()) return null; // return and recur must target the original function
+
+		// arguments are bound sequentially, so they must not refer to any parameter symbol
+		IPersistentSet argFree=PersistentHashSet.EMPTY;
+		for (Expression a:args) {
+			argFree=a.accumulateFreeSymbols(argFree);
+		}
+		for (Symbol p:params) {
+			if (argFree.contains(p)) return null;
+		}
+
+		// substitute constant arguments directly
+		IPersistentMap subs=PersistentHashMap.EMPTY;
+		for (int i=0; i<n; i++) {
+			if (args[i].isConstant()) subs=subs.assoc(params[i], ((Constant<?>)args[i]).getValue());
+		}
+		Expression result=body.substitute(subs);
+		if (result==null) return null;
+
+		// bind remaining arguments, preserving evaluation order
+		for (int i=n-1; i>=0; i--) {
+			if (args[i].isConstant()) continue;
+			result=Let.create(params[i], args[i], result);
+		}
+
+		d[0]++;
+		try {
+			return result.optimise();
+		} finally {
+			d[0]--;
+		}
+	}
+
+	/**
+	 * Substitutes the values of free symbols in a function body from its captured Environment.
+	 * Returns null if any free symbol is not bound.
+	 */
+	static Expression closeOver(Expression body, Symbol[] params, Environment env) {
+		IPersistentSet free=body.getFreeSymbols();
+		for (Symbol p:params) {
+			free=free.disjoin(p);
+		}
+		if (free.count()==0) return body;
+
+		IPersistentMap values=PersistentHashMap.EMPTY;
+		for (ISeq s=RT.seq(free); s!=null; s=s.next()) {
+			Symbol sym=(Symbol)s.first();
+			Mapping m=env.getMapping(sym);
+			if ((m==null)||(!m.isBound())) return null;
+			values=values.assoc(sym, m.getValue());
+		}
+		return body.substitute(values);
+	}
+
+	/**
+	 * Gets a Symbol -> value map of symbols in the given set that are bound to inlinable functions
+	 */
+	public static IPersistentMap inlinableGlobals(Environment e, IPersistentSet syms) {
+		IPersistentMap result=PersistentHashMap.EMPTY;
+		if (maxDepth<=0) return result;
+		for (ISeq s=RT.seq(syms); s!=null; s=s.next()) {
+			Symbol sym=(Symbol)s.first();
+			Mapping m=e.getMapping(sym);
+			if ((m==null)||(!m.isBound())) continue;
+			Object v=m.getValue();
+			if (!(v instanceof LambdaFn)) continue;
+			Expression body=((LambdaFn)v).getBody();
+			if ((body.getSize()>maxSize)||body.canExit()) continue;
+			result=result.assoc(sym, v);
+		}
+		return result;
+	}
+}
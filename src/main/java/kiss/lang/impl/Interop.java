@@ -0,0 +1,407 @@
+package kiss.lang.impl;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import kiss.lang.Type;
+import kiss.lang.type.Anything;
+import kiss.lang.type.JavaType;
+import kiss.lang.type.Maybe;
+import kiss.lang.type.Null;
+
+/**
+ * Static utility functions for Java interop.
+ *
+ * Resolves Java methods and fields to MethodHandles with a generic (Object[])Object calling convention.
+ * Resolved handles are cached, so reflective lookup happens at most once per class and member signature.
+ *
+ * @author Mike
+ */
+public class Interop {
+	private static final MethodHandles.Lookup LOOKUP=MethodHandles.publicLookup();
+
+	private static final ConcurrentHashMap<Key,Method[]> methodCache=new ConcurrentHashMap<Key,Method[]>();
+	private static final ConcurrentHashMap<Key,MethodHandle> handleCache=new ConcurrentHashMap<Key,MethodHandle>();
+	private static final ConcurrentHashMap<String,Object> classCache=new ConcurrentHashMap<String,Object>();
+
+	private static final Object NO_CLASS=new Object(); // cached result for names that are not classes
+
+	private static final MethodHandle TO_INT;
+	private static final MethodHandle TO_LONG;
+	private static final MethodHandle TO_SHORT;
+	private static final MethodHandle TO_BYTE;
+	private static final MethodHandle TO_FLOAT;
+	private static final MethodHandle TO_DOUBLE;
+
+	static {
+		try {
+			MethodHandles.Lookup l=MethodHandles.lookup();
+			TO_INT=l.findStatic(Interop.class, "toInt", MethodType.methodType(int.class,Object.class));
+			TO_LONG=l.findStatic(Interop.class, "toLong", MethodType.methodType(long.class,Object.class));
+			TO_SHORT=l.findStatic(Interop.class, "toShort", MethodType.methodType(short.class,Object.class));
+			TO_BYTE=l.findStatic(Interop.class, "toByte", MethodType.methodType(byte.class,Object.class));
+			TO_FLOAT=l.findStatic(Interop.class, "toFloat", MethodType.methodType(float.class,Object.class));
+			TO_DOUBLE=l.findStatic(Interop.class, "toDouble", MethodType.methodType(double.class,Object.class));
+		} catch (ReflectiveOperationException e) {
+			throw new KissException("Failed to initialise interop converters",e);
+		}
+	}
+
+	/**
+	 * Cache key for a class member lookup
+	 */
+	private static final class Key {
+		final Class<?> klass;
+		final String name;
+		final int arity;
+		final boolean isStatic;
+		final Class<?>[] argClasses;
+		final int hash;
+
+		Key(Class<?> klass, String name, int arity, boolean isStatic, Class<?>[] argClasses) {
+			this.klass=klass;
+			this.name=name;
+			this.arity=arity;
+			this.isStatic=isStatic;
+			this.argClasses=argClasses;
+			this.hash=(klass.hashCode()*31+name.hashCode())*31+arity+(isStatic?17:0)+Arrays.hashCode(argClasses);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key k=(Key)o;
+			return (klass==k.klass)&&(arity==k.arity)&&(isStatic==k.isStatic)&&name.equals(k.name)&&Arrays.equals(argClasses, k.argClasses);
+		}
+	}
+
+	/**
+	 * Gets the public methods of a class with the given name and arity
+	 */
+	public static Method[] getMethods(Class<?> klass, String name, int arity, boolean isStatic) {
+		Key key=new Key(klass,name,arity,isStatic,null);
+		Method[] ms=methodCache.get(key);
+		if (ms!=null) return ms;
+
+		ArrayList<Method> al=new ArrayList<Method>();
+		for (Method m: klass.getMethods()) {
+			if (!m.getName().equals(name)) continue;
+			if (m.getParameterTypes().length!=arity) continue;
+			if (Modifier.isStatic(m.getModifiers())!=isStatic) continue;
+			if (m.isBridge()) continue;
+			al.add(m);
+		}
+		ms=al.toArray(new Method[al.size()]);
+		methodCache.putIfAbsent(key, ms);
+		return ms;
+	}
+
+	/**
+	 * Returns true if the named method can be resolved on the given class using arity alone
+	 */
+	public static boolean isUnique(Class<?> klass, String name, int arity, boolean isStatic) {
+		return getMethods(klass,name,arity,isStatic).length==1;
+	}
+
+	/**
+	 * Finds a method handle for the named method on the given class.
+	 *
+	 * The handle takes an Object[] of the receiver (for instance methods) followed by the arguments, and returns an Object.
+	 *
+	 * @param argClasses Classes of the actual arguments, used for overload resolution. May be null if the method is unique.
+	 */
+	public static MethodHandle findMethod(Class<?> klass, String name, int arity, boolean isStatic, Class<?>[] argClasses) {
+		Key key=new Key(klass,name,arity,isStatic,argClasses);
+		MethodHandle mh=handleCache.get(key);
+		if (mh!=null) return mh;
+
+		Method[] ms=getMethods(klass,name,arity,isStatic);
+		if (ms.length==0) throw new KissException("No "+(isStatic?"static":"instance")+" method "+name+" with arity "+arity+" found for "+klass);
+		Method m=(argClasses==null)?uniqueMethod(ms,klass,name):selectMethod(ms,argClasses,klass,name);
+
+		try {
+			mh=LOOKUP.unreflect(publicMethod(m));
+		} catch (IllegalAccessException e) {
+			throw new KissException("Can't access method "+m,e);
+		}
+		mh=toGeneric(mh);
+		handleCache.putIfAbsent(key, mh);
+		return mh;
+	}
+
+	/**
+	 * Finds a getter method handle for a named field. The handle takes an Object[] containing the
+	 * receiver (empty for static fields) and returns an Object.
+	 */
+	public static MethodHandle findField(Class<?> klass, String name, boolean isStatic) {
+		Key key=new Key(klass,name,-1,isStatic,null);
+		MethodHandle mh=handleCache.get(key);
+		if (mh!=null) return mh;
+
+		try {
+			Field f=klass.getField(name);
+			if (Modifier.isStatic(f.getModifiers())!=isStatic) throw new KissException("Field "+name+" has wrong static modifier in "+klass);
+			mh=toGeneric(LOOKUP.unreflectGetter(f));
+		} catch (NoSuchFieldException e) {
+			throw new KissException("No field "+name+" found for "+klass,e);
+		} catch (IllegalAccessException e) {
+			throw new KissException("Can't access field "+name+" in "+klass,e);
+		}
+		handleCache.putIfAbsent(key, mh);
+		return mh;
+	}
+
+	/**
+	 * Returns true if the class has a public field with the given name
+	 */
+	public static boolean hasField(Class<?> klass, String name, boolean isStatic) {
+		try {
+			Field f=klass.getField(name);
+			return Modifier.isStatic(f.getModifiers())==isStatic;
+		} catch (NoSuchFieldException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Gets the return type of a method if it can be resolved using arity alone, null otherwise
+	 */
+	public static Class<?> getReturnClass(Class<?> klass, String name, int arity, boolean isStatic) {
+		Method[] ms=getMethods(klass,name,arity,isStatic);
+		if (ms.length!=1) return null;
+		return ms[0].getReturnType();
+	}
+
+	/**
+	 * Gets the declared class of a public field
+	 */
+	public static Class<?> getFieldClass(Class<?> klass, String name) {
+		try {
+			return klass.getField(name).getType();
+		} catch (NoSuchFieldException e) {
+			throw new KissException("No field "+name+" found for "+klass,e);
+		}
+	}
+
+	/**
+	 * Returns true if the named public field is final
+	 */
+	public static boolean isFinalField(Class<?> klass, String name) {
+		try {
+			return Modifier.isFinal(klass.getField(name).getModifiers());
+		} catch (NoSuchFieldException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Gets the Kiss type of values returned from a Java method or field of the given class.
+	 * Returns Anything if the class is unknown.
+	 */
+	public static Type getReturnType(Class<?> c) {
+		if (c==null) return Anything.INSTANCE;
+		if (c==void.class) return Null.INSTANCE;
+		if (c.isPrimitive()) return JavaType.create(MethodType.methodType(c).wrap().returnType());
+		return Maybe.create(JavaType.create(c));
+	}
+
+	/**
+	 * Resolves a class from a symbol name, returning null if no such class exists.
+	 * 
+	 * Results are cached, including misses, since the Analyser tries every namespace of a
+	 * qualified symbol. Classes are not initialised until used.
+	 */
+	public static Class<?> maybeClass(String name) {
+		if (name.indexOf('/')>=0) return null;
+		Object c=classCache.get(name);
+		if (c==null) {
+			c=findClass(name);
+			if (c==null) c=NO_CLASS;
+			classCache.putIfAbsent(name, c);
+		}
+		return (c==NO_CLASS)?null:(Class<?>)c;
+	}
+
+	private static Class<?> findClass(String name) {
+		ClassLoader loader=Interop.class.getClassLoader();
+		try {
+			return Class.forName(name, false, loader);
+		} catch (ClassNotFoundException e) {
+			// fall through
+		} catch (LinkageError e) {
+			// fall through
+		}
+		if (name.indexOf('.')>=0) return null;
+		try {
+			return Class.forName("java.lang."+name, false, loader);
+		} catch (ClassNotFoundException e) {
+			return null;
+		} catch (LinkageError e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Invokes a generic method handle on an array of arguments
+	 */
+	public static Object invoke(MethodHandle mh, Object[] args) {
+		try {
+			return (Object) mh.invokeExact(args);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Error e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new KissException("Exception in Java interop call",t);
+		}
+	}
+
+	/**
+	 * Gets the classes of an array of arguments, for overload resolution. Null arguments have a null class.
+	 */
+	public static Class<?>[] argClasses(Object[] args, int start) {
+		int n=args.length-start;
+		Class<?>[] cs=new Class<?>[n];
+		for (int i=0; i<n; i++) {
+			Object a=args[start+i];
+			cs[i]=(a==null)?null:a.getClass();
+		}
+		return cs;
+	}
+
+	private static Method uniqueMethod(Method[] ms, Class<?> klass, String name) {
+		if (ms.length!=1) throw new KissException("Ambiguous method "+name+" in "+klass+", argument types required");
+		return ms[0];
+	}
+
+	private static Method selectMethod(Method[] ms, Class<?>[] argClasses, Class<?> klass, String name) {
+		Method best=null;
+		int bestScore=Integer.MAX_VALUE;
+		for (Method m: ms) {
+			Class<?>[] ps=m.getParameterTypes();
+			int score=0;
+			for (int i=0; i<ps.length; i++) {
+				int s=matchScore(ps[i],argClasses[i]);
+				if (s<0) {
+					score=-1;
+					break;
+				}
+				score+=s;
+			}
+			if ((score>=0)&&(score<bestScore)) {
+				best=m;
+				bestScore=score;
+			}
+		}
+		if (best==null) throw new KissException("No matching method "+name+" found in "+klass+" for argument classes "+Arrays.toString(argClasses));
+		return best;
+	}
+
+	/**
+	 * Scores how well an argument class matches a parameter type. Lower is better, -1 means no match.
+	 */
+	private static int matchScore(Class<?> param, Class<?> arg) {
+		if (arg==null) return param.isPrimitive()?-1:1;
+		if (param==arg) return 0;
+		if (param.isPrimitive()) {
+			if (wrapperClass(param)==arg) return 0;
+			if (isNumericPrimitive(param)&&Number.class.isAssignableFrom(arg)) return 2;
+			return -1;
+		}
+		if (param.isAssignableFrom(arg)) return 1;
+		return -1;
+	}
+
+	private static boolean isNumericPrimitive(Class<?> c) {
+		return (c==int.class)||(c==long.class)||(c==double.class)||(c==float.class)||(c==short.class)||(c==byte.class);
+	}
+
+	private static Class<?> wrapperClass(Class<?> c) {
+		return MethodType.methodType(c).wrap().returnType();
+	}
+
+	/**
+	 * Finds an equivalent method declared in a public class or interface, so that it can be accessed
+	 */
+	private static Method publicMethod(Method m) {
+		if (Modifier.isPublic(m.getDeclaringClass().getModifiers())) return m;
+		Method pm=findInPublicBase(m.getDeclaringClass(),m);
+		return (pm==null)?m:pm;
+	}
+
+	private static Method findInPublicBase(Class<?> c, Method m) {
+		if (c==null) return null;
+		if (Modifier.isPublic(c.getModifiers())) {
+			try {
+				return c.getMethod(m.getName(), m.getParameterTypes());
+			} catch (NoSuchMethodException e) {
+				// not found, continue search
+			}
+		}
+		for (Class<?> i: c.getInterfaces()) {
+			Method pm=findInPublicBase(i,m);
+			if (pm!=null) return pm;
+		}
+		return findInPublicBase(c.getSuperclass(),m);
+	}
+
+	/**
+	 * Converts a direct method handle to the generic (Object[])Object calling convention
+	 */
+	private static MethodHandle toGeneric(MethodHandle mh) {
+		MethodType mt=mh.type();
+		int n=mt.parameterCount();
+		for (int i=0; i<n; i++) {
+			MethodHandle conv=converter(mt.parameterType(i));
+			if (conv!=null) mh=MethodHandles.filterArguments(mh, i, conv);
+		}
+		mh=mh.asType(MethodType.genericMethodType(n));
+		return mh.asSpreader(Object[].class, n);
+	}
+
+	private static MethodHandle converter(Class<?> c) {
+		if (c==int.class) return TO_INT;
+		if (c==long.class) return TO_LONG;
+		if (c==double.class) return TO_DOUBLE;
+		if (c==float.class) return TO_FLOAT;
+		if (c==short.class) return TO_SHORT;
+		if (c==byte.class) return TO_BYTE;
+		return null;
+	}
+
+	static int toInt(Object o) {
+		return ((Number)o).intValue();
+	}
+
+	static long toLong(Object o) {
+		return ((Number)o).longValue();
+	}
+
+	static short toShort(Object o) {
+		return ((Number)o).shortValue();
+	}
+
+	static byte toByte(Object o) {
+		return ((Number)o).byteValue();
+	}
+
+	static float toFloat(Object o) {
+		return ((Number)o).floatValue();
+	}
+
+	static double toDouble(Object o) {
+		return ((Number)o).doubleValue();
+	}
+}
@@ -0,0 +1,70 @@
+package kiss.lang.impl;
+
+/**
+ * Management interface for Kiss runtime metrics, see Metrics.
+ * 
+ * Environment statistics refer to the most recently defined Environment. Latencies are 
+ * approximate, with a resolution of a factor of two.
+ * 
+ * @author Mike
+ *
+ */
+public interface KissMetricsMXBean {
+	/**
+	 * Gets the number of Environments created by definitions
+	 */
+	long getEnvironmentsDefined();
+	
+	/**
+	 * Gets the number of symbols in the most recently defined Environment
+	 */
+	int getSymbolCount();
+	
+	/**
+	 * Gets the mean number of symbols per defined Environment
+	 */
+	double getMeanSymbolsPerEnvironment();
+	
+	/**
+	 * Gets the number of dependency edges in the most recently defined Environment
+	 */
+	int getDependencyEdgeCount();
+	
+	/**
+	 * Gets the number of mappings that cannot yet be bound in the most recently defined Environment
+	 */
+	int getUnboundMappingCount();
+	
+	/**
+	 * Gets the number of invocations of interpreted functions
+	 */
+	long getInterpretedInvocations();
+	
+	/**
+	 * Gets the number of invocations of functions produced by the Compiler, including functions
+	 * created while compiled code runs
+	 */
+	long getCompiledInvocations();
+	
+	double getSpecialiserCacheHitRate();
+	
+	double getKeywordCacheHitRate();
+	
+	/**
+	 * Gets the number of definitions timed, each including recomputation of dependents
+	 */
+	long getRecomputeCount();
+	
+	double getRecomputeLatencyP50Micros();
+	
+	double getRecomputeLatencyP90Micros();
+	
+	double getRecomputeLatencyP99Micros();
+	
+	double getRecomputeLatencyMaxMicros();
+	
+	/**
+	 * Resets all counters
+	 */
+	void reset();
+}
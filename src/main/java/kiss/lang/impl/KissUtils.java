@@ -1,7 +1,9 @@
 package kiss.lang.impl;
 
+import java.io.Reader;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.List;
 
 import kiss.lang.Analyser;
 import kiss.lang.Compiler;
@@ -22,6 +24,20 @@ public class KissUtils {
 		return LispReader.read(new LineNumberingPushbackReader(new StringReader(s)), false, null, false);
 	}
 	
+	/**
+	 * Reads all forms from a Reader, until the end of input
+	 */
+	public static List<Object> readAll(Reader r) {
+		LineNumberingPushbackReader pr=(r instanceof LineNumberingPushbackReader)?(LineNumberingPushbackReader)r:new LineNumberingPushbackReader(r);
+		Object eof=new Object();
+		ArrayList<Object> al=new ArrayList<Object>();
+		while (true) {
+			Object form=LispReader.read(pr, false, eof, false);
+			if (form==eof) return al;
+			al.add(form);
+		}
+	}
+	
 
 	public static Object eval(String s) {
 		Object form=read(s);
@@ -72,6 +88,17 @@ public class KissUtils {
 		return false;
 	}
 
+	/**
+	 * Returns true if two arrays have identical elements, compared by reference
+	 */
+	public static boolean identicalElements(Object[] a, Object[] b) {
+		if (a.length!=b.length) return false;
+		for (int i=0; i<a.length; i++) {
+			if (a[i]!=b[i]) return false;
+		}
+		return true;
+	}
+	
 	public static boolean equalsWithNulls(Object a, Object b) {
 		return (a==b)||((a!=null)&&a.equals(b));
 	}
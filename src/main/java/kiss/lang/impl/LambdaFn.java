@@ -17,37 +17,97 @@ public class LambdaFn extends KFn {
 
 	private final Symbol[] params;
 	private final Expression body;
+	private final Expression tailBody; // body with tail calls marked, used for interpretation
 	private final Environment env;
 	private final int arity;
+	private final boolean compiled; // true if produced by the Compiler
 
 	public LambdaFn(Environment env, Expression body, Symbol[] params) {
+		this(env,body,TailCalls.mark(body),params,false);
+	}
+	
+	private LambdaFn(Environment env, Expression body, Expression tailBody, Symbol[] params, boolean compiled) {
 		this.env=env;
 		this.body = body;
+		this.tailBody = tailBody;
 		this.params = params;
 		this.arity = params.length;
+		this.compiled = compiled;
 	}
 
 	public static KFn create(Environment env, Expression body, Symbol[] params) {
 		return new LambdaFn(env, body, params);
 	}
 	
-	public Object invokeArray(Object... args) {
+	/**
+	 * Creates a LambdaFn with a precomputed tail call marked body, as produced by TailCalls.mark(body)
+	 */
+	public static KFn create(Environment env, Expression body, Expression tailBody, Symbol[] params) {
+		return new LambdaFn(env, body, tailBody, params, false);
+	}
+	
+	/**
+	 * Creates a LambdaFn for compiled code, counted separately in Metrics
+	 */
+	public static KFn createCompiled(Environment env, Expression body, Symbol[] params) {
+		return new LambdaFn(env, body, TailCalls.mark(body), params, true);
+	}
+	
+	/**
+	 * Creates a LambdaFn for compiled code with a precomputed tail call marked body
+	 */
+	public static KFn createCompiled(Environment env, Expression body, Expression tailBody, Symbol[] params) {
+		return new LambdaFn(env, body, tailBody, params, true);
+	}
+	
+	public boolean isCompiled() {
+		return compiled;
+	}
+	
+	public Symbol[] getParams() {
+		return params.clone();
+	}
+	
+	public Expression getBody() {
+		return body;
+	}
+	
+	public Environment getEnvironment() {
+		return env;
+	}
+	
+	private IPersistentMap bind(Object[] args) {
 		if (args.length!=arity) throwArity(args.length);
 		IPersistentMap bindings=PersistentHashMap.EMPTY;
 		for (int i=0; i<arity; i++) {
 			bindings=bindings.assoc(params[i], args[i]);
 		}
-		Result r=body.interpret(env, bindings);
+		return bindings;
+	}
+	
+	public Object invokeArray(Object... args) {
+		if (Metrics.isEnabled()) Metrics.recordInvocation(compiled);
+		LambdaFn f=this;
+		IPersistentMap bindings=bind(args);
+		Result r=tailBody.interpret(env, bindings);
 		
-		// handle recursion
+		// handle recursion and tail calls
 		while (true) {
 			if (r instanceof ReturnResult) return ((ReturnResult) r).value;
+			if (r instanceof TailCallResult) {
+				// trampoline, so that tail calls run in constant stack
+				TailCallResult tc=(TailCallResult) r;
+				f=tc.fn;
+				bindings=f.bind(tc.args);
+				r=f.tailBody.interpret(f.env, bindings);
+				continue;
+			}
 			if (!(r instanceof RecurResult)) break;
 			RecurResult re=(RecurResult) r;
-			for (int i=0; i<arity; i++) {
-				bindings=bindings.assoc(params[i], re.values[i]);
+			for (int i=0; i<f.arity; i++) {
+				bindings=bindings.assoc(f.params[i], re.values[i]);
 			}
-			r=body.interpret(r.getEnvironment(),bindings);
+			r=f.tailBody.interpret(r.getEnvironment(),bindings);
 		}
 		return r.getResult();
 	}
@@ -0,0 +1,137 @@
+package kiss.lang.impl;
+
+import java.lang.invoke.SwitchPoint;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import kiss.lang.Environment;
+import clojure.lang.IPersistentSet;
+import clojure.lang.ISeq;
+import clojure.lang.RT;
+import clojure.lang.Symbol;
+
+/**
+ * Linker for compiled code, shared by a lineage of Environments where each is defined from the previous one.
+ *
+ * Maintains the latest Environment in the lineage, plus a SwitchPoint for each linked symbol.
+ * Compiled code links global symbols to constants guarded by the symbol's SwitchPoint. When a symbol
+ * is redefined only its SwitchPoint is invalidated, so only sites that depend on it are relinked.
+ *
+ * @author Mike
+ *
+ */
+public final class Linker {
+	/**
+	 * Linker for Environments that are not part of any lineage, e.g. environments captured by closures
+	 */
+	public static final Linker DETACHED=new Linker();
+	
+	private final AtomicReference<Environment> head=new AtomicReference<Environment>();
+	private final ConcurrentHashMap<Symbol,SwitchPoint> switchPoints=new ConcurrentHashMap<Symbol,SwitchPoint>();
+	private final boolean managed;
+
+	public Linker() {
+		this(false);
+	}
+
+	private Linker(boolean managed) {
+		this.managed=managed;
+	}
+
+	/**
+	 * Creates a Linker whose head is only moved by publish, e.g. by an EnvironmentManager.
+	 * Environments derived from a managed lineage by define start a new lineage.
+	 */
+	public static Linker createManaged() {
+		return new Linker(true);
+	}
+
+	public boolean isManaged() {
+		return managed;
+	}
+
+	/**
+	 * Sets the initial head of a new Linker. Must be called once, before the Linker is used.
+	 */
+	public void init(Environment e) {
+		if (!head.compareAndSet(null, e)) throw new KissException("Linker already initialised");
+	}
+
+	/**
+	 * Gets the latest Environment in this Linker's lineage
+	 */
+	public Environment getHead() {
+		return head.get();
+	}
+
+	/**
+	 * Returns true if the given Environment is the latest in this lineage
+	 */
+	public boolean isHead(Environment e) {
+		return head.get()==e;
+	}
+
+	/**
+	 * Gets the current SwitchPoint for a symbol
+	 */
+	public SwitchPoint getSwitchPoint(Symbol sym) {
+		SwitchPoint sp=switchPoints.get(sym);
+		if (sp!=null) return sp;
+		sp=new SwitchPoint();
+		SwitchPoint old=switchPoints.putIfAbsent(sym, sp);
+		return (old==null)?sp:old;
+	}
+
+	/**
+	 * Creates a call site for a global symbol
+	 */
+	public GlobalSite createSite(Symbol sym) {
+		return new GlobalSite(this,sym);
+	}
+
+	/**
+	 * Advances the head of this lineage from one Environment to the next, invalidating the
+	 * SwitchPoints of changed symbols.
+	 *
+	 * @return true if successful, false if the source Environment is no longer the head
+	 */
+	public boolean advance(Environment from, Environment to, IPersistentSet changed) {
+		if (managed) return false;
+		if (!head.compareAndSet(from, to)) return false;
+		invalidate(changed);
+		return true;
+	}
+
+	/**
+	 * Moves the head of a managed lineage from one Environment to the next, invalidating the
+	 * SwitchPoints of changed symbols.
+	 *
+	 * Publications must be made in the order of the owner's commits. If the previous commit is
+	 * still being published, waits for it to complete.
+	 */
+	public void publish(Environment from, Environment to, IPersistentSet changed) {
+		if (!managed) throw new KissException("Cannot publish to an unmanaged Linker");
+		while (!head.compareAndSet(from, to)) {
+			Thread.yield();
+		}
+		invalidate(changed);
+	}
+
+	private void invalidate(IPersistentSet changed) {
+		// install new SwitchPoints after the head is updated, so relinking sees the new Environment
+		int n=changed.count();
+		if (n==0) return;
+		SwitchPoint[] old=new SwitchPoint[n];
+		int i=0;
+		for (ISeq s=RT.seq(changed); s!=null; s=s.next()) {
+			Symbol sym=(Symbol)s.first();
+			SwitchPoint sp=switchPoints.remove(sym);
+			if (sp!=null) old[i++]=sp;
+		}
+		if (i>0) {
+			SwitchPoint[] sps=new SwitchPoint[i];
+			System.arraycopy(old, 0, sps, 0, i);
+			SwitchPoint.invalidateAll(sps);
+		}
+	}
+}
@@ -0,0 +1,259 @@
+package kiss.lang.impl;
+
+import java.lang.reflect.Field;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.PersistentHashMap;
+import clojure.lang.Util;
+
+/**
+ * Computes the differences between two persistent maps, where values are compared by identity.
+ *
+ * Design intent:
+ * - Two versions of a PersistentHashMap share all unchanged subtrees of their hash array mapped
+ *   tries. Shared subtrees are skipped by identity, so the cost is proportional to the number of
+ *   changes times the depth of the trie, not to the size of the maps.
+ * - The trie is read by reflection, since Clojure does not expose its nodes. If the node layout
+ *   is not as expected, or for other map types, both maps are compared in full.
+ *
+ * @author Mike
+ *
+ */
+public final class MapDiff {
+	/**
+	 * Receiver for the differences between two maps
+	 */
+	public interface Visitor {
+		void added(Object key, Object val);
+		void removed(Object key, Object val);
+		void changed(Object key, Object oldVal, Object newVal);
+	}
+
+	private static final int BRANCH=32;
+	private static final int BITS=5;
+
+	private static final Field ROOT;
+	private static final Class<?> BITMAP_NODE;
+	private static final Field BITMAP_NODE_BITMAP;
+	private static final Field BITMAP_NODE_ARRAY;
+	private static final Class<?> ARRAY_NODE;
+	private static final Field ARRAY_NODE_ARRAY;
+	private static final Class<?> COLLISION_NODE;
+	private static final Field COLLISION_NODE_ARRAY;
+
+	static {
+		Field root=null;
+		Class<?> bn=null, an=null, cn=null;
+		Field bnBitmap=null, bnArray=null, anArray=null, cnArray=null;
+		try {
+			root=accessible(PersistentHashMap.class.getDeclaredField("root"));
+			bn=Class.forName("clojure.lang.PersistentHashMap$BitmapIndexedNode");
+			bnBitmap=accessible(bn.getDeclaredField("bitmap"));
+			bnArray=accessible(bn.getDeclaredField("array"));
+			an=Class.forName("clojure.lang.PersistentHashMap$ArrayNode");
+			anArray=accessible(an.getDeclaredField("array"));
+			cn=Class.forName("clojure.lang.PersistentHashMap$HashCollisionNode");
+			cnArray=accessible(cn.getDeclaredField("array"));
+		} catch (Throwable t) {
+			root=null; // unknown layout, so always compare in full
+		}
+		ROOT=root;
+		BITMAP_NODE=bn;
+		BITMAP_NODE_BITMAP=bnBitmap;
+		BITMAP_NODE_ARRAY=bnArray;
+		ARRAY_NODE=an;
+		ARRAY_NODE_ARRAY=anArray;
+		COLLISION_NODE=cn;
+		COLLISION_NODE_ARRAY=cnArray;
+	}
+
+	private MapDiff() {
+		// static utility
+	}
+
+	private static Field accessible(Field f) {
+		f.setAccessible(true);
+		return f;
+	}
+
+	/**
+	 * Returns true if differences between PersistentHashMaps are computed structurally
+	 */
+	public static boolean isStructural() {
+		return ROOT!=null;
+	}
+
+	/**
+	 * Visits the differences from map a to map b
+	 */
+	public static void diff(IPersistentMap a, IPersistentMap b, Visitor v) {
+		if (a==b) return;
+		if (isStructural()&&(a instanceof PersistentHashMap)&&(b instanceof PersistentHashMap)) {
+			try {
+				diffNulls(a,b,v);
+				diffNode(ROOT.get(a),ROOT.get(b),0,v);
+				return;
+			} catch (IllegalAccessException e) {
+				throw new KissException("Unable to read map structure",e);
+			}
+		}
+		diffEntries(a,b,v);
+	}
+
+	private static void diffNulls(IPersistentMap a, IPersistentMap b, Visitor v) {
+		boolean ina=a.containsKey(null);
+		boolean inb=b.containsKey(null);
+		if (ina&&inb) {
+			Object va=a.valAt(null);
+			Object vb=b.valAt(null);
+			if (va!=vb) v.changed(null, va, vb);
+		} else if (ina) {
+			v.removed(null, a.valAt(null));
+		} else if (inb) {
+			v.added(null, b.valAt(null));
+		}
+	}
+
+	/**
+	 * Compares two map nodes at the same level of the trie, slot by slot
+	 */
+	private static void diffNode(Object a, Object b, int shift, Visitor v) throws IllegalAccessException {
+		if (a==b) return;
+		if ((a==null)||(b==null)||isCollision(a)||isCollision(b)) {
+			diffSubtrees(a,b,v);
+			return;
+		}
+		Object[] slotA=new Object[2];
+		Object[] slotB=new Object[2];
+		for (int i=0; i<BRANCH; i++) {
+			slot(a,i,slotA);
+			slot(b,i,slotB);
+			diffSlot(slotA[0],slotA[1],slotB[0],slotB[1],shift,v);
+		}
+	}
+
+	/**
+	 * Compares two slots. A slot holds an entry if the key is non-null, otherwise a subtree or nothing.
+	 */
+	private static void diffSlot(Object ka, Object va, Object kb, Object vb, int shift, Visitor v) throws IllegalAccessException {
+		if ((ka==null)&&(kb==null)) {
+			if (va!=vb) diffNode(va,vb,shift+BITS,v);
+		} else if ((ka!=null)&&(kb!=null)) {
+			if (Util.equiv(ka, kb)) {
+				if (va!=vb) v.changed(kb, va, vb);
+			} else {
+				v.removed(ka, va);
+				v.added(kb, vb);
+			}
+		} else {
+			// an entry on one side, a subtree or nothing on the other
+			LinkedHashMap<Object,Object> ea=new LinkedHashMap<Object,Object>();
+			LinkedHashMap<Object,Object> eb=new LinkedHashMap<Object,Object>();
+			if (ka!=null) ea.put(ka,va); else collect(va,ea);
+			if (kb!=null) eb.put(kb,vb); else collect(vb,eb);
+			diffEntries(ea,eb,v);
+		}
+	}
+
+	private static void diffSubtrees(Object a, Object b, Visitor v) throws IllegalAccessException {
+		LinkedHashMap<Object,Object> ea=new LinkedHashMap<Object,Object>();
+		LinkedHashMap<Object,Object> eb=new LinkedHashMap<Object,Object>();
+		collect(a,ea);
+		collect(b,eb);
+		diffEntries(ea,eb,v);
+	}
+
+	private static boolean isCollision(Object node) {
+		return node.getClass()==COLLISION_NODE;
+	}
+
+	/**
+	 * Reads slot i of a bitmap or array node into a key, value pair
+	 */
+	private static void slot(Object node, int i, Object[] out) throws IllegalAccessException {
+		out[0]=null;
+		out[1]=null;
+		if (node.getClass()==ARRAY_NODE) {
+			out[1]=((Object[])ARRAY_NODE_ARRAY.get(node))[i];
+		} else if (node.getClass()==BITMAP_NODE) {
+			int bitmap=BITMAP_NODE_BITMAP.getInt(node);
+			int bit=1<<i;
+			if ((bitmap&bit)==0) return;
+			int idx=Integer.bitCount(bitmap&(bit-1));
+			Object[] array=(Object[])BITMAP_NODE_ARRAY.get(node);
+			out[0]=array[2*idx];
+			out[1]=array[2*idx+1];
+		} else {
+			throw new KissException("Unexpected map node: "+node.getClass());
+		}
+	}
+
+	/**
+	 * Collects all entries in a subtree
+	 */
+	private static void collect(Object node, Map<Object,Object> out) throws IllegalAccessException {
+		if (node==null) return;
+		Class<?> c=node.getClass();
+		if (c==ARRAY_NODE) {
+			for (Object child: (Object[])ARRAY_NODE_ARRAY.get(node)) {
+				collect(child,out);
+			}
+			return;
+		}
+		Object[] array;
+		if (c==BITMAP_NODE) {
+			array=(Object[])BITMAP_NODE_ARRAY.get(node);
+		} else if (c==COLLISION_NODE) {
+			array=(Object[])COLLISION_NODE_ARRAY.get(node);
+		} else {
+			throw new KissException("Unexpected map node: "+c);
+		}
+		for (int i=0; i<array.length; i+=2) {
+			Object k=array[i];
+			Object val=array[i+1];
+			if (k!=null) {
+				out.put(k, val);
+			} else if ((val!=null)&&(c==BITMAP_NODE)) {
+				collect(val,out);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void diffEntries(IPersistentMap a, IPersistentMap b, Visitor v) {
+		for (Iterator<Map.Entry<Object,Object>> it=b.iterator(); it.hasNext();) {
+			Map.Entry<Object,Object> e=it.next();
+			Object k=e.getKey();
+			Object vb=e.getValue();
+			if (!a.containsKey(k)) {
+				v.added(k, vb);
+			} else {
+				Object va=a.valAt(k);
+				if (va!=vb) v.changed(k, va, vb);
+			}
+		}
+		for (Iterator<Map.Entry<Object,Object>> it=a.iterator(); it.hasNext();) {
+			Map.Entry<Object,Object> e=it.next();
+			if (!b.containsKey(e.getKey())) v.removed(e.getKey(), e.getValue());
+		}
+	}
+
+	private static void diffEntries(Map<Object,Object> a, Map<Object,Object> b, Visitor v) {
+		for (Map.Entry<Object,Object> e: b.entrySet()) {
+			Object k=e.getKey();
+			Object vb=e.getValue();
+			if (!a.containsKey(k)) {
+				v.added(k, vb);
+			} else {
+				Object va=a.remove(k);
+				if (va!=vb) v.changed(k, va, vb);
+			}
+		}
+		for (Map.Entry<Object,Object> e: a.entrySet()) {
+			v.removed(e.getKey(), e.getValue());
+		}
+	}
+}
@@ -1,10 +1,12 @@
 package kiss.lang.impl;
 
+import kiss.lang.Environment;
 import kiss.lang.Expression;
 import kiss.lang.Type;
 import kiss.lang.expression.Constant;
 import kiss.lang.type.JavaType;
 import clojure.lang.IMapEntry;
+import clojure.lang.IPersistentMap;
 import clojure.lang.IPersistentSet;
 import clojure.lang.PersistentHashSet;
 import clojure.lang.Symbol;
@@ -12,15 +14,35 @@ import clojure.lang.Symbol;
 /**
  * A Kiss Environment mapping
  * 
+ * A lazy mapping holds a thunk which is evaluated on first access to the value. The thunk is 
+ * evaluated at most once: threads that race on first access wait for the first to finish. If 
+ * evaluation throws, the mapping stays unrealised and the next access tries again. Once realised,
+ * the thunk is released together with the Environment it captured, and reads take no lock.
+ * 
  * @author Mike
  *
  */
 public class Mapping {
+	private static final Object UNREALISED=new Object();
+	
 	private final Type type;
 	private final Expression exp;
-	private final Object value;
+	private volatile Object value;
+	private Thunk thunk; // null unless an unrealised lazy mapping, guarded by this
 	private final IPersistentSet unboundDeps;
 	
+	private static final class Thunk {
+		private final Expression body;
+		private final Environment env;
+		private final IPersistentMap bindings;
+		
+		private Thunk(Expression body, Environment env, IPersistentMap bindings) {
+			this.body=body;
+			this.env=env;
+			this.bindings=bindings;
+		}
+	}
+	
 	private Mapping(Expression exp, Object value, Type type, IPersistentSet unbound) {
 		this.type=type;
 		this.exp=exp;
@@ -28,28 +50,69 @@ public class Mapping {
 		this.unboundDeps=unbound;
 	}
 	
+	private Mapping(Expression exp, Type type, Thunk thunk) {
+		this.type=type;
+		this.exp=exp;
+		this.thunk=thunk;
+		this.value=UNREALISED;
+		this.unboundDeps=null;
+	}
+	
 	public static Object create(Object val) {
 		return new Mapping(Constant.create(val),val,JavaType.analyse(val),null);
 	}
 	
-	public static Object createExpression(Expression ex, Object val, IPersistentSet unbound) {
+	public static Mapping createExpression(Expression ex, Object val, IPersistentSet unbound) {
 		return new Mapping(ex,val,ex.getType(),unbound);
 	}
 	
+	public static Mapping createExpression(Expression ex, Type type, Object val, IPersistentSet unbound) {
+		return new Mapping(ex,val,type,unbound);
+	}
+	
+	/**
+	 * Creates a lazy mapping, which evaluates the given body in the given environment on first access.
+	 * 
+	 * @param ex The defining expression
+	 * @param type The static type of the value
+	 * @param body The expression to evaluate, usually ex refined with the types of its free symbols
+	 */
+	public static Mapping createLazy(Expression ex, Type type, Expression body, Environment env, IPersistentMap bindings) {
+		return new Mapping(ex,type,new Thunk(body,env,bindings));
+	}
+	
 	public Object getValue() {
 		if (unboundDeps==null) {
-			return value;
+			Object v=value;
+			return (v==UNREALISED)?realise():v;
 		} else {
 			throw new KissException("Free symbols cannot be resolved: "+unboundDeps.toString());
 		}
 	}
 	
+	private synchronized Object realise() {
+		Object v=value;
+		if (v!=UNREALISED) return v; // realised by another thread while waiting
+		Thunk t=thunk;
+		v=t.body.interpret(t.env, t.bindings).getResult();
+		value=v;
+		thunk=null;
+		return v;
+	}
+	
+	/**
+	 * Returns true if the value of this mapping has been computed
+	 */
+	public boolean isRealised() {
+		return value!=UNREALISED;
+	}
+	
 	public boolean isBound() {
 		return (unboundDeps==null);
 	}
 	
 	public Object maybeValue() {
-		return value;
+		return isBound()?getValue():null;
 	}
 	
 	public Expression getExpression() {
@@ -58,7 +121,7 @@ public class Mapping {
 
 	public IMapEntry toMapEntry(Object key) {
 		if (!isBound()) throw new KissException("Free symbols cannot be resolved: "+unboundDeps.toString());
-		return new MapEntry((Symbol)key,value);
+		return new MapEntry((Symbol)key,getValue());
 	}
 
 	public Type getType() {
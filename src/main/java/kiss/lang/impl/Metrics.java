@@ -0,0 +1,251 @@
+package kiss.lang.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import kiss.lang.Environment;
+import clojure.lang.RT;
+
+/**
+ * Runtime metrics, exposed as a platform MXBean.
+ *
+ * Design intent:
+ * - Counters are only updated while metrics are enabled, which register() does. When disabled,
+ *   each instrumented site costs a single flag check.
+ * - Environment statistics are computed on demand from the most recently defined Environment,
+ *   which is only weakly referenced
+ * - Recompute latencies are recorded in a histogram with power of two buckets
+ *
+ * @author Mike
+ *
+ */
+public final class Metrics implements KissMetricsMXBean {
+	public static final String OBJECT_NAME="kiss.lang:type=Metrics";
+
+	public static final Metrics INSTANCE=new Metrics();
+
+	private static final int BUCKETS=64;
+
+	private static volatile boolean enabled=false;
+
+	private final AtomicLong environments=new AtomicLong();
+	private final AtomicLong symbols=new AtomicLong();
+	private final AtomicLong interpreted=new AtomicLong();
+	private final AtomicLong compiled=new AtomicLong();
+	private final AtomicLong keywordHits=new AtomicLong();
+	private final AtomicLong keywordMisses=new AtomicLong();
+	private final AtomicLongArray latencies=new AtomicLongArray(BUCKETS);
+	private volatile long specialiserHits;
+	private volatile long specialiserMisses;
+	private volatile WeakReference<Environment> latest=new WeakReference<Environment>(null);
+
+	private Metrics() {
+		// singleton
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void setEnabled(boolean on) {
+		enabled=on;
+	}
+
+	/**
+	 * Registers the metrics MXBean with the platform MBean server, and enables metrics
+	 */
+	public static synchronized void register() {
+		try {
+			MBeanServer server=ManagementFactory.getPlatformMBeanServer();
+			ObjectName name=new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) server.registerMBean(INSTANCE, name);
+		} catch (JMException e) {
+			throw new KissException("Failed to register metrics MXBean",e);
+		}
+		enabled=true;
+	}
+
+	/**
+	 * Unregisters the metrics MXBean, and disables metrics
+	 */
+	public static synchronized void unregister() {
+		enabled=false;
+		try {
+			MBeanServer server=ManagementFactory.getPlatformMBeanServer();
+			ObjectName name=new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name)) server.unregisterMBean(name);
+		} catch (JMException e) {
+			throw new KissException("Failed to unregister metrics MXBean",e);
+		}
+	}
+
+	/**
+	 * Records a definition that produced a new Environment, taking the given time including
+	 * recomputation of dependents
+	 */
+	public static void recordDefine(Environment e, long nanos) {
+		Metrics m=INSTANCE;
+		m.environments.incrementAndGet();
+		m.symbols.addAndGet(e.count());
+		m.latest=new WeakReference<Environment>(e);
+		m.latencies.incrementAndGet(bucket(nanos));
+	}
+
+	public static void recordInvocation(boolean isCompiled) {
+		if (isCompiled) {
+			INSTANCE.compiled.incrementAndGet();
+		} else {
+			INSTANCE.interpreted.incrementAndGet();
+		}
+	}
+
+	public static void recordKeywordCache(boolean hit) {
+		if (hit) {
+			INSTANCE.keywordHits.incrementAndGet();
+		} else {
+			INSTANCE.keywordMisses.incrementAndGet();
+		}
+	}
+
+	private static int bucket(long nanos) {
+		if (nanos<=0) return 0;
+		return Math.min(BUCKETS-1, 64-Long.numberOfLeadingZeros(nanos));
+	}
+
+	private static double rate(long hits, long misses) {
+		long total=hits+misses;
+		return (total==0)?0.0:((double)hits)/total;
+	}
+
+	@Override
+	public long getEnvironmentsDefined() {
+		return environments.get();
+	}
+
+	@Override
+	public int getSymbolCount() {
+		Environment e=latest.get();
+		return (e==null)?0:e.count();
+	}
+
+	@Override
+	public double getMeanSymbolsPerEnvironment() {
+		long n=environments.get();
+		return (n==0)?0.0:((double)symbols.get())/n;
+	}
+
+	@Override
+	public int getDependencyEdgeCount() {
+		Environment e=latest.get();
+		if (e==null) return 0;
+		int edges=0;
+		for (Object o: e.dependencies) {
+			edges+=RT.count(((Map.Entry<?,?>)o).getValue());
+		}
+		return edges;
+	}
+
+	@Override
+	public int getUnboundMappingCount() {
+		Environment e=latest.get();
+		if (e==null) return 0;
+		int unbound=0;
+		for (Object o: e.map) {
+			Mapping m=(Mapping) ((Map.Entry<?,?>)o).getValue();
+			if (!m.isBound()) unbound++;
+		}
+		return unbound;
+	}
+
+	@Override
+	public long getInterpretedInvocations() {
+		return interpreted.get();
+	}
+
+	@Override
+	public long getCompiledInvocations() {
+		return compiled.get();
+	}
+
+	@Override
+	public double getSpecialiserCacheHitRate() {
+		return rate(Specialiser.getHits()-specialiserHits, Specialiser.getMisses()-specialiserMisses);
+	}
+
+	@Override
+	public double getKeywordCacheHitRate() {
+		return rate(keywordHits.get(), keywordMisses.get());
+	}
+
+	@Override
+	public long getRecomputeCount() {
+		long n=0;
+		for (int i=0; i<BUCKETS; i++) {
+			n+=latencies.get(i);
+		}
+		return n;
+	}
+
+	/**
+	 * Gets the approximate latency at the given quantile, as the upper bound of its histogram bucket
+	 */
+	private double percentileMicros(double q) {
+		long[] counts=new long[BUCKETS];
+		long total=0;
+		for (int i=0; i<BUCKETS; i++) {
+			counts[i]=latencies.get(i);
+			total+=counts[i];
+		}
+		if (total==0) return 0.0;
+		long target=(long)Math.ceil(q*total);
+		long n=0;
+		for (int i=0; i<BUCKETS; i++) {
+			n+=counts[i];
+			if ((n>=target)&&(counts[i]>0)) return Math.pow(2, i)/1000.0;
+		}
+		return Math.pow(2, BUCKETS-1)/1000.0;
+	}
+
+	@Override
+	public double getRecomputeLatencyP50Micros() {
+		return percentileMicros(0.5);
+	}
+
+	@Override
+	public double getRecomputeLatencyP90Micros() {
+		return percentileMicros(0.9);
+	}
+
+	@Override
+	public double getRecomputeLatencyP99Micros() {
+		return percentileMicros(0.99);
+	}
+
+	@Override
+	public double getRecomputeLatencyMaxMicros() {
+		return percentileMicros(1.0);
+	}
+
+	@Override
+	public void reset() {
+		environments.set(0);
+		symbols.set(0);
+		interpreted.set(0);
+		compiled.set(0);
+		keywordHits.set(0);
+		keywordMisses.set(0);
+		for (int i=0; i<BUCKETS; i++) {
+			latencies.set(i, 0);
+		}
+		specialiserHits=Specialiser.getHits();
+		specialiserMisses=Specialiser.getMisses();
+		latest=new WeakReference<Environment>(null);
+	}
+}
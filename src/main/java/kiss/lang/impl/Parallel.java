@@ -0,0 +1,221 @@
+package kiss.lang.impl;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+
+import kiss.lang.Environment;
+import kiss.lang.Expression;
+import kiss.lang.expression.Application;
+import kiss.lang.expression.ClojureLookup;
+import kiss.lang.expression.Profiled;
+import kiss.lang.pass.Purity;
+import clojure.lang.IPersistentMap;
+
+/**
+ * Optional parallel evaluation of independent pure sub-expressions, used by Application, Vector
+ * and Map. Disabled by default.
+ *
+ * Each node caches a Plan with its sub-expressions, their estimated costs and a fork cost: the
+ * estimated cost of its second most expensive sub-expression, or NOT_FORKABLE if any
+ * sub-expression is unsafe to evaluate out of order. Forking only pays off when at least two
+ * sub-expressions exceed the fork threshold.
+ *
+ * Costs are static estimates, except for profiled sub-expressions that the Profiler has timed,
+ * which cost their measured mean time. Plans are recomputed when the profiling data changes.
+ *
+ * Expensive sub-expressions are forked onto a shared ForkJoinPool, cheap ones are evaluated in
+ * the calling thread. Results are joined in index order, so the first exception by position
+ * is always the one thrown.
+ *
+ * Thread local state is not carried into pool threads. In particular profiling frames would be
+ * lost, so nothing is forked while the Profiler is enabled. Inliner and Specialiser depth limits
+ * apply per thread, so forked evaluation may inline or specialise to the limit again.
+ *
+ * @author Mike
+ *
+ */
+public class Parallel {
+	public static final int NOT_FORKABLE=-1;
+
+	/**
+	 * Estimated cost of calling a function whose body is not visible, in expression nodes
+	 */
+	private static final int CALL_COST=32;
+
+	/**
+	 * Approximate interpretation time of a single expression node, used to convert measured times
+	 */
+	private static final long NANOS_PER_NODE=20;
+
+	private static volatile boolean enabled=false;
+	private static volatile int forkThreshold=256;
+
+	private static volatile ForkJoinPool pool;
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void setEnabled(boolean on) {
+		enabled=on;
+	}
+
+	/**
+	 * Sets the minimum estimated cost of a sub-expression for it to be forked
+	 */
+	public static void setForkThreshold(int cost) {
+		forkThreshold=cost;
+	}
+
+	public static int getForkThreshold() {
+		return forkThreshold;
+	}
+
+	private static ForkJoinPool getPool() {
+		ForkJoinPool p=pool;
+		if (p==null) {
+			synchronized (Parallel.class) {
+				p=pool;
+				if (p==null) {
+					p=new ForkJoinPool();
+					pool=p;
+				}
+			}
+		}
+		return p;
+	}
+
+	/**
+	 * Estimates the cost of evaluating an expression. Calls to functions other than clojure.core
+	 * intrinsics count as CALL_COST in addition to the size of the call itself. Profiled
+	 * expressions that have been timed cost their measured mean time, if greater.
+	 */
+	public static int estimateCost(Expression x) {
+		int cost=1;
+		Expression[] cs=x.getChildren();
+		if ((x instanceof Application)&&!(Profiled.strip(cs[0]) instanceof ClojureLookup)) cost+=CALL_COST;
+		for (Expression c: cs) {
+			cost+=estimateCost(c);
+		}
+		if (x instanceof Profiled) {
+			Profiler.Site site=((Profiled)x).getSite();
+			long n=site.getCount();
+			if (n>0) {
+				long measured=site.getTotalNanos()/(n*NANOS_PER_NODE);
+				cost=(int) Math.min(Integer.MAX_VALUE, Math.max(cost, measured));
+			}
+		}
+		return cost;
+	}
+
+	/**
+	 * Cached evaluation plan for the sub-expressions of a node
+	 */
+	public static final class Plan {
+		private final Expression[] xs;
+		private final int[] costs;
+		private final int forkCost;
+		private final int version; // Profiler version the costs were estimated with
+
+		private Plan(Expression[] xs, int[] costs, int forkCost) {
+			this.xs=xs;
+			this.costs=costs;
+			this.forkCost=forkCost;
+			this.version=Profiler.getVersion();
+		}
+
+		public int getForkCost() {
+			return forkCost;
+		}
+
+		/**
+		 * Returns true if profiling data has changed since this plan was computed
+		 */
+		public boolean isStale() {
+			return version!=Profiler.getVersion();
+		}
+	}
+
+	/**
+	 * Computes the plan for a set of sub-expressions, to be cached by the calling node. The array
+	 * is retained by the plan, and must not be modified.
+	 */
+	public static Plan plan(Expression[] xs) {
+		int n=xs.length;
+		int[] costs=new int[n];
+		int first=0;
+		int second=0;
+		for (int i=0; i<n; i++) {
+			Expression x=xs[i];
+			if (x.canExit()||(!Purity.isSafe(x))) return new Plan(xs,null,NOT_FORKABLE);
+			int c=estimateCost(x);
+			costs[i]=c;
+			if (c>first) {
+				second=first;
+				first=c;
+			} else if (c>second) {
+				second=c;
+			}
+		}
+		return new Plan(xs,costs,second);
+	}
+
+	/**
+	 * Returns true if sub-expressions with the given plan should be evaluated in parallel
+	 */
+	public static boolean shouldFork(Plan plan) {
+		return enabled&&(plan.forkCost>=forkThreshold)&&!Profiler.isEnabled();
+	}
+
+	@SuppressWarnings("serial")
+	private static final class EvalTask extends RecursiveTask<Object> {
+		private final Expression x;
+		private final Environment d;
+		private final IPersistentMap bindings;
+
+		private EvalTask(Expression x, Environment d, IPersistentMap bindings) {
+			this.x=x;
+			this.d=d;
+			this.bindings=bindings;
+		}
+
+		@Override
+		protected Object compute() {
+			return x.interpret(d, bindings).getResult();
+		}
+	}
+
+	/**
+	 * Evaluates pure, non-exiting sub-expressions, forking those above the fork threshold.
+	 *
+	 * @return The values of the sub-expressions, in order
+	 */
+	public static Object[] evaluate(Plan plan, Environment d, IPersistentMap bindings) {
+		Expression[] xs=plan.xs;
+		int[] costs=plan.costs;
+		int n=xs.length;
+		int threshold=forkThreshold;
+		boolean inPool=Thread.currentThread() instanceof ForkJoinWorkerThread;
+		@SuppressWarnings("unchecked")
+		ForkJoinTask<Object>[] tasks=new ForkJoinTask[n];
+		for (int i=0; i<n; i++) {
+			if (costs[i]<threshold) continue;
+			EvalTask t=new EvalTask(xs[i],d,bindings);
+			tasks[i]=inPool?t.fork():getPool().submit(t);
+		}
+
+		Object[] vs=new Object[n];
+		RuntimeException ex=null;
+		for (int i=0; i<n; i++) {
+			try {
+				vs[i]=(tasks[i]!=null)?tasks[i].join():xs[i].interpret(d, bindings).getResult();
+			} catch (RuntimeException e) {
+				if (ex==null) ex=e; // keep joining, so no task outlives the call
+			}
+		}
+		if (ex!=null) throw ex;
+		return vs;
+	}
+}
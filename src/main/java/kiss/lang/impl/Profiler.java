@@ -0,0 +1,371 @@
+package kiss.lang.impl;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import kiss.lang.Analyser;
+import kiss.lang.Environment;
+import kiss.lang.Expression;
+import kiss.lang.expression.Profiled;
+import clojure.lang.IMeta;
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.RT;
+import clojure.lang.Symbol;
+
+/**
+ * Per-node execution profiler for interpreted Kiss code.
+ *
+ * Design intent:
+ * - Code analysed via Profiler.analyse has each non-constant source form other than a bare symbol
+ *   wrapped in a Profiled node. Symbol lookups are too cheap to be worth measuring.
+ * - Only instrumented code is profiled, so uninstrumented code has no overhead at all
+ * - While disabled, instrumented code costs one flag check per node
+ * - Invocation counts, total and self time and allocated bytes are recorded per source form
+ * - A call tree is recorded for export in the folded stack format used by flame graph tools
+ *
+ * Function invocations are attributed to the body of the fn form. Total time for recursive forms
+ * includes the time of nested invocations, self time does not.
+ *
+ * Allocation is measured per thread where the JVM supports it, otherwise reported as zero.
+ *
+ * @author Mike
+ *
+ */
+public class Profiler {
+	/**
+	 * Maximum depth of the recorded call tree. Deeper frames are attributed to the deepest node.
+	 */
+	private static final int MAX_DEPTH=256;
+
+	private static final int MAX_LABEL_LENGTH=60;
+
+	private static final Keyword LINE=Keyword.intern(null,"line");
+
+	private static volatile boolean enabled=false;
+
+	private static volatile int version=0; // changed when recorded data may have changed
+
+	private static final ThreadLocal<Boolean> instrumenting=new ThreadLocal<Boolean>();
+
+	private static final ThreadLocal<Frame> current=new ThreadLocal<Frame>();
+
+	private static final ConcurrentLinkedQueue<Site> sites=new ConcurrentLinkedQueue<Site>();
+
+	private static volatile CallNode root=new CallNode(null);
+
+	private static final com.sun.management.ThreadMXBean threads=allocationBean();
+
+	/**
+	 * Sort orders for profile reports
+	 */
+	public enum SortKey {
+		COUNT, TOTAL, SELF, ALLOC
+	}
+
+	/**
+	 * Profiling data for a single source form. Thread safe.
+	 */
+	public static final class Site {
+		private final Object form;
+		private final String label;
+		private final AtomicBoolean registered=new AtomicBoolean();
+		private final AtomicLong count=new AtomicLong();
+		private final AtomicLong totalNanos=new AtomicLong();
+		private final AtomicLong selfNanos=new AtomicLong();
+		private final AtomicLong allocBytes=new AtomicLong();
+
+		private Site(Object form) {
+			this.form=form;
+			this.label=labelOf(form);
+		}
+
+		public Object getForm() {
+			return form;
+		}
+
+		/**
+		 * Gets a short printable description of the source form, including the line number if known
+		 */
+		public String getLabel() {
+			return label;
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getTotalNanos() {
+			return totalNanos.get();
+		}
+
+		public long getSelfNanos() {
+			return selfNanos.get();
+		}
+
+		/**
+		 * Gets the estimated number of bytes allocated by this form, excluding nested profiled forms
+		 */
+		public long getAllocBytes() {
+			return allocBytes.get();
+		}
+
+		private long get(SortKey key) {
+			switch (key) {
+				case COUNT: return getCount();
+				case TOTAL: return getTotalNanos();
+				case SELF: return getSelfNanos();
+				default: return getAllocBytes();
+			}
+		}
+
+		private void reset() {
+			count.set(0);
+			totalNanos.set(0);
+			selfNanos.set(0);
+			allocBytes.set(0);
+		}
+
+		@Override
+		public String toString() {
+			return label;
+		}
+	}
+
+	/**
+	 * A node in the call tree of profiled forms
+	 */
+	private static final class CallNode {
+		private final Site site;
+		private final ConcurrentHashMap<Site,CallNode> children=new ConcurrentHashMap<Site,CallNode>();
+		private final AtomicLong selfNanos=new AtomicLong();
+
+		private CallNode(Site site) {
+			this.site=site;
+		}
+
+		private CallNode child(Site s) {
+			CallNode c=children.get(s);
+			if (c==null) {
+				CallNode nc=new CallNode(s);
+				c=children.putIfAbsent(s, nc);
+				if (c==null) c=nc;
+			}
+			return c;
+		}
+	}
+
+	/**
+	 * An active evaluation of a profiled form on the current thread
+	 */
+	public static final class Frame {
+		private final Frame parent;
+		private final Site site;
+		private final CallNode node;
+		private final int depth;
+		private final long start;
+		private final long allocStart;
+		private long childNanos;
+		private long childAlloc;
+
+		private Frame(Frame parent, Site site, CallNode node, int depth, long start, long allocStart) {
+			this.parent=parent;
+			this.site=site;
+			this.node=node;
+			this.depth=depth;
+			this.start=start;
+			this.allocStart=allocStart;
+		}
+	}
+
+	private static com.sun.management.ThreadMXBean allocationBean() {
+		try {
+			java.lang.management.ThreadMXBean b=ManagementFactory.getThreadMXBean();
+			if (!(b instanceof com.sun.management.ThreadMXBean)) return null;
+			com.sun.management.ThreadMXBean tb=(com.sun.management.ThreadMXBean)b;
+			if (!tb.isThreadAllocatedMemorySupported()) return null;
+			if (!tb.isThreadAllocatedMemoryEnabled()) tb.setThreadAllocatedMemoryEnabled(true);
+			return tb;
+		} catch (Throwable t) {
+			return null; // allocation tracking is best effort
+		}
+	}
+
+	private static long allocatedBytes() {
+		if (threads==null) return 0;
+		return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static String labelOf(Object form) {
+		String s=RT.printString(form).replaceAll("\\s+", " ");
+		if (s.length()>MAX_LABEL_LENGTH) s=s.substring(0, MAX_LABEL_LENGTH-3)+"...";
+		if (form instanceof IMeta) {
+			IPersistentMap meta=((IMeta)form).meta();
+			Object line=(meta==null)?null:meta.valAt(LINE);
+			if (line!=null) s=s+" @"+line;
+		}
+		return s;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void setEnabled(boolean on) {
+		if (on==enabled) return;
+		enabled=on;
+		version++;
+	}
+
+	/**
+	 * Gets a version number that changes whenever profiling is switched on or off, or reset, so
+	 * that estimates derived from profiling data can be refreshed
+	 */
+	public static int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns true if the Analyser should wrap forms analysed on the current thread in Profiled nodes
+	 */
+	public static boolean isInstrumenting() {
+		return instrumenting.get()!=null;
+	}
+
+	/**
+	 * Analyses a form, instrumenting all non-constant sub-forms for profiling
+	 */
+	public static Expression analyse(Environment env, Object form) {
+		if (isInstrumenting()) return Analyser.analyse(env, form);
+		instrumenting.set(Boolean.TRUE);
+		try {
+			return Analyser.analyse(env, form);
+		} finally {
+			instrumenting.remove();
+		}
+	}
+
+	/**
+	 * Wraps an analysed expression in a Profiled node attributed to the given source form
+	 */
+	public static Expression instrument(Expression x, Object form) {
+		if (form instanceof Symbol) return x;
+		return Profiled.create(x, new Site(form));
+	}
+
+	public static Frame enter(Site site) {
+		if (!site.registered.get()&&site.registered.compareAndSet(false, true)) sites.add(site);
+		Frame parent=current.get();
+		CallNode node;
+		int depth;
+		if (parent==null) {
+			node=root.child(site);
+			depth=1;
+		} else if (parent.depth<MAX_DEPTH) {
+			node=parent.node.child(site);
+			depth=parent.depth+1;
+		} else {
+			node=parent.node;
+			depth=parent.depth;
+		}
+		Frame f=new Frame(parent,site,node,depth,System.nanoTime(),allocatedBytes());
+		current.set(f);
+		return f;
+	}
+
+	public static void exit(Frame f) {
+		long elapsed=System.nanoTime()-f.start;
+		long alloc=allocatedBytes()-f.allocStart;
+		long self=Math.max(0, elapsed-f.childNanos);
+		Site site=f.site;
+		site.count.incrementAndGet();
+		site.totalNanos.addAndGet(elapsed);
+		site.selfNanos.addAndGet(self);
+		site.allocBytes.addAndGet(Math.max(0, alloc-f.childAlloc));
+		f.node.selfNanos.addAndGet(self);
+
+		Frame parent=f.parent;
+		if (parent!=null) {
+			parent.childNanos+=elapsed;
+			parent.childAlloc+=alloc;
+			current.set(parent);
+		} else {
+			current.remove();
+		}
+	}
+
+	/**
+	 * Clears all recorded profiling data. Sites are released, so that sites of code no longer in 
+	 * use can be garbage collected, and are registered again when next executed.
+	 */
+	public static void reset() {
+		Site s;
+		while ((s=sites.poll())!=null) {
+			s.reset();
+			s.registered.set(false);
+		}
+		root=new CallNode(null);
+		version++;
+	}
+
+	/**
+	 * Gets all sites that have been executed since the last reset, sorted in descending order by the given key
+	 */
+	public static List<Site> getSites(final SortKey key) {
+		ArrayList<Site> al=new ArrayList<Site>(sites);
+		Collections.sort(al, new Comparator<Site>() {
+			@Override
+			public int compare(Site a, Site b) {
+				long va=a.get(key);
+				long vb=b.get(key);
+				return (va<vb)?1:((va>vb)?-1:0);
+			}
+		});
+		return al;
+	}
+
+	/**
+	 * Gets a human readable report of the top sites, sorted by the given key
+	 */
+	public static String report(SortKey key, int limit) {
+		StringBuilder sb=new StringBuilder();
+		sb.append(String.format("%12s %12s %12s %12s  %s%n", "count", "total(us)", "self(us)", "alloc(KB)", "form"));
+		int i=0;
+		for (Site s: getSites(key)) {
+			if (i++>=limit) break;
+			sb.append(String.format("%12d %12d %12d %12d  %s%n",
+					s.getCount(), s.getTotalNanos()/1000, s.getSelfNanos()/1000, s.getAllocBytes()/1024, s.getLabel()));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the recorded call tree in folded stack format, one line per stack with the self
+	 * time in microseconds. Suitable for flamegraph.pl and compatible tools.
+	 */
+	public static void writeFlameGraph(Appendable out) throws IOException {
+		for (CallNode c: root.children.values()) {
+			writeFolded(out, c, "");
+		}
+	}
+
+	private static void writeFolded(Appendable out, CallNode node, String prefix) throws IOException {
+		String frame=node.site.getLabel().replace(';', ',');
+		String path=(prefix.length()==0)?frame:(prefix+";"+frame);
+		long micros=node.selfNanos.get()/1000;
+		if (micros>0) {
+			out.append(path).append(' ').append(Long.toString(micros)).append('\n');
+		}
+		for (CallNode c: node.children.values()) {
+			writeFolded(out, c, path);
+		}
+	}
+}
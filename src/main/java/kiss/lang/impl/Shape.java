@@ -0,0 +1,75 @@
+package kiss.lang.impl;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import clojure.lang.Keyword;
+
+/**
+ * An ordered set of keyword keys defining the layout of a ShapedMap.
+ * 
+ * Shapes are interned, so that shapes can be compared by identity.
+ * 
+ * @author Mike
+ *
+ */
+public final class Shape {
+	/**
+	 * Maximum number of keys in a shape. Larger maps use a generic representation.
+	 */
+	public static final int MAX_SIZE=16;
+	
+	private static final ConcurrentHashMap<List<Keyword>,Shape> shapes=new ConcurrentHashMap<List<Keyword>,Shape>();
+	
+	private final Keyword[] keys;
+	
+	private Shape(Keyword[] keys) {
+		this.keys=keys;
+	}
+	
+	/**
+	 * Gets the interned shape for the given keys, or null if the keys are duplicated
+	 * or there are more than MAX_SIZE keys.
+	 */
+	public static Shape create(Keyword... keys) {
+		int n=keys.length;
+		if (n>MAX_SIZE) return null;
+		for (int i=0; i<n; i++) {
+			for (int j=0; j<i; j++) {
+				if (keys[i]==keys[j]) return null;
+			}
+		}
+		Keyword[] ks=keys.clone();
+		List<Keyword> id=Arrays.asList(ks);
+		Shape s=shapes.get(id);
+		if (s!=null) return s;
+		s=new Shape(ks);
+		Shape existing=shapes.putIfAbsent(id, s);
+		return (existing==null)?s:existing;
+	}
+	
+	/**
+	 * Gets the slot index of a key, or -1 if the key is not part of this shape
+	 */
+	public int indexOf(Object key) {
+		Keyword[] ks=keys;
+		for (int i=0; i<ks.length; i++) {
+			if (ks[i]==key) return i;
+		}
+		return -1;
+	}
+	
+	public Keyword getKey(int i) {
+		return keys[i];
+	}
+	
+	public int size() {
+		return keys.length;
+	}
+	
+	@Override
+	public String toString() {
+		return "(Shape "+Arrays.toString(keys)+")";
+	}
+}
@@ -0,0 +1,179 @@
+package kiss.lang.impl;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import clojure.lang.APersistentMap;
+import clojure.lang.ArraySeq;
+import clojure.lang.IEditableCollection;
+import clojure.lang.IMapEntry;
+import clojure.lang.IObj;
+import clojure.lang.IPersistentCollection;
+import clojure.lang.IPersistentMap;
+import clojure.lang.ISeq;
+import clojure.lang.ITransientCollection;
+import clojure.lang.ITransientMap;
+import clojure.lang.MapEntry;
+import clojure.lang.PersistentArrayMap;
+
+/**
+ * A persistent map with a fixed Shape of keyword keys, storing values in slots indexed by the shape.
+ * 
+ * Lookups of keys in the shape are a scan of the interned keys by identity, or a direct slot read
+ * where the shape is known in advance. Associating a key in the shape keeps the shape, any other
+ * change falls back to a generic persistent map. Transients are transients of a generic copy.
+ * 
+ * @author Mike
+ *
+ */
+@SuppressWarnings("serial")
+public final class ShapedMap extends APersistentMap implements IObj, IEditableCollection {
+	private final Shape shape;
+	private final Object[] vals;
+	private final IPersistentMap meta;
+	
+	private ShapedMap(Shape shape, Object[] vals, IPersistentMap meta) {
+		this.shape=shape;
+		this.vals=vals;
+		this.meta=meta;
+	}
+	
+	/**
+	 * Creates a ShapedMap. The values array is owned by the new map, and must not be modified.
+	 */
+	public static ShapedMap create(Shape shape, Object[] vals) {
+		if (vals.length!=shape.size()) throw new KissException("Wrong number of values for shape: "+vals.length);
+		return new ShapedMap(shape,vals,null);
+	}
+	
+	public Shape getShape() {
+		return shape;
+	}
+	
+	/**
+	 * Gets the value in a slot of this map's shape
+	 */
+	public Object get(int i) {
+		return vals[i];
+	}
+
+	@Override
+	public Object valAt(Object key) {
+		int i=shape.indexOf(key);
+		return (i<0)?null:vals[i];
+	}
+
+	@Override
+	public Object valAt(Object key, Object notFound) {
+		int i=shape.indexOf(key);
+		return (i<0)?notFound:vals[i];
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return shape.indexOf(key)>=0;
+	}
+
+	@Override
+	public IMapEntry entryAt(Object key) {
+		int i=shape.indexOf(key);
+		return (i<0)?null:new MapEntry(shape.getKey(i),vals[i]);
+	}
+
+	@Override
+	public IPersistentMap assoc(Object key, Object val) {
+		int i=shape.indexOf(key);
+		if (i<0) return toGeneric().assoc(key, val);
+		if (vals[i]==val) return this;
+		Object[] nvals=vals.clone();
+		nvals[i]=val;
+		return new ShapedMap(shape,nvals,meta);
+	}
+
+	@Override
+	public IPersistentMap assocEx(Object key, Object val) {
+		if (containsKey(key)) throw new KissException("Key already present: "+key);
+		return assoc(key,val);
+	}
+
+	@Override
+	public IPersistentMap without(Object key) {
+		if (!containsKey(key)) return this;
+		return toGeneric().without(key);
+	}
+	
+	/**
+	 * Converts to a generic persistent map with the same entries
+	 */
+	private IPersistentMap toGeneric() {
+		ITransientMap tm=PersistentArrayMap.EMPTY.asTransient();
+		for (int i=0; i<vals.length; i++) {
+			tm=tm.assoc(shape.getKey(i), vals[i]);
+		}
+		IPersistentMap m=tm.persistent();
+		if ((meta!=null)&&(m instanceof IObj)) m=(IPersistentMap) ((IObj)m).withMeta(meta);
+		return m;
+	}
+
+	@Override
+	public int count() {
+		return vals.length;
+	}
+
+	@Override
+	public ISeq seq() {
+		int n=vals.length;
+		if (n==0) return null;
+		Object[] es=new Object[n];
+		for (int i=0; i<n; i++) {
+			es[i]=new MapEntry(shape.getKey(i),vals[i]);
+		}
+		return ArraySeq.create(es);
+	}
+
+	@Override
+	public IPersistentCollection empty() {
+		return PersistentArrayMap.EMPTY.withMeta(meta);
+	}
+	
+	@Override
+	public ITransientCollection asTransient() {
+		return ((IEditableCollection)toGeneric()).asTransient();
+	}
+
+	@Override
+	public Iterator<Object> iterator() {
+		return new Iterator<Object>() {
+			private int i=0;
+			
+			@Override
+			public boolean hasNext() {
+				return i<vals.length;
+			}
+
+			@Override
+			public Object next() {
+				if (i>=vals.length) throw new NoSuchElementException();
+				Object e=new MapEntry(shape.getKey(i),vals[i]);
+				i++;
+				return e;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	public IPersistentMap meta() {
+		return meta;
+	}
+
+	@Override
+	public ShapedMap withMeta(IPersistentMap meta) {
+		if (meta==this.meta) return this;
+		return new ShapedMap(shape,vals,meta);
+	}
+}
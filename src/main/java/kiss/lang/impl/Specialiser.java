@@ -0,0 +1,263 @@
+package kiss.lang.impl;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+import kiss.lang.Environment;
+import kiss.lang.Expression;
+import kiss.lang.KFn;
+import kiss.lang.expression.Application;
+import kiss.lang.expression.Constant;
+import clojure.lang.IPersistentMap;
+import clojure.lang.IPersistentSet;
+import clojure.lang.ISeq;
+import clojure.lang.PersistentHashMap;
+import clojure.lang.RT;
+import clojure.lang.Symbol;
+
+/**
+ * Function specialiser, used by Application.optimise for calls to functions too large to inline.
+ *
+ * A call to a known LambdaFn where some arguments are compile time constants is replaced with a call
+ * to a residual LambdaFn. The residual function takes only the remaining arguments, and its body is
+ * optimised with the constant arguments substituted.
+ *
+ * Residual functions are cached per (function, constant argument tuple) in a bounded LRU cache.
+ *
+ * @author Mike
+ *
+ */
+public class Specialiser {
+	/**
+	 * Marker for an argument that is not known at specialisation time
+	 */
+	public static final Object UNKNOWN=new Object();
+
+	private static volatile int maxCacheSize=256;
+	private static volatile int maxDepth=2;
+
+	private static final AtomicLong hits=new AtomicLong();
+	private static final AtomicLong misses=new AtomicLong();
+
+	@SuppressWarnings("serial")
+	private static final LinkedHashMap<Key,KFn> cache=new LinkedHashMap<Key,KFn>(16,0.75f,true) {
+		@Override
+		protected boolean removeEldestEntry(Entry<Key,KFn> eldest) {
+			return size()>maxCacheSize;
+		}
+	};
+
+	private static final ThreadLocal<int[]> depth=new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+
+	/**
+	 * Cache key, compares functions by identity and constant arguments by value
+	 */
+	private static final class Key {
+		private final Object fn;
+		private final Object[] args;
+		private final int hash;
+
+		private Key(Object fn, Object[] args) {
+			this.fn=fn;
+			this.args=args;
+			this.hash=System.identityHashCode(fn)*31+Arrays.hashCode(args);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key k=(Key)o;
+			if ((fn!=k.fn)||(args.length!=k.args.length)) return false;
+			for (int i=0; i<args.length; i++) {
+				Object a=args[i];
+				Object b=k.args[i];
+				if (a==b) continue;
+				if ((a==null)||(b==null)||(a.getClass()!=b.getClass())||(!a.equals(b))) return false;
+			}
+			return true;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	/**
+	 * Sets the maximum number of cached specialisations. Zero disables specialisation.
+	 */
+	public static void setMaxCacheSize(int size) {
+		maxCacheSize=size;
+		synchronized (cache) {
+			while (cache.size()>size) {
+				cache.remove(cache.keySet().iterator().next());
+			}
+		}
+	}
+
+	public static int getMaxCacheSize() {
+		return maxCacheSize;
+	}
+
+	/**
+	 * Sets the maximum depth of specialisation within the body of a function being specialised
+	 */
+	public static void setMaxDepth(int d) {
+		maxDepth=d;
+	}
+
+	public static int getMaxDepth() {
+		return maxDepth;
+	}
+
+	public static int getCacheSize() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	public static long getHits() {
+		return hits.get();
+	}
+
+	public static long getMisses() {
+		return misses.get();
+	}
+
+	public static void clearCache() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Attempts to specialise a function application with some constant arguments.
+	 *
+	 * @param func An optimised function expression
+	 * @param args Optimised argument expressions
+	 * @return An application of the residual function, or null if the application cannot be specialised
+	 */
+	public static Expression specialise(Expression func, Expression[] args) {
+		if (!func.isConstant()) return null;
+		Object f=((Constant<?>)func).getValue();
+		if (!(f instanceof LambdaFn)) return null;
+
+		int n=args.length;
+		Object[] values=new Object[n];
+		int known=0;
+		for (int i=0; i<n; i++) {
+			if (args[i].isConstant()) {
+				values[i]=((Constant<?>)args[i]).getValue();
+				known++;
+			} else {
+				values[i]=UNKNOWN;
+			}
+		}
+		if (known==0) return null;
+
+		KFn residual=specialise((LambdaFn)f,values);
+		if (residual==null) return null;
+
+		Expression[] rargs=new Expression[n-known];
+		int j=0;
+		for (int i=0; i<n; i++) {
+			if (values[i]==UNKNOWN) rargs[j++]=args[i];
+		}
+		return Application.create(Constant.create(residual), rargs);
+	}
+
+	/**
+	 * Specialises a function for the given arguments. Arguments not known at specialisation
+	 * time should be given as UNKNOWN.
+	 *
+	 * @return A residual function taking the UNKNOWN arguments in order, or null if the function
+	 * cannot be specialised
+	 */
+	public static KFn specialise(KFn f, Object... args) {
+		if (!(f instanceof LambdaFn)) return null;
+		if (maxCacheSize<=0) return null;
+		LambdaFn fn=(LambdaFn)f;
+		Symbol[] params=fn.getParams();
+		int n=params.length;
+		if (n!=args.length) return null;
+		if (fn.getBody().canExit()) return null; // recur must rebind all of the original parameters
+
+		Key key=new Key(fn,args.clone());
+		synchronized (cache) {
+			KFn cached=cache.get(key);
+			if (cached!=null) {
+				hits.incrementAndGet();
+				Events.cache("specialiser", true);
+				return cached;
+			}
+		}
+
+		int[] d=depth.get();
+		if (d[0]>=maxDepth) return null;
+		d[0]++;
+		KFn residual;
+		try {
+			residual=build(fn,params,args);
+		} finally {
+			d[0]--;
+		}
+		if (residual==null) return null;
+
+		misses.incrementAndGet();
+		Events.cache("specialiser", false);
+		synchronized (cache) {
+			KFn cached=cache.get(key);
+			if (cached!=null) return cached; // built concurrently by another thread
+			cache.put(key, residual);
+		}
+		return residual;
+	}
+
+	private static KFn build(LambdaFn fn, Symbol[] params, Object[] args) {
+		Expression body=Inliner.closeOver(fn.getBody(),params,fn.getEnvironment());
+		if (body==null) return null;
+
+		int n=params.length;
+		IPersistentMap subs=PersistentHashMap.EMPTY;
+		int known=0;
+		for (int i=0; i<n; i++) {
+			if (args[i]==UNKNOWN) continue;
+			subs=subs.assoc(params[i], args[i]);
+			known++;
+		}
+		body=body.substitute(subs);
+		if (body==null) return null;
+		body=body.optimise();
+
+		Symbol[] rparams=new Symbol[n-known];
+		int j=0;
+		for (int i=0; i<n; i++) {
+			if (args[i]==UNKNOWN) rparams[j++]=params[i];
+		}
+		return LambdaFn.create(fn.getEnvironment(), body, rparams);
+	}
+
+	/**
+	 * Adds to a Symbol -> value map the symbols in the given set that are bound to specialisable functions
+	 */
+	public static IPersistentMap specialisableGlobals(Environment e, IPersistentSet syms, IPersistentMap result) {
+		if (maxCacheSize<=0) return result;
+		for (ISeq s=RT.seq(syms); s!=null; s=s.next()) {
+			Symbol sym=(Symbol)s.first();
+			Mapping m=e.getMapping(sym);
+			if ((m==null)||(!m.isBound())) continue;
+			Object v=m.getValue();
+			if (!(v instanceof LambdaFn)) continue;
+			if (((LambdaFn)v).getBody().canExit()) continue;
+			result=result.assoc(sym, v);
+		}
+		return result;
+	}
+}
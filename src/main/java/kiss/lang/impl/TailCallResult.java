@@ -0,0 +1,28 @@
+package kiss.lang.impl;
+
+import java.util.Arrays;
+
+import kiss.lang.Environment;
+
+/**
+ * Class representing a call to a Kiss function in tail position. The call is completed by the 
+ * trampoline in LambdaFn, so that tail calls run in constant stack.
+ * 
+ * @author Mike
+ *
+ */
+public class TailCallResult extends ExitResult {
+	public LambdaFn fn;
+	public Object[] args;
+	
+	public TailCallResult(Environment env, LambdaFn fn, Object[] args) {
+		super(env);
+		this.fn=fn;
+		this.args=args;
+	}
+
+	@Override
+	public String toString() {
+		return "(TailCallResult "+Arrays.toString(args)+")";
+	}
+}
@@ -0,0 +1,43 @@
+package kiss.lang.impl;
+
+import kiss.lang.Expression;
+import kiss.lang.expression.Application;
+import kiss.lang.expression.Do;
+import kiss.lang.expression.If;
+import kiss.lang.expression.Let;
+import kiss.lang.expression.Loop;
+import kiss.lang.expression.Profiled;
+import kiss.lang.expression.Return;
+
+/**
+ * Marks applications in tail position of a function body as tail calls.
+ * 
+ * A marked body is only used for interpretation by LambdaFn, and should never be optimised or 
+ * inlined, since a tail call is only valid in the tail position of the function.
+ * 
+ * @author Mike
+ *
+ */
+public class TailCalls {
+
+	/**
+	 * Marks tail calls in a function body
+	 */
+	public static Expression mark(Expression x) {
+		if (x instanceof Application) return ((Application)x).asTailCall();
+		
+		Expression[] cs=x.getChildren();
+		int n=cs.length;
+		if (x instanceof If) {
+			cs[1]=mark(cs[1]);
+			cs[2]=mark(cs[2]);
+		} else if ((x instanceof Let)||(x instanceof Do)||(x instanceof Loop)||(x instanceof Return)||(x instanceof Profiled)) {
+			// the last child of these is evaluated in tail position
+			if (n==0) return x;
+			cs[n-1]=mark(cs[n-1]);
+		} else {
+			return x;
+		}
+		return x.withChildren(cs);
+	}
+}
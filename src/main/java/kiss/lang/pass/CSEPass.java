@@ -0,0 +1,240 @@
+package kiss.lang.pass;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import kiss.lang.Expression;
+import kiss.lang.expression.If;
+import kiss.lang.expression.Lambda;
+import kiss.lang.expression.Let;
+import kiss.lang.expression.Lookup;
+import kiss.lang.expression.Loop;
+import kiss.lang.expression.Recur;
+import kiss.lang.expression.Return;
+import clojure.lang.Symbol;
+
+/**
+ * Common subexpression elimination over pure expressions.
+ *
+ * Design intent:
+ * - An expression is split into regions of unconditionally evaluated code within a single scope.
+ *   If branches, Let bodies, Loop bodies and Lambda bodies start new regions.
+ * - Within a region, repeated structurally equal subexpressions are bound with a Let and each
+ *   occurrence is replaced with a Lookup of a fresh symbol
+ * - The Let is placed at the innermost expression containing all occurrences, and only if 
+ *   everything evaluated there before the first occurrence is pure. Pure functions such as / can 
+ *   still throw, so they must not move ahead of side effects.
+ * - Only expressions built from known pure functions are candidates, see Purity
+ *
+ * @author Mike
+ *
+ */
+public class CSEPass extends Pass {
+	public static final CSEPass INSTANCE=new CSEPass();
+
+	private static final int MAX_ROUNDS=64;
+
+	private CSEPass() {
+		// singleton
+	}
+
+	@Override
+	public String getName() {
+		return "cse";
+	}
+
+	@Override
+	public Expression apply(Expression x) {
+		return cse(x);
+	}
+
+	/**
+	 * Eliminates common subexpressions in nested regions first, then in the region rooted at x
+	 */
+	private static Expression cse(Expression x) {
+		x=rebuild(x);
+		return eliminate(x);
+	}
+
+	private static Expression rebuild(Expression x) {
+		Expression[] cs=x.getChildren();
+		int n=cs.length;
+		boolean changed=false;
+		for (int i=0; i<n; i++) {
+			Expression c=cs[i];
+			Expression nc=startsRegion(x,i,n)?cse(c):rebuild(c);
+			if (nc!=c) {
+				cs[i]=nc;
+				changed=true;
+			}
+		}
+		return changed?x.withChildren(cs):x;
+	}
+
+	/**
+	 * Returns true if the i'th of n children of x starts a new region
+	 */
+	private static boolean startsRegion(Expression x, int i, int n) {
+		if (x instanceof If) return i>0;
+		if (x instanceof Let) return i==1;
+		if (x instanceof Loop) return i==(n-1);
+		if (x instanceof Lambda) return true;
+		return false;
+	}
+
+	private static Expression eliminate(Expression x) {
+		if (!canHoist(x)) return x;
+
+		ArrayList<Expression> lookups=new ArrayList<Expression>();
+		ArrayList<Expression> vals=new ArrayList<Expression>();
+		HashSet<Symbol> own=new HashSet<Symbol>();
+		for (int round=0; round<MAX_ROUNDS; round++) {
+			HashMap<Expression,Integer> counts=new HashMap<Expression,Integer>();
+			count(x,counts);
+
+			Expression best=null;
+			int bestSize=0;
+			for (java.util.Map.Entry<Expression,Integer> e: counts.entrySet()) {
+				if (e.getValue()<2) continue;
+				int size=e.getKey().getSize();
+				if (size>bestSize) {
+					best=e.getKey();
+					bestSize=size;
+				}
+			}
+			if (best==null) break;
+
+			Symbol s=freshSymbol("__cse");
+			Expression lookup=Lookup.create(s, best.getType());
+			x=replace(x,best,lookup,own);
+			lookups.add(lookup);
+			vals.add(best);
+		}
+
+		// bind each value just before its first use, or put it back if that would move it ahead
+		// of an impure expression
+		for (int i=0; i<lookups.size(); i++) {
+			Expression lookup=lookups.get(i);
+			Symbol s=((Lookup)lookup).getSymbol();
+			Expression l=bind(x,lookup,s,vals.get(i),own);
+			if (l==null) {
+				x=replace(x,lookup,vals.get(i),own);
+			} else {
+				x=l;
+				own.add(s);
+			}
+		}
+		return x;
+	}
+
+	/**
+	 * Wraps the innermost subexpression of x containing all occurrences of lookup in a Let binding
+	 * s to val. Returns null if an impure expression is evaluated there before the first occurrence.
+	 */
+	private static Expression bind(Expression x, Expression lookup, Symbol s, Expression val, HashSet<Symbol> own) {
+		int total=occurrences(x,lookup,own);
+		Expression[] cs=x.getChildren();
+		int n=cs.length;
+		if (!x.equals(lookup)) {
+			for (int i=0; i<n; i++) {
+				if (!descends(x,i,n,own)) continue;
+				int k=occurrences(cs[i],lookup,own);
+				if (k==0) continue;
+				if (k<total) break; // x is the innermost expression containing all occurrences
+				Expression nc=bind(cs[i],lookup,s,val,own);
+				if (nc==null) return null;
+				cs[i]=nc;
+				return x.withChildren(cs);
+			}
+		}
+		if (!pureBefore(x,lookup,own)) return null;
+		return Let.create(s, val, x);
+	}
+
+	/**
+	 * Returns true if everything evaluated in x before the first occurrence of target is pure
+	 */
+	private static boolean pureBefore(Expression x, Expression target, HashSet<Symbol> own) {
+		if (x.equals(target)) return true;
+		Expression[] cs=x.getChildren();
+		int n=cs.length;
+		for (int i=0; i<n; i++) {
+			if (!descends(x,i,n,own)) continue;
+			if (occurrences(cs[i],target,own)>0) return pureBefore(cs[i],target,own);
+			if (!Purity.isSafe(cs[i])) return false;
+		}
+		return true;
+	}
+
+	private static int occurrences(Expression x, Expression target, HashSet<Symbol> own) {
+		if (x.equals(target)) return 1;
+		Expression[] cs=x.getChildren();
+		int n=cs.length;
+		int k=0;
+		for (int i=0; i<n; i++) {
+			if (descends(x,i,n,own)) k+=occurrences(cs[i],target,own);
+		}
+		return k;
+	}
+
+	/**
+	 * Returns true if the i'th of n children of x is in the same region, including the bodies of
+	 * Let bindings introduced by this pass
+	 */
+	private static boolean descends(Expression x, int i, int n, HashSet<Symbol> own) {
+		if (!startsRegion(x,i,n)) return true;
+		return (x instanceof Let)&&(i==1)&&own.contains(((Let)x).getSymbol());
+	}
+
+	/**
+	 * Returns true if evaluating a hoisted expression at the start of the region cannot
+	 * be skipped by an early exit
+	 */
+	private static boolean canHoist(Expression x) {
+		if (!x.canExit()) return true;
+		if ((x instanceof Recur)||(x instanceof Return)) {
+			// all values are evaluated before the exit
+			for (Expression c: x.getChildren()) {
+				if (c.canExit()) return false;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	private static void count(Expression x, HashMap<Expression,Integer> counts) {
+		if (isCandidate(x)) {
+			Integer c=counts.get(x);
+			counts.put(x, (c==null)?1:(c+1));
+		}
+		Expression[] cs=x.getChildren();
+		int n=cs.length;
+		for (int i=0; i<n; i++) {
+			if (!startsRegion(x,i,n)) count(cs[i],counts);
+		}
+	}
+
+	private static Expression replace(Expression x, Expression target, Expression r, HashSet<Symbol> own) {
+		if (x.equals(target)) return r;
+		Expression[] cs=x.getChildren();
+		int n=cs.length;
+		boolean changed=false;
+		for (int i=0; i<n; i++) {
+			if (!descends(x,i,n,own)) continue;
+			Expression c=cs[i];
+			Expression nc=replace(c,target,r,own);
+			if (nc!=c) {
+				cs[i]=nc;
+				changed=true;
+			}
+		}
+		return changed?x.withChildren(cs):x;
+	}
+
+	private static boolean isCandidate(Expression x) {
+		if (x.getSize()<=1) return false;
+		if (x.canExit()) return false;
+		return Purity.isSafe(x);
+	}
+}
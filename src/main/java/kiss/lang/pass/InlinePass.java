@@ -0,0 +1,52 @@
+package kiss.lang.pass;
+
+import java.util.Arrays;
+
+import kiss.lang.Expression;
+import kiss.lang.expression.Application;
+import kiss.lang.impl.Inliner;
+import kiss.lang.impl.Specialiser;
+
+/**
+ * Pass that inlines and specialises calls to small functions, subject to the budgets configured
+ * in the Inliner. Other nodes are left unchanged so that the PassStats for this pass count only
+ * inlining and specialisation; general simplification is left to the SimplifyPass. The only
+ * exception is that an inlined body is optimised as part of the rewrite that produced it.
+ *
+ * @author Mike
+ *
+ */
+public class InlinePass extends Pass {
+	public static final InlinePass INSTANCE=new InlinePass();
+
+	private InlinePass() {
+		// singleton
+	}
+
+	@Override
+	public String getName() {
+		return "inline";
+	}
+
+	@Override
+	public Expression apply(Expression x) {
+		Expression[] cs=x.getChildren();
+		Expression[] ncs=cs;
+		for (int i=0; i<cs.length; i++) {
+			Expression c=apply(cs[i]);
+			if (c==cs[i]) continue;
+			if (ncs==cs) ncs=cs.clone();
+			ncs[i]=c;
+		}
+		if (ncs!=cs) x=x.withChildren(ncs);
+
+		if (x instanceof Application) {
+			Expression func=ncs[0];
+			Expression[] args=Arrays.copyOfRange(ncs, 1, ncs.length);
+			Expression result=Inliner.inline(func,args);
+			if (result==null) result=Specialiser.specialise(func,args);
+			if (result!=null) return result;
+		}
+		return x;
+	}
+}
@@ -0,0 +1,142 @@
+package kiss.lang.pass;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import kiss.lang.Expression;
+import kiss.lang.expression.If;
+import kiss.lang.expression.Lambda;
+import kiss.lang.expression.Let;
+import kiss.lang.expression.Lookup;
+import kiss.lang.expression.Loop;
+import clojure.lang.IPersistentSet;
+import clojure.lang.ISeq;
+import clojure.lang.PersistentHashSet;
+import clojure.lang.Symbol;
+
+/**
+ * Loop-invariant code motion.
+ *
+ * Design intent:
+ * - Maximal pure subexpressions of a Loop body that do not depend on any loop symbol, or on any
+ *   symbol bound within the body, are hoisted into Let bindings surrounding the Loop
+ * - Equal invariant expressions share a single binding
+ * - Only expressions built from known pure functions are hoisted, see Purity
+ * - Only positions that the loop body always evaluates are considered. If branches, Lambda
+ *   bodies and anything evaluated after an expression that can exit early are left alone, since 
+ *   pure functions such as / or nth can still throw, and may be guarded by the condition.
+ * - Initial values of the loop are bound before the hoisted expressions, so that their side
+ *   effects and exceptions keep their order
+ * - Loops are processed innermost first, so invariants can move out through several levels
+ *
+ * @author Mike
+ *
+ */
+public class LICMPass extends Pass {
+	public static final LICMPass INSTANCE=new LICMPass();
+
+	private LICMPass() {
+		// singleton
+	}
+
+	@Override
+	public String getName() {
+		return "licm";
+	}
+
+	@Override
+	public Expression apply(Expression x) {
+		Expression[] cs=x.getChildren();
+		boolean changed=false;
+		for (int i=0; i<cs.length; i++) {
+			Expression c=cs[i];
+			Expression nc=apply(c);
+			if (nc!=c) {
+				cs[i]=nc;
+				changed=true;
+			}
+		}
+		if (changed) x=x.withChildren(cs);
+		if (x instanceof Loop) return hoist((Loop)x);
+		return x;
+	}
+
+	private static Expression hoist(Loop loop) {
+		Expression[] cs=loop.getChildren();
+		int n=cs.length;
+		IPersistentSet bound=PersistentHashSet.create((Object[])loop.getSymbols());
+		LinkedHashMap<Expression,Symbol> hoisted=new LinkedHashMap<Expression,Symbol>();
+		Expression body=extract(cs[n-1],bound,hoisted);
+		if (hoisted.isEmpty()) return loop;
+
+		// initial values are bound to the loop symbols first, then passed in unchanged. Hoisted
+		// expressions never refer to loop symbols, so these bindings cannot capture them.
+		Symbol[] syms=loop.getSymbols();
+		Expression[] initials=new Expression[n-1];
+		for (int i=0; i<n-1; i++) {
+			initials[i]=cs[i];
+			if (!cs[i].isConstant()) cs[i]=Lookup.create(syms[i], cs[i].getType());
+		}
+		cs[n-1]=body;
+		Expression x=loop.withChildren(cs);
+		ArrayList<Entry<Expression,Symbol>> es=new ArrayList<Entry<Expression,Symbol>>(hoisted.entrySet());
+		for (int i=es.size()-1; i>=0; i--) {
+			Entry<Expression,Symbol> e=es.get(i);
+			x=Let.create(e.getValue(), e.getKey(), x);
+		}
+		for (int i=n-2; i>=0; i--) {
+			if (!initials[i].isConstant()) x=Let.create(syms[i], initials[i], x);
+		}
+		return x;
+	}
+
+	/**
+	 * Replaces invariant subexpressions of x with lookups, recording them in hoisted
+	 */
+	private static Expression extract(Expression x, IPersistentSet bound, LinkedHashMap<Expression,Symbol> hoisted) {
+		if (isInvariant(x,bound)) {
+			Symbol s=hoisted.get(x);
+			if (s==null) {
+				s=freshSymbol("__licm");
+				hoisted.put(x, s);
+			}
+			return Lookup.create(s, x.getType());
+		}
+		if (x instanceof Lambda) return x;
+
+		Expression[] cs=x.getChildren();
+		int n=cs.length;
+		IPersistentSet inner=bound;
+		if (x instanceof Loop) {
+			for (Symbol s: ((Loop)x).getSymbols()) {
+				inner=(IPersistentSet) inner.cons(s);
+			}
+		}
+		if (x instanceof If) n=1; // branches are evaluated conditionally
+		boolean changed=false;
+		for (int i=0; i<n; i++) {
+			IPersistentSet b=inner;
+			if ((x instanceof Let)&&(i==1)) b=(IPersistentSet) inner.cons(((Let)x).getSymbol());
+			Expression c=cs[i];
+			Expression nc=extract(c,b,hoisted);
+			if (nc!=c) {
+				cs[i]=nc;
+				changed=true;
+			}
+			if (c.canExit()) break; // later children may not be evaluated
+		}
+		return changed?x.withChildren(cs):x;
+	}
+
+	private static boolean isInvariant(Expression x, IPersistentSet bound) {
+		if (x.getSize()<=1) return false;
+		if (x.canExit()) return false;
+		if (!Purity.isSafe(x)) return false;
+		IPersistentSet free=x.accumulateFreeSymbols(PersistentHashSet.EMPTY);
+		for (ISeq s=free.seq(); s!=null; s=s.next()) {
+			if (bound.contains(s.first())) return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,43 @@
+package kiss.lang.pass;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import kiss.lang.Expression;
+import clojure.lang.Symbol;
+
+/**
+ * Abstract base class for optimisation passes run by a PassManager
+ *
+ * Design intent:
+ * - A pass transforms an Expression into an equivalent Expression
+ * - Must return the same Expression if no changes are made, so that a fixpoint can be detected
+ * - Passes should be stateless, so that they can be shared between threads
+ *
+ * @author Mike
+ *
+ */
+public abstract class Pass {
+	private static final AtomicLong symbolCounter=new AtomicLong();
+
+	/**
+	 * Gets the name of this pass, used for reporting statistics
+	 */
+	public abstract String getName();
+
+	/**
+	 * Applies this pass to an Expression
+	 */
+	public abstract Expression apply(Expression x);
+
+	/**
+	 * Creates a fresh symbol for a binding introduced by a pass
+	 */
+	protected static Symbol freshSymbol(String prefix) {
+		return Symbol.intern(prefix+symbolCounter.incrementAndGet());
+	}
+
+	@Override
+	public String toString() {
+		return getName();
+	}
+}
@@ -0,0 +1,145 @@
+package kiss.lang.pass;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import kiss.lang.Expression;
+import kiss.lang.impl.Events;
+
+/**
+ * Runs a pipeline of optimisation passes over an Expression.
+ *
+ * Design intent:
+ * - The pipeline is repeated until a fixpoint is reached (no pass changes the Expression)
+ * - Iteration stops early when the iteration, time or size budget is exhausted
+ * - Cumulative per-pass statistics are recorded for tuning
+ *
+ * @author Mike
+ *
+ */
+public class PassManager {
+	private static volatile PassManager defaultManager=create(SimplifyPass.INSTANCE,InlinePass.INSTANCE,LICMPass.INSTANCE,CSEPass.INSTANCE);
+
+	private final Pass[] passes;
+	private final PassStats[] stats;
+
+	private volatile int maxIterations=8;
+	private volatile long timeBudgetNanos=50000000L;
+	private volatile int maxGrowth=4;
+
+	private PassManager(Pass[] passes) {
+		this.passes=passes;
+		int n=passes.length;
+		this.stats=new PassStats[n];
+		for (int i=0; i<n; i++) {
+			stats[i]=new PassStats(passes[i].getName());
+		}
+	}
+
+	public static PassManager create(Pass... passes) {
+		return new PassManager(passes.clone());
+	}
+
+	/**
+	 * Gets the default PassManager, as used by the Compiler
+	 */
+	public static PassManager getDefault() {
+		return defaultManager;
+	}
+
+	public static void setDefault(PassManager pm) {
+		defaultManager=pm;
+	}
+
+	/**
+	 * Sets the maximum number of iterations of the whole pipeline
+	 */
+	public void setMaxIterations(int n) {
+		maxIterations=n;
+	}
+
+	/**
+	 * Sets the time budget for a single run. The current pass is always completed.
+	 */
+	public void setTimeBudgetNanos(long nanos) {
+		timeBudgetNanos=nanos;
+	}
+
+	/**
+	 * Sets the maximum growth factor for expression size. A pass result exceeding this budget is discarded.
+	 */
+	public void setMaxGrowth(int factor) {
+		maxGrowth=factor;
+	}
+
+	/**
+	 * Runs the pass pipeline over an Expression
+	 */
+	public Expression run(Expression x) {
+		long start=System.nanoTime();
+		int initialSize=x.getSize();
+		int sizeLimit=Math.max(initialSize*maxGrowth, initialSize+64);
+		int size=initialSize;
+
+		for (int iter=0; iter<maxIterations; iter++) {
+			boolean changed=false;
+			for (int i=0; i<passes.length; i++) {
+				Object ev=Events.beginPass();
+				long t0=System.nanoTime();
+				Expression nx=passes[i].apply(x);
+				long t1=System.nanoTime();
+				int nsize=(nx==x)?size:nx.getSize();
+				stats[i].record(t1-t0, size, nsize, nx!=x);
+				Events.endPass(ev, passes[i].getName(), size, nsize, nx!=x);
+
+				if (nsize>sizeLimit) return x; // size budget exhausted, keep the previous result
+				if (nx!=x) {
+					x=nx;
+					size=nsize;
+					changed=true;
+				}
+				if ((t1-start)>timeBudgetNanos) return x;
+			}
+			if (!changed) break; // fixpoint reached
+		}
+		return x;
+	}
+
+	/**
+	 * Gets the statistics for all passes, in pipeline order
+	 */
+	public List<PassStats> getStats() {
+		ArrayList<PassStats> al=new ArrayList<PassStats>(stats.length);
+		Collections.addAll(al, stats);
+		return al;
+	}
+
+	/**
+	 * Gets the statistics for a named pass, or null if no such pass exists
+	 */
+	public PassStats getStats(String name) {
+		for (PassStats ps: stats) {
+			if (ps.getName().equals(name)) return ps;
+		}
+		return null;
+	}
+
+	public void resetStats() {
+		for (PassStats ps: stats) {
+			ps.reset();
+		}
+	}
+
+	/**
+	 * Gets a human readable report of pass statistics
+	 */
+	public String report() {
+		StringBuilder sb=new StringBuilder();
+		for (PassStats ps: stats) {
+			sb.append(ps.toString());
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+}
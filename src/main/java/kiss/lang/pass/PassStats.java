@@ -0,0 +1,82 @@
+package kiss.lang.pass;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cumulative statistics for a single optimisation pass. Thread safe.
+ *
+ * @author Mike
+ *
+ */
+public final class PassStats {
+	private final String name;
+	private final AtomicLong runs=new AtomicLong();
+	private final AtomicLong rewrites=new AtomicLong();
+	private final AtomicLong nanos=new AtomicLong();
+	private final AtomicLong nodesIn=new AtomicLong();
+	private final AtomicLong nodesOut=new AtomicLong();
+
+	PassStats(String name) {
+		this.name=name;
+	}
+
+	void record(long time, int sizeIn, int sizeOut, boolean changed) {
+		runs.incrementAndGet();
+		if (changed) rewrites.incrementAndGet();
+		nanos.addAndGet(time);
+		nodesIn.addAndGet(sizeIn);
+		nodesOut.addAndGet(sizeOut);
+	}
+
+	void reset() {
+		runs.set(0);
+		rewrites.set(0);
+		nanos.set(0);
+		nodesIn.set(0);
+		nodesOut.set(0);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Gets the number of times the pass has been run
+	 */
+	public long getRuns() {
+		return runs.get();
+	}
+
+	/**
+	 * Gets the number of runs in which the pass changed the expression
+	 */
+	public long getRewrites() {
+		return rewrites.get();
+	}
+
+	/**
+	 * Gets the total time spent in the pass, in nanoseconds
+	 */
+	public long getNanos() {
+		return nanos.get();
+	}
+
+	/**
+	 * Gets the total number of expression nodes input to the pass
+	 */
+	public long getNodesIn() {
+		return nodesIn.get();
+	}
+
+	/**
+	 * Gets the total number of expression nodes output by the pass
+	 */
+	public long getNodesOut() {
+		return nodesOut.get();
+	}
+
+	@Override
+	public String toString() {
+		return name+": runs="+getRuns()+" rewrites="+getRewrites()+" time="+(getNanos()/1000)+"us nodes="+getNodesIn()+"->"+getNodesOut();
+	}
+}
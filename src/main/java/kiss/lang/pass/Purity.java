@@ -0,0 +1,86 @@
+package kiss.lang.pass;
+
+import kiss.lang.Expression;
+import kiss.lang.expression.Application;
+import kiss.lang.expression.Cast;
+import kiss.lang.expression.ClojureLookup;
+import kiss.lang.expression.Constant;
+import kiss.lang.expression.Do;
+import kiss.lang.expression.GlobalLookup;
+import kiss.lang.expression.If;
+import kiss.lang.expression.InstanceOf;
+import kiss.lang.expression.KeywordLookup;
+import kiss.lang.expression.Lookup;
+import kiss.lang.expression.Map;
+import kiss.lang.expression.Profiled;
+import kiss.lang.expression.SlotLookup;
+import kiss.lang.expression.Vector;
+import kiss.lang.impl.KissUtils;
+import clojure.lang.IFn;
+import clojure.lang.IPersistentSet;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentHashSet;
+import clojure.lang.Symbol;
+
+/**
+ * Purity analysis shared by passes that move or merge expressions.
+ * 
+ * isPure() on an Application does not guarantee that the function called is free of side 
+ * effects, so only calls to known pure KFns and to a whitelist of pure clojure.core functions
+ * are considered safe. Also used to decide which arguments may be evaluated in parallel. 
+ * Profiled nodes are looked through, so that profiled code is optimised like other code.
+ * 
+ * @author Mike
+ *
+ */
+public final class Purity {
+	private static final IPersistentSet PURE_CLOJURE_FNS=PersistentHashSet.create(
+			sym("+"),sym("-"),sym("*"),sym("/"),sym("inc"),sym("dec"),
+			sym("quot"),sym("rem"),sym("mod"),sym("min"),sym("max"),
+			sym("="),sym("=="),sym("not="),sym("<"),sym(">"),sym("<="),sym(">="),
+			sym("not"),sym("nil?"),sym("zero?"),sym("pos?"),sym("neg?"),sym("even?"),sym("odd?"),
+			sym("count"),sym("get"),sym("nth"),sym("first"),sym("second"),sym("rest"),sym("next"),
+			sym("contains?"),sym("identity"),sym("str"),sym("keyword"),sym("symbol"),
+			sym("vector"),sym("hash-map"),sym("assoc"),sym("dissoc"),sym("conj"));
+	
+	private Purity() {
+		// static utility
+	}
+
+	private static Symbol sym(String name) {
+		return Symbol.intern("clojure.core",name);
+	}
+
+	/**
+	 * Returns true if x is pure, composed only of node types with structural equality and calls
+	 * to known pure functions
+	 */
+	public static boolean isSafe(Expression x) {
+		x=Profiled.strip(x);
+		if ((x instanceof Constant)||(x instanceof Lookup)||(x instanceof GlobalLookup)||(x instanceof ClojureLookup)) return true;
+		Expression[] cs=x.getChildren();
+		if (x instanceof Application) {
+			if (!isPureFunction(cs[0])) return false;
+		} else if (!((x instanceof If)||(x instanceof Cast)||(x instanceof InstanceOf)
+				||(x instanceof Do)||(x instanceof Vector)||(x instanceof Map)||(x instanceof SlotLookup)||(x instanceof KeywordLookup))) {
+			return false;
+		}
+		for (Expression c: cs) {
+			if (!isSafe(c)) return false;
+		}
+		return true;
+	}
+
+	public static boolean isPureFunction(Expression f) {
+		f=Profiled.strip(f);
+		if (f instanceof ClojureLookup) {
+			return PURE_CLOJURE_FNS.contains(((ClojureLookup)f).getSymbol());
+		}
+		if (f instanceof Constant) {
+			Object v=((Constant<?>)f).getValue();
+			if (v instanceof Keyword) return true; // keyword lookup
+			return (v instanceof IFn)&&KissUtils.isPureFn((IFn)v);
+		}
+		return false;
+	}
+}
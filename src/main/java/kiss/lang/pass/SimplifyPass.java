@@ -0,0 +1,29 @@
+package kiss.lang.pass;
+
+import kiss.lang.Expression;
+import kiss.lang.impl.Inliner;
+
+/**
+ * Pass that runs the node level optimise() without inlining. Performs constant folding,
+ * dead code elimination, flow-sensitive type refinement and cast elimination.
+ *
+ * @author Mike
+ *
+ */
+public class SimplifyPass extends Pass {
+	public static final SimplifyPass INSTANCE=new SimplifyPass();
+
+	private SimplifyPass() {
+		// singleton
+	}
+
+	@Override
+	public String getName() {
+		return "simplify";
+	}
+
+	@Override
+	public Expression apply(Expression x) {
+		return Inliner.optimiseWithoutInlining(x);
+	}
+}
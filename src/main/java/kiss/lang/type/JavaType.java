@@ -58,6 +58,10 @@ public class JavaType<T> extends Type {
 			JavaType<?> jt=(JavaType<?>)t;
 			if (klass==jt.klass) return true;
 			return klass.isAssignableFrom(jt.klass);
+		} else if (t instanceof Value) {
+			return checkInstance(((Value<?>)t).value);
+		} else if (t instanceof Nothing) {
+			return true;
 		} else {
 			// TODO: check logic
 			// not a Java type, so can't contain?
@@ -70,6 +70,8 @@ public class Maybe extends Type {
 			return Maybe.create(it);
 		}
 		
+		// retain the null case if the other type also allows null
+		if (t.canBeNull()) return Maybe.create(type.intersection(t));
 		return type.intersection(t);
 	}
 
@@ -66,8 +66,10 @@ public class Not extends Type {
 			return Union.create(((Not)t).type,type).inverse();
 		}
 		if (t instanceof Anything) return this;
+		if (type.contains(t)) return Nothing.INSTANCE; // all instances of t are excluded
+		if (type.intersection(t)==Nothing.INSTANCE) return t; // no instances of t are excluded
 		// TODO: better specialisation via Intersection?
-		return t;
+		return Intersection.create(t,this);
 	}
 
 	@Override
@@ -0,0 +1,78 @@
+package kiss.lang.type;
+
+import kiss.lang.Type;
+import kiss.lang.impl.Shape;
+import kiss.lang.impl.ShapedMap;
+
+/**
+ * The type of ShapedMap values with a specific Shape.
+ * 
+ * @author Mike
+ *
+ */
+public class ShapeType extends JavaType<ShapedMap> {
+	private final Shape shape;
+	
+	private ShapeType(Shape shape) {
+		super(ShapedMap.class);
+		this.shape=shape;
+	}
+	
+	public static ShapeType create(Shape shape) {
+		return new ShapeType(shape);
+	}
+	
+	public Shape getShape() {
+		return shape;
+	}
+	
+	@Override
+	public boolean checkInstance(Object o) {
+		return (o instanceof ShapedMap)&&(((ShapedMap)o).getShape()==shape);
+	}
+	
+	@Override
+	public ShapedMap cast(Object a) {
+		if (!checkInstance(a)) throw new ClassCastException("Can't cast value to type "+this.toString());
+		return (ShapedMap)a;
+	}
+	
+	@Override
+	public boolean contains(Type t) {
+		if (t==this) return true;
+		if (t instanceof ShapeType) return ((ShapeType)t).shape==shape;
+		if (t instanceof Value) return checkInstance(((Value<?>)t).value);
+		if (t instanceof Nothing) return true;
+		return false;
+	}
+	
+	@Override
+	public Type intersection(Type t) {
+		if ((t==this)||(t instanceof Anything)) return this;
+		if (t instanceof ShapeType) {
+			return (((ShapeType)t).shape==shape)?this:Nothing.INSTANCE;
+		}
+		if (t instanceof JavaType) {
+			if (t.contains(this)) return this;
+			return Nothing.INSTANCE;
+		}
+		return super.intersection(t);
+	}
+	
+	@Override
+	public Type union(Type t) {
+		if (contains(t)) return this;
+		if (t instanceof JavaType) return JavaType.create(ShapedMap.class).union(t);
+		return super.union(t);
+	}
+	
+	@Override
+	public JavaType<?> toJavaType() {
+		return JavaType.create(ShapedMap.class);
+	}
+	
+	@Override
+	public String toString() {
+		return "(ShapeType "+shape+")";
+	}
+}
@@ -0,0 +1,152 @@
+package kiss.test;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+
+import kiss.lang.Analyser;
+import kiss.lang.Compiler;
+import kiss.lang.Environment;
+import kiss.lang.Expression;
+import kiss.lang.KFn;
+import kiss.lang.expression.Constant;
+import kiss.lang.expression.Lookup;
+import kiss.lang.impl.KissUtils;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import clojure.lang.Symbol;
+
+/**
+ * Allocation budget tests for hot paths of the interpreter.
+ *
+ * Each workload is warmed up, then measured several times with the per-thread allocation counter.
+ * The best run must stay within the budget in bytes per operation. Budgets are about 1.3-1.5x the
+ * measured baseline noted next to each, on a 64-bit JVM with compressed oops, so that a regression
+ * of a third or more fails. Re-measure and tighten them when an optimisation lands.
+ *
+ * @author Mike
+ *
+ */
+public class AllocationTests {
+	private static final int WARMUP_ROUNDS=3;
+	private static final int MEASURE_ROUNDS=5;
+
+	// budgets in bytes
+	private static final long LOOP_ITERATION_BUDGET=1536; // measured 1101
+	private static final long CALL_BUDGET=1536; // measured 1164
+	private static final long COMPILED_CALL_BUDGET=768; // measured 544
+	private static final long LOOKUP_BUDGET=64; // measured 48
+	private static final long DEFINE_BUDGET=1152; // measured 792, with 100 symbols defined
+
+	private static final com.sun.management.ThreadMXBean THREADS=threadBean();
+
+	private static com.sun.management.ThreadMXBean threadBean() {
+		java.lang.management.ThreadMXBean b=ManagementFactory.getThreadMXBean();
+		if (!(b instanceof com.sun.management.ThreadMXBean)) return null;
+		com.sun.management.ThreadMXBean tb=(com.sun.management.ThreadMXBean)b;
+		if (!tb.isThreadAllocatedMemorySupported()) return null;
+		if (!tb.isThreadAllocatedMemoryEnabled()) tb.setThreadAllocatedMemoryEnabled(true);
+		return tb;
+	}
+
+	private static long allocated() {
+		return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Measures the bytes allocated per run of an operation, as the best of several rounds
+	 */
+	private static long bytesPerOp(Runnable op, int iterations) {
+		for (int i=0; i<WARMUP_ROUNDS*iterations; i++) {
+			op.run();
+		}
+		long best=Long.MAX_VALUE;
+		for (int r=0; r<MEASURE_ROUNDS; r++) {
+			long start=allocated();
+			for (int i=0; i<iterations; i++) {
+				op.run();
+			}
+			best=Math.min(best, (allocated()-start)/iterations);
+		}
+		return best;
+	}
+
+	private static void assertBudget(String name, long budget, Runnable op, int iterations) {
+		Assume.assumeTrue(THREADS!=null);
+		long bytes=bytesPerOp(op, iterations);
+		assertTrue(name+" allocated "+bytes+" bytes per op, budget is "+budget, bytes<=budget);
+	}
+
+	private static Expression optimised(String src) {
+		return Analyser.analyse(KissUtils.read(src)).optimise();
+	}
+
+	@Test
+	public void testLoopBudget() {
+		final Expression x=optimised(
+				"(loop [i 0 acc 0] (if (clojure.core/< i 1000) (recur (clojure.core/inc i) (clojure.core/+ acc i)) acc))");
+		assertBudget("loop", 1000*LOOP_ITERATION_BUDGET, new Runnable() {
+			@Override
+			public void run() {
+				x.eval();
+			}
+		}, 20);
+	}
+
+	@Test
+	public void testRecursionBudget() {
+		final Expression x=optimised(
+				"(let [fib (fn [fib n] (if (clojure.core/< n 2) n "
+				+ "(clojure.core/+ (fib fib (clojure.core/dec n)) (fib fib (clojure.core/- n 2)))))] (fib fib 15))");
+		// fib 15 makes 1973 calls
+		assertBudget("recursion", 1973*CALL_BUDGET, new Runnable() {
+			@Override
+			public void run() {
+				x.eval();
+			}
+		}, 10);
+	}
+
+	@Test
+	public void testLookupBudget() {
+		final Environment e=Environment.EMPTY.define(Symbol.intern("x"), Constant.create(1L));
+		final Expression x=Lookup.create("x");
+		assertBudget("lookup", LOOKUP_BUDGET, new Runnable() {
+			@Override
+			public void run() {
+				x.eval(e);
+			}
+		}, 10000);
+	}
+
+	@Test
+	public void testDefineBudget() {
+		Environment e=Environment.EMPTY;
+		for (int i=0; i<100; i++) {
+			e=e.define(Symbol.intern("x"+i), Constant.create(i));
+		}
+		final Environment env=e;
+		final Symbol s=Symbol.intern("x50");
+		final Expression value=Constant.create(1L);
+		assertBudget("define", DEFINE_BUDGET, new Runnable() {
+			@Override
+			public void run() {
+				env.define(s, value);
+			}
+		}, 1000);
+	}
+
+	@Test
+	public void testCompiledCallBudget() {
+		final KFn f=(KFn) Compiler.compile(optimised("(fn [a b] (clojure.core/+ a b))")).invoke();
+		final Long one=1L;
+		assertBudget("compiled call", COMPILED_CALL_BUDGET, new Runnable() {
+			@Override
+			public void run() {
+				f.invoke(one, one);
+			}
+		}, 10000);
+	}
+}
@@ -1,16 +1,46 @@
 package kiss.test;
 
 import static org.junit.Assert.*;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.ObjectName;
+
+import kiss.lang.Analyser;
+import kiss.lang.Compiler;
 import kiss.lang.Environment;
+import kiss.lang.EnvironmentDiff;
+import kiss.lang.EnvironmentManager;
 import kiss.lang.Expression;
+import kiss.lang.HotReloader;
+import kiss.lang.KFn;
+import kiss.lang.Loader;
 import kiss.lang.Result;
+import kiss.lang.expression.Application;
 import kiss.lang.expression.Constant;
 import kiss.lang.expression.Def;
 import kiss.lang.expression.Lookup;
 import kiss.lang.impl.EvalResult;
+import kiss.lang.impl.Events;
+import kiss.lang.impl.KissException;
+import kiss.lang.impl.KissUtils;
+import kiss.lang.impl.Metrics;
+import kiss.lang.type.JavaType;
 
 import org.junit.Test;
 
+import clojure.lang.AFn;
+import clojure.lang.IFn;
+import clojure.lang.PersistentHashSet;
 import clojure.lang.Symbol;
 
 public class EnvironmentTests {
@@ -38,4 +68,401 @@ public class EnvironmentTests {
 		e=Def.create(Symbol.intern("bar"),Lookup.create("baz")).interpret(e);
 		e.validate();
 	}
+	
+	@Test public void testDependents() {
+		Symbol foo=Symbol.intern("foo");
+		Symbol bar=Symbol.intern("bar");
+		Environment e=Environment.EMPTY;
+		e=e.define(bar, Lookup.create(foo));
+		assertFalse(e.getMapping(bar).isBound());
+		
+		e=e.define(foo, Constant.create(1));
+		assertEquals(1,e.get(bar));
+		
+		e=e.define(foo, Constant.create(2));
+		assertEquals(2,e.get(bar));
+		e.validate();
+	}
+	
+	@Test public void testTypePropagation() {
+		Symbol foo=Symbol.intern("foo");
+		Symbol bar=Symbol.intern("bar");
+		Environment e=Environment.EMPTY;
+		e=e.define(foo, Constant.create("baz"));
+		e=e.define(bar, Lookup.create(foo));
+		
+		assertTrue(JavaType.STRING.contains(e.getMapping(bar).getType()));
+		assertTrue(e.getTypes(PersistentHashSet.create(foo)).containsKey(foo));
+	}
+	
+	@Test public void testLinkedRedefinition() {
+		Symbol foo=Symbol.intern("foo");
+		Environment e=Environment.EMPTY;
+		e=e.define(foo, Constant.create(1L));
+		
+		KFn fn=Compiler.compile(e, Analyser.analyse(e, KissUtils.read("(clojure.core/+ foo 1)")));
+		assertEquals(2L,fn.invoke());
+		
+		// redefinition is seen by linked code
+		Environment e2=e.define(foo, Constant.create(10L));
+		assertEquals(11L,fn.invoke());
+		
+		// capturing a local with the same name in a closure does not affect linked code
+		Analyser.analyse(e2, KissUtils.read("((fn [foo] (fn [] foo)) 5)")).interpret(e2);
+		assertEquals(11L,fn.invoke());
+		
+		// defining from a superseded environment starts a new lineage
+		Environment e3=e.define(foo, Constant.create(100L));
+		assertEquals(11L,fn.invoke());
+		assertEquals(101L,Compiler.compile(e3, Analyser.analyse(e3, KissUtils.read("(clojure.core/+ foo 1)"))).invoke());
+		assertEquals(10L,e2.get(foo));
+		
+		// linked globals may be redefined to values of another class, or to nil
+		KFn get=Compiler.compile(e2, Analyser.analyse(e2, KissUtils.read("foo")));
+		KFn test=Compiler.compile(e2, Analyser.analyse(e2, KissUtils.read("(if (instance? Long foo) (clojure.core/inc foo) foo)")));
+		assertEquals(10L,get.invoke());
+		assertEquals(11L,test.invoke());
+		Environment e4=e2.define(foo, Constant.create("x"));
+		assertEquals("x",get.invoke());
+		assertEquals("x",test.invoke());
+		e4.define(foo, Constant.create(null));
+		assertNull(get.invoke());
+		assertNull(test.invoke());
+	}
+	
+	@Test public void testEvents() {
+		final ArrayList<String> log=new ArrayList<String>();
+		Events.Sink sink=new Events.Sink() {
+			@Override public Object beginAnalyse() {return "analyse";}
+			@Override public void endAnalyse(Object event, int size, int macroExpansions) {log.add(event+" "+size);}
+			@Override public Object beginCompile() {return "compile";}
+			@Override public void endCompile(Object event, int size) {log.add(event+" "+size);}
+			@Override public Object beginPass() {return null;} // declined
+			@Override public void endPass(Object event, String pass, int sizeIn, int sizeOut, boolean changed) {log.add("pass");}
+			@Override public Object beginDefine() {return "define";}
+			@Override public void endDefine(Object event, Symbol sym, int dependents) {log.add(event+" "+sym+" "+dependents);}
+			@Override public Object beginMerge() {return "merge";}
+			@Override public void endMerge(Object event, int symbols) {log.add(event+" "+symbols);}
+			@Override public void cache(String cache, boolean hit) {log.add(cache);}
+		};
+		
+		Symbol foo=Symbol.intern("foo");
+		Symbol bar=Symbol.intern("bar");
+		Events.Sink old=Events.getSink();
+		Events.setSink(sink);
+		try {
+			Expression x=Analyser.analyse(KissUtils.read("(clojure.core/+ foo 1)"));
+			Environment e=Environment.EMPTY.define(foo, Constant.create(1L));
+			e=e.define(bar, x);
+			e=e.define(foo, Constant.create(2L));
+			Environment.EMPTY.merge(e);
+			Compiler.compile(e, x);
+		} finally {
+			Events.setSink(old);
+		}
+		
+		assertEquals("analyse 4",log.get(0)); // nested analysis is not reported
+		assertEquals("define foo 0",log.get(1));
+		assertEquals("define bar 0",log.get(2));
+		assertEquals("define foo 1",log.get(3)); // bar is recomputed
+		assertTrue(log.contains("merge 2"));
+		assertEquals("compile 4",log.get(log.size()-1));
+		assertFalse(log.contains("pass"));
+	}
+	
+	@Test public void testMetrics() throws Exception {
+		Symbol foo=Symbol.intern("foo");
+		Symbol bar=Symbol.intern("bar");
+		Metrics.register();
+		try {
+			Metrics m=Metrics.INSTANCE;
+			m.reset();
+			Environment e=Environment.EMPTY.define(bar, Lookup.create(foo));
+			assertEquals(1,m.getUnboundMappingCount());
+			e=e.define(foo, Constant.create(1L));
+			assertEquals(2L,m.getEnvironmentsDefined());
+			assertEquals(2,m.getSymbolCount());
+			assertEquals(1,m.getDependencyEdgeCount());
+			assertEquals(0,m.getUnboundMappingCount());
+			assertEquals(2L,m.getRecomputeCount());
+			assertTrue(m.getRecomputeLatencyP50Micros()<=m.getRecomputeLatencyMaxMicros());
+			
+			Compiler.compile(e, Analyser.analyse(e, KissUtils.read("(clojure.core/+ foo 1)"))).invoke();
+			assertEquals(1L,m.getCompiledInvocations());
+			
+			// functions created by compiled code are compiled too
+			long interpreted=m.getInterpretedInvocations();
+			IFn inc=(IFn) Compiler.compile(e, Analyser.analyse(e, KissUtils.read("(fn [x] (clojure.core/+ x foo))"))).invoke();
+			assertEquals(3L,inc.invoke(2L));
+			assertEquals(3L,m.getCompiledInvocations());
+			assertEquals(interpreted,m.getInterpretedInvocations());
+			
+			Object count=ManagementFactory.getPlatformMBeanServer().getAttribute(new ObjectName(Metrics.OBJECT_NAME), "EnvironmentsDefined");
+			assertEquals(2L,count);
+		} finally {
+			Metrics.unregister();
+		}
+	}
+	
+	@Test public void testLazy() throws Exception {
+		final AtomicInteger calls=new AtomicInteger();
+		AFn counter=new AFn() {
+			@Override
+			public Object invoke() {
+				calls.incrementAndGet();
+				return new Object();
+			}
+		};
+		Symbol foo=Symbol.intern("foo");
+		Symbol bar=Symbol.intern("bar");
+		Environment e=Environment.EMPTY.withLazy(true).define(foo, Application.create(Constant.create(counter)));
+		e=e.define(bar, Lookup.create(foo));
+		assertEquals(0,calls.get());
+		assertFalse(e.getMapping(bar).isRealised());
+		
+		Object v=e.get(bar);
+		assertEquals(1,calls.get());
+		assertSame(v,e.get(foo));
+		assertEquals(1,calls.get());
+		
+		assertTrue(e.isLazy());
+		assertFalse(Environment.EMPTY.isLazy());
+		
+		// concurrent first access evaluates the thunk once
+		final Environment e2=e.define(foo, Application.create(Constant.create(counter)));
+		final Symbol sym=foo;
+		final Object[] seen=new Object[8];
+		Thread[] ts=new Thread[seen.length];
+		for (int i=0; i<ts.length; i++) {
+			final int ix=i;
+			ts[i]=new Thread(new Runnable() {
+				@Override
+				public void run() {
+					seen[ix]=e2.get(sym);
+				}
+			});
+			ts[i].start();
+		}
+		for (Thread t: ts) t.join();
+		for (Object o: seen) assertSame(seen[0],o);
+		assertEquals(2,calls.get());
+	}
+	
+	@Test public void testManager() throws Exception {
+		final EnvironmentManager em=EnvironmentManager.create();
+		em.define(Symbol.intern("base"), (Object)Long.valueOf(1));
+		Thread[] ts=new Thread[4];
+		for (int i=0; i<ts.length; i++) {
+			final int ix=i;
+			ts[i]=new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j=0; j<50; j++) {
+						em.define(Symbol.intern("x"+ix+"_"+j), KissUtils.read("(clojure.core/+ base "+j+")"));
+					}
+				}
+			});
+			ts[i].start();
+		}
+		for (Thread t: ts) t.join();
+		
+		Environment e=em.getEnvironment();
+		assertEquals(1+4*50,e.count());
+		assertEquals(4L,e.get(Symbol.intern("x2_3")));
+		assertEquals(1+4*50,em.getCommits());
+		assertTrue(em.getReusedMappings()<=em.getConflicts());
+		
+		// redefinition updates dependents
+		em.evaluate(KissUtils.read("(def base 10)"));
+		assertEquals(13L,em.getEnvironment().get(Symbol.intern("x2_3")));
+	}
+	
+	@Test public void testManagerLinking() throws Exception {
+		final EnvironmentManager em=EnvironmentManager.create();
+		final Symbol a=Symbol.intern("a");
+		em.define(a, Constant.create(0L));
+		Environment start=em.getEnvironment();
+		final KFn f=(KFn) Compiler.compile(start, Analyser.analyse(KissUtils.read("(fn [] a)"))).invoke();
+		assertEquals(0L,f.invoke());
+		
+		// writers race to redefine a, while compiled code reads it
+		Thread[] ts=new Thread[4];
+		for (int i=0; i<ts.length; i++) {
+			final long base=i*1000;
+			ts[i]=new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (long j=1; j<=50; j++) {
+						em.define(a, Constant.create(base+j));
+						f.invoke();
+						em.evaluate(KissUtils.read("(def b"+base+" "+j+")"));
+					}
+				}
+			});
+			ts[i].start();
+		}
+		for (Thread t: ts) t.join();
+		
+		Environment e=em.getEnvironment();
+		assertSame(start.getLinker(),e.getLinker());
+		assertSame(e,e.getLinker().getHead());
+		assertEquals(e.get(a),f.invoke());
+		em.define(a, Constant.create(42L));
+		assertEquals(42L,f.invoke());
+		
+		// defining outside the manager starts a new lineage
+		Environment outside=em.getEnvironment().define(a, Constant.create(7L));
+		assertNotSame(e.getLinker(),outside.getLinker());
+		assertEquals(42L,f.invoke());
+	}
+	
+	@Test public void testStructuralMerge() {
+		Symbol a=Symbol.intern("a");
+		Symbol b=Symbol.intern("b");
+		Symbol c=Symbol.intern("c");
+		Environment e1=Environment.EMPTY.define(a, Constant.create(1L));
+		e1=e1.define(c, Analyser.analyse(KissUtils.read("(clojure.core/+ a 10)")));
+		Environment e2=Environment.EMPTY.define(b, Analyser.analyse(KissUtils.read("(clojure.core/* a 2)")));
+		e2=e2.define(a, Constant.create(5L));
+		
+		Environment m=e1.merge(e2);
+		m.validate();
+		assertEquals(5L,m.get(a));
+		assertEquals(10L,m.get(b));
+		assertEquals(15L,m.get(c));
+		assertSame(e2.getMapping(b),m.getMapping(b)); // inputs unchanged, so reused
+		
+		// merging an unrelated environment reuses all existing Mappings
+		Environment e3=Environment.EMPTY.define(Symbol.intern("d"), Constant.create(2L));
+		Environment m2=m.merge(e3);
+		m2.validate();
+		assertSame(m.getMapping(c),m2.getMapping(c));
+		assertSame(m2,m2.merge(m));
+	}
+	
+	@Test public void testDiff() {
+		Symbol a=Symbol.intern("a");
+		Symbol b=Symbol.intern("b");
+		Environment e=Environment.EMPTY;
+		for (int i=0; i<100; i++) {
+			e=e.define(Symbol.intern("x"+i), Constant.create(i));
+		}
+		e=e.define(a, Constant.create(1L));
+		e=e.define(b, Analyser.analyse(KissUtils.read("(clojure.core/+ a 1)")));
+		
+		Environment e2=e.define(a, Constant.create(2L));
+		e2=e2.define(Symbol.intern("c"), Constant.create(3L));
+		e2=(Environment) e2.without(Symbol.intern("x7"));
+		
+		EnvironmentDiff d=e.diff(e2);
+		assertEquals(PersistentHashSet.create(Symbol.intern("c")),d.getAdded());
+		assertEquals(PersistentHashSet.create(Symbol.intern("x7")),d.getRemoved());
+		assertEquals(PersistentHashSet.create(a),d.getRedefined());
+		assertEquals(PersistentHashSet.create(b),d.getRecomputed());
+		assertFalse(d.isChanged(Symbol.intern("x8")));
+		assertTrue(e2.diff(e2).isEmpty());
+	}
+	
+	@Test public void testHotReload() throws Exception {
+		Path f=Files.createTempFile("kiss", ".kiss");
+		HotReloader hr=HotReloader.create(EnvironmentManager.create());
+		try {
+			write(f,"(def a 1)\n(def b (clojure.core/+ a 1))\n(def c 10)\n");
+			hr.watch(f);
+			assertEquals(3,hr.getEvaluated());
+			
+			// only the changed definition is evaluated, dependents are recomputed
+			write(f,"(def a 5)\n(def b (clojure.core/+ a 1))\n(def c 10)\n");
+			assertEquals(1,hr.reload(f));
+			Environment e=hr.getManager().getEnvironment();
+			assertEquals(6L,e.get(Symbol.intern("b")));
+			assertEquals(0,hr.reload(f));
+			
+			// changes are picked up by the watch thread
+			hr.start();
+			write(f,"(def a 7)\n(def b (clojure.core/+ a 1))\n(def c 10)\n");
+			Symbol b=Symbol.intern("b");
+			long deadline=System.currentTimeMillis()+10000;
+			while (!Long.valueOf(8L).equals(hr.getManager().getEnvironment().get(b))) {
+				assertNull(hr.getLastError());
+				if (System.currentTimeMillis()>deadline) fail("File change was not reloaded");
+				Thread.sleep(10);
+			}
+		} finally {
+			hr.close();
+			Files.delete(f);
+		}
+	}
+	
+	private static void write(Path f, String s) throws IOException {
+		Files.write(f, s.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	@Test public void testLoader() {
+		StringBuilder sb=new StringBuilder("(def x0 0)\n");
+		for (int i=1; i<200; i++) {
+			sb.append("(def x"+i+" (clojure.core/inc x"+(i-1)+"))\n");
+		}
+		Loader loader=Loader.create(2, 4);
+		Environment e=loader.load(Environment.EMPTY, new StringReader(sb.toString()));
+		assertEquals(200,e.count());
+		assertEquals(199L,e.get(Symbol.intern("x199")));
+		
+		try {
+			loader.load(e, new StringReader("(def y 1)\n(def)\n(def z 2)"));
+			fail("Bad def should fail");
+		} catch (KissException ex) {
+			// OK
+		}
+		
+		// errors thrown while reading are reported rather than stalling the load
+		FilterReader failing=new FilterReader(new StringReader("(def y 1)\n(def z")) {
+			@Override
+			public int read(char[] buf, int off, int len) throws IOException {
+				int n=super.read(buf, off, len);
+				if (n<0) throw new StackOverflowError();
+				return n;
+			}
+		};
+		try {
+			loader.load(e, failing);
+			fail("Reader error should fail");
+		} catch (KissException ex) {
+			assertTrue(ex.getCause() instanceof StackOverflowError);
+		}
+		
+		// a failed load stops reading before it returns
+		final AtomicInteger reads=new AtomicInteger();
+		Reader slow=new Reader() {
+			@Override
+			public int read(char[] buf, int off, int len) {
+				long end=System.nanoTime()+2000000L; // ignores interrupts, like a blocking read
+				while (System.nanoTime()<end) {
+					// spin
+				}
+				String s="(clojure.core// 1 0)\n";
+				int i=reads.getAndIncrement();
+				buf[off]=(i<s.length())?s.charAt(i):' ';
+				return 1;
+			}
+
+			@Override
+			public void close() {
+				// nothing to close
+			}
+		};
+		try {
+			Loader.create(1, 1024).load(e, slow);
+			fail("Division should fail");
+		} catch (KissException ex) {
+			// OK
+		}
+		int count=reads.get();
+		try {
+			Thread.sleep(100);
+		} catch (InterruptedException ex) {
+			throw new Error(ex);
+		}
+		assertEquals(count,reads.get());
+	}
 }
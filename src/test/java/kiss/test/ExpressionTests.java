@@ -1,30 +1,70 @@
 package kiss.test;
 
 import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinWorkerThread;
+
 import kiss.lang.Analyser;
 import kiss.lang.Environment;
 import kiss.lang.Expression;
+import kiss.lang.Compiler;
+import kiss.lang.KFn;
 import kiss.lang.Type;
 import kiss.lang.expression.Application;
+import kiss.lang.expression.Cast;
 import kiss.lang.expression.Constant;
 import kiss.lang.expression.Def;
 import kiss.lang.expression.Do;
+import kiss.lang.expression.FieldLookup;
 import kiss.lang.expression.If;
+import kiss.lang.expression.InstanceOf;
+import kiss.lang.expression.KeywordLookup;
 import kiss.lang.expression.Lambda;
 import kiss.lang.expression.Let;
 import kiss.lang.expression.Lookup;
 import kiss.lang.expression.Loop;
+import kiss.lang.expression.MethodCall;
+import kiss.lang.expression.SlotLookup;
+import kiss.lang.impl.Inliner;
+import kiss.lang.impl.Interop;
 import kiss.lang.impl.KissException;
 import kiss.lang.impl.KissUtils;
+import kiss.lang.impl.Parallel;
+import kiss.lang.impl.Profiler;
+import kiss.lang.impl.ShapedMap;
+import kiss.lang.impl.Specialiser;
+import kiss.lang.pass.CSEPass;
+import kiss.lang.pass.InlinePass;
+import kiss.lang.pass.LICMPass;
+import kiss.lang.pass.PassManager;
+import kiss.lang.pass.PassStats;
+import kiss.lang.pass.Purity;
+import kiss.lang.pass.SimplifyPass;
 import kiss.lang.type.Anything;
 import kiss.lang.type.FunctionType;
+import kiss.lang.type.JavaType;
+import kiss.lang.type.Maybe;
+import kiss.lang.type.ShapeType;
 
 import org.junit.Test;
 
+import clojure.lang.AFn;
+import clojure.lang.IEditableCollection;
 import clojure.lang.IFn;
+import clojure.lang.IObj;
+import clojure.lang.IPersistentMap;
 import clojure.lang.IPersistentSet;
 import clojure.lang.ISeq;
+import clojure.lang.ITransientMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentHashMap;
+import clojure.lang.PersistentArrayMap;
 import clojure.lang.PersistentHashSet;
+import clojure.lang.PersistentVector;
 import clojure.lang.Symbol;
 
 public class ExpressionTests {
@@ -125,6 +165,196 @@ public class ExpressionTests {
 	public void testRecur() {
 		assertEquals(1L, KissUtils.eval("(loop [] 1)"));
 		assertEquals(4L, KissUtils.eval("(loop [i 1] (if (clojure.core/= i 3) 4 (recur (clojure.core/inc i))))"));
+		assertEquals(6L, KissUtils.eval("(loop [i 0 acc 0] (if (clojure.core/= i 3) acc (recur (clojure.core/inc i) (clojure.core/+ acc (clojure.core/* 1 2)))))"));
+	}
+	
+	@Test
+	public void testLiterals() {
+		Expression v=Analyser.analyse(KissUtils.read("[1 (clojure.core/inc 1) 3]"));
+		assertEquals(PersistentVector.create(1L,2L,3L),v.eval());
+		
+		Expression m=Analyser.analyse(KissUtils.read("{1 :a 2 [2 3]}"));
+		Expression opt=m.optimise();
+		assertTrue(opt.isConstant());
+		assertEquals(m.eval(),opt.eval());
+		assertTrue(opt.eval() instanceof PersistentArrayMap);
+		
+		// literals depending on runtime values are not folded
+		assertFalse(Analyser.analyse(KissUtils.read("[1 x]")).optimise().isConstant());
+	}
+	
+	@Test
+	public void testShapedMaps() {
+		Expression m=Analyser.analyse(KissUtils.read("{:a 1 :b x}"));
+		assertTrue(m.getType() instanceof ShapeType);
+		Object v=m.eval(Environment.EMPTY.define(Symbol.intern("x"), Constant.create(2L)));
+		assertTrue(v instanceof ShapedMap);
+		assertEquals(PersistentArrayMap.EMPTY.assoc(Keyword.intern(null,"a"), 1L).assoc(Keyword.intern(null,"b"), 2L),v);
+		
+		// assoc within the shape keeps the shape, otherwise falls back to a generic map
+		IPersistentMap sm=(IPersistentMap)v;
+		assertTrue(sm.assoc(Keyword.intern(null,"a"), 3L) instanceof ShapedMap);
+		assertFalse(sm.assoc(Keyword.intern(null,"c"), 3L) instanceof ShapedMap);
+		assertEquals(3L,sm.assoc(Keyword.intern(null,"c"), 3L).valAt(Keyword.intern(null,"c")));
+		
+		// shaped maps support transients and keep metadata when emptied
+		ITransientMap tm=(ITransientMap)((IEditableCollection)sm).asTransient();
+		tm=tm.assoc(Keyword.intern(null,"c"), 3L);
+		assertEquals(3,tm.persistent().count());
+		IPersistentMap meta=PersistentArrayMap.EMPTY.assoc(Keyword.intern(null,"tag"), 1L);
+		assertEquals(meta,((IObj)((ShapedMap)sm).withMeta(meta).empty()).meta());
+		
+		// empty literals are not shaped
+		assertFalse(Analyser.analyse(KissUtils.read("{}")).getType() instanceof ShapeType);
+		assertFalse(KissUtils.eval("{}") instanceof ShapedMap);
+		
+		// keyword lookups on a known shape become slot reads
+		Expression x=Analyser.analyse(KissUtils.read("(let [m {:a 1 :b y}] (:b m))")).optimise();
+		assertTrue(x.getChildren()[1] instanceof SlotLookup);
+		assertEquals(5L,x.eval(Environment.EMPTY.define(Symbol.intern("y"), Constant.create(5L))));
+	}
+	
+	@Test
+	public void testKeywordLookup() {
+		Expression x=Analyser.analyse(KissUtils.read("(:b m)")).optimise();
+		assertTrue(x instanceof KeywordLookup);
+		Keyword a=Keyword.intern(null,"a");
+		Keyword b=Keyword.intern(null,"b");
+		
+		// works for shaped maps of several shapes, and for generic maps
+		Object m1=KissUtils.eval("{:a 1 :b 2}");
+		Object m2=KissUtils.eval("{:b 3}");
+		IPersistentMap m3=PersistentHashMap.EMPTY.assoc(b, 4L).assoc(a, 1L);
+		assertEquals(2L,x.eval(Environment.EMPTY.define(Symbol.intern("m"), Constant.create(m1))));
+		assertEquals(3L,x.eval(Environment.EMPTY.define(Symbol.intern("m"), Constant.create(m2))));
+		assertEquals(4L,x.eval(Environment.EMPTY.define(Symbol.intern("m"), Constant.create(m3))));
+		assertEquals(null,x.eval(Environment.EMPTY.define(Symbol.intern("m"), Constant.create(null))));
+		
+		assertEquals(7L,KissUtils.eval("(:c {:a 1} 7)"));
+	}
+	
+	@Test
+	public void testParallel() {
+		Expression v=Analyser.analyse(KissUtils.read("[(clojure.core/+ 1 2) (clojure.core/* 3 4) 5]"));
+		Expression a=Analyser.analyse(KissUtils.read("(clojure.core/+ (clojure.core/* 2 3) (clojure.core/* 4 5))"));
+		Expression m=Analyser.analyse(KissUtils.read("{:a (clojure.core/inc 1) :b (clojure.core/dec 1)}"));
+		Expression e=Analyser.analyse(KissUtils.read("[(clojure.core/quot 1 0) (clojure.core/nth [] 5)]"));
+		int threshold=Parallel.getForkThreshold();
+		Parallel.setEnabled(true);
+		Parallel.setForkThreshold(1);
+		try {
+			assertEquals(KissUtils.eval("[3 12 5]"),v.eval());
+			assertEquals(26L,a.eval());
+			assertEquals(KissUtils.eval("{:a 2 :b 0}"),m.eval());
+			
+			// the first failure by position is reported
+			try {
+				e.eval();
+				fail();
+			} catch (ArithmeticException ex) {
+				/* OK */
+			}
+		} finally {
+			Parallel.setEnabled(false);
+			Parallel.setForkThreshold(threshold);
+		}
+		
+		// at the default threshold, calls are forked once profiling shows they are expensive
+		final Set<Thread> threads=Collections.synchronizedSet(new HashSet<Thread>());
+		KFn slow=new KFn() {
+			@Override
+			public Object invoke() {
+				threads.add(Thread.currentThread());
+				long end=System.nanoTime()+2000000;
+				while (System.nanoTime()<end) {
+					// busy wait
+				}
+				return 1L;
+			}
+		};
+		Expression calls=Profiler.analyse(Environment.EMPTY, KissUtils.read("[(f) (f)]"))
+				.replace(PersistentHashMap.EMPTY.assoc(Symbol.intern("f"), Constant.create(slow)));
+		Parallel.setEnabled(true);
+		try {
+			assertEquals(KissUtils.eval("[1 1]"),calls.eval());
+			assertFalse(containsPoolThread(threads));
+			Profiler.setEnabled(true);
+			try {
+				calls.eval();
+			} finally {
+				Profiler.setEnabled(false);
+			}
+			threads.clear();
+			assertEquals(KissUtils.eval("[1 1]"),calls.eval());
+			assertTrue(containsPoolThread(threads));
+		} finally {
+			Parallel.setEnabled(false);
+			Profiler.reset();
+		}
+	}
+	
+	private static boolean containsPoolThread(Set<Thread> threads) {
+		synchronized (threads) {
+			for (Thread t: threads) {
+				if (t instanceof ForkJoinWorkerThread) return true;
+			}
+		}
+		return false;
+	}
+	
+	@Test
+	public void testProfiler() throws Exception {
+		Expression x=Profiler.analyse(Environment.EMPTY, KissUtils.read(
+				"(loop [i 0 acc 0] (if (clojure.core/< i 100) (recur (clojure.core/inc i) (clojure.core/+ acc i)) acc))"));
+		
+		// instrumented code runs normally while disabled, and records nothing
+		assertEquals(4950L,x.eval());
+		Profiler.setEnabled(true);
+		try {
+			assertEquals(4950L,x.eval());
+		} finally {
+			Profiler.setEnabled(false);
+		}
+		
+		List<Profiler.Site> sites=Profiler.getSites(Profiler.SortKey.COUNT);
+		Profiler.Site top=sites.get(0);
+		assertTrue(top.getCount()>=100);
+		assertTrue(top.getTotalNanos()>=top.getSelfNanos());
+		assertTrue(Profiler.report(Profiler.SortKey.SELF, 10).contains("(clojure.core/inc i)"));
+		
+		StringBuilder sb=new StringBuilder();
+		Profiler.writeFlameGraph(sb);
+		for (String line: sb.toString().split("\n")) {
+			if (line.length()>0) assertTrue(line.matches(".* \\d+"));
+		}
+		Profiler.reset();
+		assertEquals(0L,top.getCount());
+		assertTrue(Profiler.getSites(Profiler.SortKey.COUNT).isEmpty());
+		
+		// profiled code is still optimised
+		Expression y=Profiler.analyse(Environment.EMPTY, KissUtils.read(
+				"[(clojure.core/+ a 1) (clojure.core/+ a 1)]")).optimise();
+		assertTrue(Purity.isSafe(y));
+		Expression cse=CSEPass.INSTANCE.apply(y);
+		assertTrue(cse.getSize()<y.getSize());
+		assertEquals(KissUtils.read("[3 3]"),cse.eval(Environment.EMPTY.define(Symbol.intern("a"), Constant.create(2L))));
+		Expression z=Profiler.analyse(Environment.EMPTY, KissUtils.read("((fn [a] (clojure.core/inc a)) 1)"));
+		assertNotNull(Inliner.inline(z.getChildren()[0].getChildren()[0], new Expression[] {Constant.create(1L)}));
+		Expression refined=Profiler.analyse(Environment.EMPTY, KissUtils.read("(if (instance? Long x) x \"foo\")")).optimise();
+		assertTrue(refined.getType().checkInstance(1L));
+		assertFalse(refined.getType().checkInstance(1.0));
+	}
+	
+	@Test
+	public void testTailCalls() {
+		// deep enough to overflow the stack without tail calls
+		assertEquals(Boolean.FALSE, KissUtils.eval(
+				"(let [ev (fn [ev od n] (if (clojure.core/= n 0) true (od ev od (clojure.core/dec n))))] "
+				+ "(let [od (fn [ev od n] (if (clojure.core/= n 0) false (ev ev od (clojure.core/dec n))))] "
+				+ "(ev ev od 100001)))"));
+		
+		// calls that are not in tail position still return normally
+		assertEquals(3L, KissUtils.eval("(let [f (fn [x] (clojure.core/inc x))] (clojure.core/+ (f 1) 1))"));
 	}
 	
 	@Test
@@ -133,6 +363,205 @@ public class ExpressionTests {
 		assertEquals("foo", KissUtils.eval("(if (instance? Long 3) \"foo\" \"bar\")"));
 	}
 	
+	@Test
+	public void testTypeRefinement() {
+		Symbol x=Symbol.intern("x");
+		Expression lx=Lookup.create(x);
+		
+		// a refined lookup makes the cast redundant
+		IPersistentMap types=PersistentHashMap.EMPTY.assoc(x, JavaType.create(Long.class));
+		Expression cast=Cast.create(Long.class, lx);
+		assertFalse(cast.refine(types).optimise() instanceof Cast);
+		
+		// instance? narrows the type within the branch
+		Expression e=If.create(InstanceOf.create(JavaType.create(Long.class), lx), lx, Constant.create("foo"));
+		Type t=e.optimise().getType();
+		assertTrue(t.checkInstance(1L));
+		assertFalse(t.checkInstance(1.0));
+		
+		// truthiness test narrows a Maybe type
+		Expression test=If.create(lx, lx, Constant.create(2L));
+		IPersistentMap maybeTypes=PersistentHashMap.EMPTY.assoc(x, Maybe.create(JavaType.create(Long.class)));
+		assertFalse(test.refine(maybeTypes).optimise().getType().checkInstance(null));
+		Lambda fn=Lambda.create(test, new Symbol[] {x}, new Type[] {Maybe.create(JavaType.create(Long.class))});
+		Lambda opt=fn.optimise();
+		assertEquals(3L,((IFn)opt.eval()).invoke(3L));
+		assertEquals(2L,((IFn)opt.eval()).invoke(null));
+		
+		// declared parameter types are unchecked, so casts on parameters are kept
+		Lambda checked=Lambda.create(Cast.create(Long.class, lx), new Symbol[] {x}, new Type[] {JavaType.create(Long.class)}).optimise();
+		assertEquals(3L,((IFn)checked.eval()).invoke(3L));
+		try {
+			((IFn)checked.eval()).invoke("foo");
+			fail("Cast of a wrongly typed argument should fail");
+		} catch (KissException ex) {
+			// OK
+		}
+	}
+	
+	@Test
+	public void testInterop() {
+		assertEquals(3, KissUtils.eval("(.length \"foo\")"));
+		assertEquals("FOO", KissUtils.eval("(. \"foo\" toUpperCase)"));
+		assertEquals(3L, KissUtils.eval("(Math/abs -3)"));
+		assertEquals(Math.PI, KissUtils.eval("Math/PI"));
+		assertEquals(2, FieldLookup.create(Constant.create(new java.awt.Point(2,3)), "x").eval());
+		
+		// receiver type known, so the call is linked statically with a precise return type
+		Expression mc=MethodCall.create(Constant.create("foo"), "length");
+		assertTrue(mc.getType().checkInstance(3));
+		assertFalse(mc.getType().checkInstance(null));
+		
+		// polymorphic call site
+		IFn fn=(IFn) KissUtils.eval("(fn [x] (.toString x))");
+		assertEquals("1", fn.invoke(1L));
+		assertEquals("bar", fn.invoke("bar"));
+		assertEquals("2", fn.invoke(2L));
+		
+		// class resolution is cached, and does not run static initialisers
+		assertSame(String.class, Interop.maybeClass("String"));
+		assertNull(Interop.maybeClass("clojure.core"));
+		assertNull(Interop.maybeClass("clojure.core"));
+		assertSame(Uninitialised.class, Interop.maybeClass(Uninitialised.class.getName()));
+		assertFalse(initialised);
+	}
+	
+	private static volatile boolean initialised=false;
+	
+	public static class Uninitialised {
+		static {
+			initialised=true;
+		}
+	}
+	
+	@Test
+	public void testInlining() {
+		Expression call=Analyser.analyse(KissUtils.read("((fn [x] (clojure.core/+ x 1)) y)"));
+		Expression opt=call.optimise();
+		assertTrue(opt instanceof Let);
+		assertEquals(3L,opt.eval(Environment.EMPTY.define(Symbol.intern("y"), Constant.create(2L))));
+		
+		Expression constCall=Analyser.analyse(KissUtils.read("((fn [x] (clojure.core/+ x 1)) 2)"));
+		assertTrue(constCall.optimise().getSize()<constCall.getSize());
+		assertEquals(3L,constCall.optimise().eval());
+		
+		// functions that exit with return or recur are not inlined
+		assertTrue(Analyser.analyse(KissUtils.read("((fn [x] (return x)) y)")).optimise() instanceof Application);
+		
+		// depth budget of zero disables inlining
+		int oldDepth=Inliner.getMaxDepth();
+		Inliner.setMaxDepth(0);
+		try {
+			assertTrue(call.optimise() instanceof Application);
+		} finally {
+			Inliner.setMaxDepth(oldDepth);
+		}
+	}
+	
+	@Test
+	public void testSpecialisation() {
+		KFn fn=(KFn) KissUtils.eval("(fn [a b] (if a (clojure.core/+ b 1) (clojure.core/* b 2)))");
+		KFn residual=Specialiser.specialise(fn, Boolean.FALSE, Specialiser.UNKNOWN);
+		assertEquals(10L,residual.invoke(5L));
+		assertSame(residual,Specialiser.specialise(fn, Boolean.FALSE, Specialiser.UNKNOWN));
+		
+		// call sites with constant arguments are rewritten to call the residual function
+		Expression call=Application.create(Constant.create(fn), Constant.FALSE, Lookup.create("y"));
+		int oldDepth=Inliner.getMaxDepth();
+		Inliner.setMaxDepth(0);
+		try {
+			Expression opt=call.optimise();
+			assertEquals(1,opt.getChildren().length-1);
+			assertSame(residual,((Constant<?>)opt.getChildren()[0]).getValue());
+		} finally {
+			Inliner.setMaxDepth(oldDepth);
+		}
+	}
+	
+	@Test
+	public void testPassManager() {
+		PassManager pm=PassManager.create(SimplifyPass.INSTANCE,InlinePass.INSTANCE);
+		Expression x=Analyser.analyse(KissUtils.read("((fn [x] (clojure.core/+ x 1)) y)"));
+		Expression opt=pm.run(x);
+		assertTrue(opt instanceof Let);
+		
+		// fixpoint reached, so the final iteration makes no changes
+		PassStats inline=pm.getStats("inline");
+		assertEquals(1,inline.getRewrites());
+		assertTrue(inline.getRuns()>inline.getRewrites());
+		assertTrue(inline.getNodesIn()>0);
+		assertSame(opt,pm.run(opt));
+		
+		pm.resetStats();
+		assertEquals(0,pm.getStats("simplify").getRuns());
+		
+		// the inline pass leaves simplification to the simplify pass
+		Expression fold=Analyser.analyse(KissUtils.read("(if true (clojure.core/+ 1 2) y)"));
+		assertSame(fold,InlinePass.INSTANCE.apply(fold));
+		Expression inlined=InlinePass.INSTANCE.apply(x);
+		assertTrue(inlined instanceof Let);
+	}
+	
+	@Test
+	public void testCSE() {
+		Expression x=Analyser.analyse(KissUtils.read("(let [y 3] (clojure.core/+ (clojure.core/inc y) (clojure.core/inc y)))"));
+		Expression opt=CSEPass.INSTANCE.apply(x);
+		assertTrue(opt.getChildren()[1] instanceof Let);
+		assertEquals(8L,((Number)opt.eval()).longValue());
+		assertSame(opt,CSEPass.INSTANCE.apply(opt));
+		
+		// calls to functions not known to be pure are never merged
+		Expression impure=Analyser.analyse(KissUtils.read("(clojure.core/+ (clojure.core/deref a) (clojure.core/deref a))"));
+		assertSame(impure,CSEPass.INSTANCE.apply(impure));
+		
+		// merged expressions are bound after earlier side effects, or not merged at all
+		Expression effects=Analyser.analyse(KissUtils.read("(do (s) (clojure.core/+ (clojure.core/inc a) (clojure.core/inc a)))"));
+		Expression cse=CSEPass.INSTANCE.apply(effects);
+		assertEquals(effects.getChildren()[0],cse.getChildren()[0]);
+		assertTrue(cse.getChildren()[1] instanceof Let);
+		Expression inline=Analyser.analyse(KissUtils.read("(clojure.core/+ (s) (clojure.core/inc a) (clojure.core/inc a))"));
+		assertEquals(inline,CSEPass.INSTANCE.apply(inline));
+		Environment env=Environment.EMPTY.define(Symbol.intern("a"), Constant.create(1L))
+				.define(Symbol.intern("s"), Constant.create(new AFn() {
+					@Override
+					public Object invoke() {
+						return 0L;
+					}
+				}));
+		assertEquals(4L,((Number)cse.eval(env)).longValue());
+	}
+	
+	@Test
+	public void testLICM() {
+		Expression x=Analyser.analyse(KissUtils.read("(let [k 3] (loop [i 0 acc 0] (if (clojure.core/< i (clojure.core/* k 1)) (recur (clojure.core/inc i) (clojure.core/+ acc k)) acc)))"));
+		Expression opt=LICMPass.INSTANCE.apply(x);
+		Expression hoisted=opt.getChildren()[1];
+		assertTrue(hoisted instanceof Let);
+		assertTrue(hoisted.getChildren()[1] instanceof Loop);
+		assertEquals(9L,((Number)opt.eval()).longValue());
+		assertSame(opt,LICMPass.INSTANCE.apply(opt));
+		
+		// guarded partial operations are not hoisted out of branches
+		Expression guarded=Analyser.analyse(KissUtils.read("(let [d 0] (loop [i 0] (if (clojure.core/zero? d) i (recur (clojure.core// 1 d)))))"));
+		assertEquals(0L,((Number)LICMPass.INSTANCE.apply(guarded).eval()).longValue());
+		assertEquals(0L,((Number)PassManager.getDefault().run(guarded).eval()).longValue());
+		KFn f=(KFn) Compiler.compile(Analyser.analyse(KissUtils.read("(fn [d] (loop [i 0] (if (clojure.core/zero? d) i (recur (clojure.core// 1 d)))))"))).invoke();
+		assertEquals(0L,((Number)f.invoke(0L)).longValue());
+		
+		// nothing after an early exit is hoisted
+		Expression exiting=Analyser.analyse(KissUtils.read("(fn [x y] (loop [i 0] (do (if (clojure.core/= y 0) (return 0) nil) (clojure.core/+ i (clojure.core// x y)))))"));
+		KFn g=(KFn) PassManager.getDefault().run(exiting).eval();
+		assertEquals(0L,((Number)g.invoke(1L,0L)).longValue());
+		g=(KFn) Compiler.compile(exiting).invoke();
+		assertEquals(0L,((Number)g.invoke(1L,0L)).longValue());
+		
+		// initial values are evaluated before hoisted expressions
+		Expression initial=Analyser.analyse(KissUtils.read("(fn [d] (loop [i (if (clojure.core/zero? d) (return -1) 0)] (clojure.core/+ i (clojure.core// 1 d))))"));
+		Expression licm=LICMPass.INSTANCE.apply(initial);
+		assertTrue(licm.getChildren()[0] instanceof Let);
+		assertEquals(-1L,((Number)((KFn)licm.eval()).invoke(0L)).longValue());
+	}
+	
 	@Test 
 	public void testNotConstant() {
 		checkNotConstant(Lookup.create("foo"));